@@ -0,0 +1,112 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the old way of rendering an email body, a String.replace pass
+ * over the whole body for every property, with rendering a precompiled 
+ * EmailTemplate. The body is about 5KB of HTML like the messages that are
+ * configured in production.
+ * 
+ * @author jon
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class EmailTemplateBenchmark
+{
+  String body;
+  Properties properties;
+  HashMap<String,String> values;
+  EmailTemplate template;
+  
+  @Setup
+  public void setup()
+  {
+    StringBuilder sb = new StringBuilder();
+    sb.append( "<html><head><style>p { font-family: sans-serif; }</style></head><body>\n" );
+    sb.append( "<p>Dear {name},</p>\n" );
+    sb.append( "<p>You recently uploaded <b>{filename}</b> which is {filesize_mb}MB of type {filetype}.</p>\n" );
+    while ( sb.length() < 5000 )
+    {
+      sb.append( "<p>Large video files stored in the virtual learning environment slow down " );
+      sb.append( "backups and are difficult for students to play on mobile devices. Please use " );
+      sb.append( "the university's video hosting service instead. Guidance is available from " );
+      sb.append( "the Digital Learning team who can be contacted at any time.</p>\n" );
+    }
+    sb.append( "<p>This message was sent to {user_email} for user {user_name}.</p>\n" );
+    sb.append( "</body></html>\n" );
+    body = sb.toString();
+    
+    properties = new Properties();
+    properties.setProperty( "filename",    "/courses/ABC123/Week 1/lecture & recording.mp4" );
+    properties.setProperty( "filesize_mb", "2048" );
+    properties.setProperty( "filetype",    "video/mp4" );
+    properties.setProperty( "name",        "Alex Example" );
+    properties.setProperty( "user_name",   "c1234567" );
+    properties.setProperty( "user_email",  "a.example@example.ac.uk" );
+    properties.setProperty( "rule",        "Huge videos" );
+    values = new HashMap<>();
+    for ( String p : properties.stringPropertyNames() )
+      values.put( p, properties.getProperty( p ) );
+    template = EmailTemplate.compile( body );
+  }
+  
+  /**
+   * What sendEmail used to do.
+   */
+  @Benchmark
+  public String replaceLoop()
+  {
+    String formattedbody = body;
+    for ( String p : properties.stringPropertyNames() )
+      formattedbody = formattedbody.replace( "{"+p+"}", properties.getProperty( p ) );
+    return formattedbody;
+  }
+  
+  @Benchmark
+  public String compiledTemplate()
+  {
+    return template.render( values, null, true );
+  }
+  
+  /**
+   * Includes parsing so shows the cost when the template is not cached.
+   */
+  @Benchmark
+  public String compileAndRender()
+  {
+    return EmailTemplate.compile( body ).render( values, null, true );
+  }
+}
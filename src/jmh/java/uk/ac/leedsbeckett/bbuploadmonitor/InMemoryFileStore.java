@@ -0,0 +1,83 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A stand-in for Xythos which remembers the most recently created files in 
+ * a fixed size ring, so memory use doesn't grow however many events are 
+ * generated. Looking up a file that has dropped out of the ring finds 
+ * nothing, like a file that was deleted before its event was processed.
+ * 
+ * @author jon
+ */
+public class InMemoryFileStore implements FileStore
+{
+  final AtomicReferenceArray<FileDetails> ring;
+  final int mask;
+  final long lookupnanos;
+
+  /**
+   * @param bits The ring holds 2 to the power bits files.
+   * @param lookupmicros How long each lookup takes.
+   */
+  public InMemoryFileStore( int bits, long lookupmicros )
+  {
+    this.ring = new AtomicReferenceArray<>( 1 << bits );
+    this.mask = (1 << bits) - 1;
+    this.lookupnanos = TimeUnit.MICROSECONDS.toNanos( lookupmicros );
+  }
+  
+  public void put( FileDetails file )
+  {
+    ring.set( (int)(file.getEntryId() & mask), file );
+  }
+  
+  /**
+   * @param entryid An entry ID.
+   * @return The file if it is still in the ring.
+   */
+  public FileDetails get( long entryid )
+  {
+    FileDetails file = ring.get( (int)(entryid & mask) );
+    return file != null && file.getEntryId() == entryid ? file : null;
+  }
+  
+  @Override
+  public Session open()
+  {
+    return new Session()
+    {
+      @Override
+      public FileDetails find( long entryid )
+      {
+        if ( lookupnanos > 0L )
+          LockSupport.parkNanos( lookupnanos );
+        return get( entryid );
+      }
+
+      @Override
+      public void close()
+      {
+      }
+    };
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Opening an overwrite journal with many pending tasks, as happens when
+ * the server starts after a backlog built up. The journal is written 
+ * once, in a temporary directory, and replayed on every invocation.
+ * 
+ * @author jon
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class JournalReplayBenchmark
+{
+  @Param( { "100000" } )
+  int tasks;
+  
+  final Logger logger = Logger.getLogger( JournalReplayBenchmark.class );
+  Path directory;
+  Path file;
+  
+  @Setup
+  public void setup() throws IOException
+  {
+    directory = Files.createTempDirectory( "journalbenchmark" );
+    file = directory.resolve( "overwrite.journal" );
+    OverwriteJournal journal = new OverwriteJournal( file, 60000L, logger );
+    journal.open();
+    long now = System.currentTimeMillis();
+    for ( int i=0; i<tasks; i++ )
+      journal.recordAdded( new OverwriteTask( Long.toString( 1000000L + i ), 
+              "/courses/ABC" + (i % 500) + "_2223/Week " + (i % 12) + "/lecture recording " + i + ".mp4", 
+              "/institution/placeholder.mp4", "vs" + (i % 4), "BB:U:_" + (i % 30000) + "_1", 
+              now, now + 60000L, 500L * CompiledRule.BYTES_PER_MB ) );
+    journal.close();
+  }
+  
+  @TearDown
+  public void tearDown() throws IOException
+  {
+    Files.deleteIfExists( file );
+    Files.deleteIfExists( directory );
+  }
+  
+  /**
+   * @return Number of pending tasks found, so the work is not optimised away.
+   */
+  @Benchmark
+  public int replay() throws IOException
+  {
+    OverwriteJournal journal = new OverwriteJournal( file, 60000L, logger );
+    journal.open();
+    int n = journal.getPending().size();
+    journal.close();
+    return n;
+  }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.varia.NullAppender;
+
+/**
+ * Runs the event intake, rules, user cache, digester, email outbox and 
+ * overwrite scheduler against in-memory stand-ins for Xythos, the BB 
+ * database and the SMTP server, with synthetic events. Prints rates and 
+ * queue depths every second and latency percentiles at the end. Options
+ * are given as name=value, e.g.
+ * 
+ *   events=1000000 rate=5000 profile=burst users=30000 smtpms=200
+ * 
+ * shadow=true adds a shadow copy of each rule to measure what shadow 
+ * rules cost.
+ * 
+ * rate is events per second, zero for as fast as possible. profile is 
+ * steady, burst (ten times the rate for six seconds in every minute) or 
+ * ramp (the rate goes up by the starting rate every minute).
+ * 
+ * @author jon
+ */
+public class LoadTest
+{
+  final Map<String,String> options = new HashMap<>();
+  final Logger logger = Logger.getLogger( LoadTest.class );
+  final MetricsRegistry metrics = new MetricsRegistry();
+  final EventStatistics eventstatistics = new EventStatistics( metrics );
+  final ExecutionMode executionmode = new ExecutionMode();
+  final MetricsRegistry.Histogram emailsendtime = metrics.histogram( "email_send", "Time to send one email to the SMTP server" );
+  final MetricsRegistry.Histogram overwritetime = metrics.histogram( "overwrite",  "Time to overwrite one file" );
+  final LongAdder offered = new LongAdder();
+  final LongAdder rejected = new LongAdder();
+  
+  InMemoryFileStore filestore;
+  UserProfileCache userprofilecache;
+  EmailOutbox emailoutbox;
+  NotificationDigester notificationdigester;
+  OverwriteScheduler scheduler;
+  EventProcessor eventprocessor;
+  EventIntake eventintake;
+  Thread[] overwriters;
+  
+  int maxintakedepth = 0;
+  int maxoutboxdepth = 0;
+  int maxoverwritequeue = 0;
+
+  public static void main( String[] args ) throws Exception
+  {
+    LoadTest test = new LoadTest();
+    for ( String arg : args )
+    {
+      int eq = arg.indexOf( '=' );
+      if ( eq < 0 )
+      {
+        System.err.println( "Options must be name=value, not " + arg );
+        System.exit( 1 );
+      }
+      test.options.put( arg.substring( 0, eq ).replaceFirst( "^-+", "" ), arg.substring( eq+1 ) );
+    }
+    test.run();
+  }
+  
+  String option( String name, String defaultvalue )
+  {
+    return options.getOrDefault( name, defaultvalue );
+  }
+
+  int intOption( String name, int defaultvalue )
+  {
+    return Integer.parseInt( option( name, Integer.toString( defaultvalue ) ) );
+  }
+
+  double doubleOption( String name, double defaultvalue )
+  {
+    return Double.parseDouble( option( name, Double.toString( defaultvalue ) ) );
+  }
+  
+  static void pause( long micros )
+  {
+    if ( micros > 0L )
+      LockSupport.parkNanos( TimeUnit.MICROSECONDS.toNanos( micros ) );
+  }
+  
+  void setUp() throws Exception
+  {
+    BasicConfigurator.configure();
+    Logger.getRootLogger().setLevel( Level.WARN );
+    Logger datalogger = Logger.getLogger( LoadTest.class.getName() + "/datalogger" );
+    datalogger.setAdditivity( false );
+    datalogger.addAppender( new NullAppender() );
+    datalogger.setLevel( Level.INFO );
+    
+    Config config = SyntheticEvents.defaultConfig();
+    if ( Boolean.parseBoolean( option( "shadow", "false" ) ) )
+      SyntheticEvents.addShadowRules( config );
+    executionmode.configure( 
+            Boolean.parseBoolean( option( "virtual", "false" ) ), 
+            intOption( "xythosconcurrency", config.getXythosConcurrency() ), 
+            intOption( "databaseconcurrency", config.getDatabaseConcurrency() ), 
+            intOption( "smtpconcurrency", config.getSmtpConcurrency() ) );
+    
+    filestore = new InMemoryFileStore( 20, intOption( "xythosus", 200 ) );
+    
+    // Stand-in for the BB database.
+    long dbmicros = intOption( "dbus", 2000 );
+    userprofilecache = new UserProfileCache( principalid -> executionmode.call( ExecutionMode.Backend.DATABASE, () -> 
+    {
+      pause( dbmicros );
+      String id = principalid.substring( 5 );
+      return new UserProfile( principalid, "u" + id, "u" + id + "@example.ac.uk", "User " + id );
+    } ) );
+    userprofilecache.configure( intOption( "usercachesize", config.getUserCacheSize() ), 1000L * config.getUserCacheTtlSeconds() );
+    
+    // Stand-in for the SMTP server.
+    long smtpmicros = 1000L * intOption( "smtpms", 100 );
+    emailoutbox = new EmailOutbox( email -> executionmode.call( ExecutionMode.Backend.SMTP, () -> 
+    {
+      long start = System.nanoTime();
+      pause( smtpmicros );
+      emailsendtime.recordNanos( System.nanoTime() - start );
+      return null;
+    } ), logger );
+    emailoutbox.setExecutionMode( executionmode );
+    emailoutbox.configure( intOption( "senders", config.getEmailSenderThreads() ), config.getEmailQueueCapacity(), 1, 1000L );
+    
+    // Renders the email as WebAppCore.sendDigest does.
+    notificationdigester = new NotificationDigester( ( user, rule, rows ) -> 
+    {
+      HashMap<String,String> properties = new HashMap<>( rows.get( 0 ) );
+      properties.put( "filecount", Integer.toString( rows.size() ) );
+      String subject = rule.getSubjectTemplate().render( properties, rows, false );
+      String body = rule.getBodyTemplate( rows.size() > 1 ).render( properties, rows, true );
+      emailoutbox.enqueue( "noreply@example.ac.uk", "Upload Monitor", user.getEmailAddress(), user.getName(), null, subject, body );
+    }, logger );
+    notificationdigester.configure( 1000L * intOption( "digestseconds", 0 ), 0 );
+    
+    // Stand-in for FileProcessWorker. Tasks are ready straight away.
+    scheduler = new OverwriteScheduler();
+    scheduler.setPerServerLimit( config.getOverwritePerServerLimit() );
+    OverwriteQueue overwritequeue = ( entryid, targetpath, sourcepath, vsname, owner, size ) -> 
+    {
+      long now = System.currentTimeMillis();
+      OverwriteTask task = new OverwriteTask( entryid, targetpath, sourcepath, vsname, owner, now, now, size );
+      task.reclaimable = size;
+      scheduler.add( task );
+    };
+    
+    eventprocessor = new EventProcessor( filestore, userprofilecache, notificationdigester, overwritequeue, eventstatistics, metrics, logger, datalogger );
+    eventprocessor.setRules( CompiledRuleSet.compile( config, logger, metrics ) );
+    
+    eventintake = new EventIntake( eventprocessor::processEvents, logger );
+    eventintake.setExecutionMode( executionmode );
+    EventIntake.Policy policy = EventIntake.parsePolicy( option( "policy", "BLOCK" ) );
+    eventintake.configure( intOption( "capacity", config.getIntakeCapacity() ), policy, intOption( "blockms", config.getIntakeBlockMillis() ) );
+    eventintake.setCoalesceMillis( intOption( "coalescems", config.getCoalesceMillis() ) );
+    eventintake.setShedThreshold( eventprocessor.getRules().getMinimumActionThreshold() );
+    if ( policy == EventIntake.Policy.SPILL )
+    {
+      File spillfile = File.createTempFile( "loadtest", ".spill" );
+      spillfile.deleteOnExit();
+      EventSpill spill = new EventSpill( spillfile.toPath() );
+      spill.open();
+      eventintake.setSpill( spill );
+    }
+    
+    emailoutbox.start();
+    notificationdigester.start();
+    eventintake.start( intOption( "threads", config.getIntakeThreads() ) );
+    
+    long overwritemicros = 1000L * intOption( "overwritems", 50 );
+    overwriters = new Thread[config.getOverwriteThreads()];
+    for ( int i=0; i<overwriters.length; i++ )
+    {
+      overwriters[i] = new Thread( () -> 
+      {
+        try
+        {
+          while ( true )
+          {
+            List<OverwriteTask> batch = scheduler.nextBatch( config.getOverwriteBatchSize() );
+            for ( OverwriteTask task : batch )
+            {
+              long start = System.nanoTime();
+              pause( overwritemicros );
+              overwritetime.recordNanos( System.nanoTime() - start );
+              scheduler.complete( task, true );
+            }
+            scheduler.endBatch( batch );
+          }
+        }
+        catch ( InterruptedException e )
+        {
+          // Normal way to stop.
+        }
+      }, "Overwriter-" + i );
+      overwriters[i].setDaemon( true );
+      overwriters[i].start();
+    }
+  }
+  
+  /**
+   * @param rate Events per second at the start.
+   * @param profile steady, burst or ramp.
+   * @param elapsedmillis Time since the start.
+   * @return Events per second now.
+   */
+  static double rateAt( double rate, String profile, long elapsedmillis )
+  {
+    switch ( profile )
+    {
+      case "burst":
+        return (elapsedmillis % 60000L) < 6000L ? rate * 10.0 : rate;
+      case "ramp":
+        return rate * (1.0 + elapsedmillis / 60000.0);
+      default:
+        return rate;
+    }
+  }
+  
+  void run() throws Exception
+  {
+    setUp();
+    long events    = Long.parseLong( option( "events", "1000000" ) );
+    double rate    = doubleOption( "rate", 0.0 );
+    String profile = option( "profile", "steady" );
+    SyntheticEvents generator = new SyntheticEvents( 
+            filestore, 
+            Long.parseLong( option( "seed", "42" ) ),
+            intOption( "users", 20000 ), 
+            doubleOption( "skew", 1.1 ), 
+            doubleOption( "medianmb", 2.0 ), 
+            doubleOption( "sigma", 2.0 ), 
+            intOption( "movepercent", 10 ) );
+    
+    System.out.println( "events=" + events + " rate=" + (rate > 0.0 ? rate : "max") + " profile=" + profile + " " + options );
+    System.out.println( "   time   offered/s  processed/s    intake     spill    outbox  overwrite   e2e p50ms  e2e p99ms" );
+    
+    Thread generatorthread = new Thread( () -> 
+    {
+      long start = System.currentTimeMillis();
+      double allowance = 0.0;
+      long last = start;
+      for ( long i=0; i<events; )
+      {
+        long now = System.currentTimeMillis();
+        if ( rate > 0.0 )
+        {
+          allowance += rateAt( rate, profile, now - start ) * (now - last) / 1000.0;
+          last = now;
+          if ( allowance < 1.0 )
+          {
+            LockSupport.parkNanos( 500000L );
+            continue;
+          }
+        }
+        long n = rate > 0.0 ? Math.min( (long)allowance, events - i ) : Math.min( 1000L, events - i );
+        for ( long j=0; j<n; j++ )
+        {
+          eventstatistics.increment( EventStatistics.Stage.RECEIVED );
+          // Stamped as it is offered, like the Xythos listener does.
+          if ( !eventintake.offer( generator.next( System.currentTimeMillis() ) ) )
+            rejected.increment();
+          offered.increment();
+        }
+        allowance -= n;
+        i += n;
+      }
+    }, "Generator" );
+    
+    long start = System.currentTimeMillis();
+    generatorthread.start();
+    MetricsRegistry.Histogram endtoend = metrics.histogram( "event_end_to_end", "" );
+    long lastoffered = 0L, lastprocessed = 0L;
+    int second = 0;
+    while ( true )
+    {
+      Thread.sleep( 1000L );
+      second++;
+      long o = offered.sum();
+      long p = endtoend.getCount();
+      int intakedepth = eventintake.getDepth();
+      int outboxdepth = emailoutbox.getDepth();
+      int overwritequeue = scheduler.getQueueLength();
+      maxintakedepth    = Math.max( maxintakedepth,    intakedepth    );
+      maxoutboxdepth    = Math.max( maxoutboxdepth,    outboxdepth    );
+      maxoverwritequeue = Math.max( maxoverwritequeue, overwritequeue );
+      System.out.println( String.format( "%6ds %11d %12d %9d %9d %9d %10d %11s %10s", 
+              second, o - lastoffered, p - lastprocessed, intakedepth, eventintake.getSpillCount(), 
+              outboxdepth, overwritequeue, 
+              millis( endtoend.getPercentileMicros( 0.5 ) ), millis( endtoend.getPercentileMicros( 0.99 ) ) ) );
+      lastoffered = o;
+      lastprocessed = p;
+      // Finished when every event is accounted for and all the queues are 
+      // empty. Events the intake sheds are the ones offer() rejected.
+      if ( !generatorthread.isAlive() && 
+           p + rejected.sum() + eventintake.getMerged() >= o && 
+           intakedepth == 0 && eventintake.getSpillCount() == 0 && 
+           outboxdepth == 0 && overwritequeue == 0 && scheduler.getRunningCount() == 0 )
+        break;
+    }
+    long elapsed = System.currentTimeMillis() - start;
+    
+    eventintake.stop();
+    notificationdigester.stop();
+    emailoutbox.stop();
+    for ( Thread t : overwriters )
+      t.interrupt();
+    report( elapsed );
+  }
+  
+  static String millis( long micros )
+  {
+    return micros < 0L ? "overflow" : String.format( "%.1f", micros / 1000.0 );
+  }
+  
+  void report( long elapsed )
+  {
+    long processed = metrics.histogram( "event_end_to_end", "" ).getCount();
+    System.out.println();
+    System.out.println( String.format( "Processed %d events in %.1fs, %.0f events/s", processed, elapsed / 1000.0, processed * 1000.0 / elapsed ) );
+    System.out.println( "Offered " + offered.sum() + ", not accepted " + rejected.sum() + 
+                        ", shed " + eventintake.getShed() + ", merged " + eventintake.getMerged() + 
+                        ", spilled " + eventintake.getSpilled() + ", waited " + eventintake.getWaited() );
+    System.out.println( "Largest intake depth " + maxintakedepth + ", outbox depth " + maxoutboxdepth + 
+                        ", overwrite queue " + maxoverwritequeue );
+    System.out.println( "Emails sent " + emailoutbox.getSent() + ", overwrites " + scheduler.getCompleted() + 
+                        ", user cache hits " + userprofilecache.getHits() + " misses " + userprofilecache.getMisses() );
+    System.out.println();
+    System.out.println( String.format( "%-24s %10s %9s %9s %9s %9s %9s", "Timing (ms)", "count", "mean", "p50", "p90", "p99", "p99.9" ) );
+    for ( MetricsRegistry.Histogram h : metrics.getHistograms() )
+    {
+      long count = h.getCount();
+      System.out.println( String.format( "%-24s %10d %9.2f %9s %9s %9s %9s", h.getName(), count, 
+              count == 0L ? 0.0 : h.getSumMicros() / 1000.0 / count,
+              millis( h.getPercentileMicros( 0.5 ) ), millis( h.getPercentileMicros( 0.9 ) ), 
+              millis( h.getPercentileMicros( 0.99 ) ), millis( h.getPercentileMicros( 0.999 ) ) ) );
+    }
+    System.out.println();
+    for ( EventStatistics.Stage stage : EventStatistics.Stage.values() )
+      System.out.println( String.format( "%-40s %d", stage.getLabel(), eventstatistics.get( stage ) ) );
+    System.out.println();
+    for ( CompiledRule rule : eventprocessor.getRules().getRules() )
+      System.out.println( String.format( "%-40s %d", rule.getName(), rule.getMatches().get() ) );
+    for ( CompiledRule rule : eventprocessor.getRules().getShadowRules() )
+      System.out.println( String.format( "%-40s %d", rule.getName(), rule.getMatches().get() ) );
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The queue operations FileProcessWorker makes: adding overwrite tasks, 
+ * some of them for entries that are already queued, then taking them off
+ * in batches and completing them. Tasks are spread over a few virtual 
+ * servers and many owners from a seeded random mix.
+ * 
+ * @author jon
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class OverwriteSchedulerBenchmark
+{
+  static final String[] SERVERS = { "vs1", "vs2", "vs3", "vs4" };
+  
+  @Param( { "false", "true" } )
+  boolean largestfirst;
+  
+  @Param( { "1000" } )
+  int tasks;
+  
+  @Param( { "10" } )
+  int batchsize;
+  
+  String[] entryids;
+  String[] paths;
+  String[] servers;
+  String[] owners;
+  long[] sizes;
+  
+  @Setup
+  public void setup()
+  {
+    Random random = new Random( 42L );
+    entryids = new String[tasks];
+    paths    = new String[tasks];
+    servers  = new String[tasks];
+    owners   = new String[tasks];
+    sizes    = new long[tasks];
+    for ( int i=0; i<tasks; i++ )
+    {
+      // About one in ten is a second event for an entry already queued.
+      int entry = random.nextInt( 10 ) == 0 && i > 0 ? random.nextInt( i ) : i;
+      entryids[i] = Integer.toString( 100000 + entry );
+      paths[i]    = "/courses/C" + (entry % 300) + "/file" + entry + ".mp4";
+      servers[i]  = SERVERS[entry % SERVERS.length];
+      owners[i]   = "BB:U:_" + random.nextInt( 200 ) + "_1";
+      sizes[i]    = (500L + random.nextInt( 5000 )) * CompiledRule.BYTES_PER_MB;
+    }
+  }
+  
+  /**
+   * Fill an empty scheduler then drain it.
+   * 
+   * @return Number of batches taken.
+   * @throws InterruptedException 
+   */
+  @Benchmark
+  public int addAndDrain() throws InterruptedException
+  {
+    OverwriteScheduler scheduler = new OverwriteScheduler();
+    scheduler.setPerServerLimit( SERVERS.length * tasks );
+    scheduler.setOrder( largestfirst, 100 );
+    for ( int i=0; i<tasks; i++ )
+    {
+      // Ready straight away so nextBatch never waits.
+      OverwriteTask task = new OverwriteTask( entryids[i], paths[i], "/overwrite.mp4", servers[i], owners[i], 0L, 0L, sizes[i] );
+      task.reclaimable = sizes[i];
+      scheduler.add( task );
+    }
+    int batches = 0;
+    while ( scheduler.getQueueLength() > 0 )
+    {
+      List<OverwriteTask> batch = scheduler.nextBatch( batchsize );
+      for ( OverwriteTask task : batch )
+        scheduler.complete( task, true );
+      scheduler.endBatch( batch );
+      batches++;
+    }
+    return batches;
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost per event of finding the matching rules as the number of rules
+ * grows, trying every rule in turn against using the rule index. The 
+ * rules are four per faculty, by MIME type, and every event is big enough
+ * to get past the minimum size so only the rule loop is measured.
+ * 
+ * @author jon
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class RuleDispatchBenchmark
+{
+  static final String[] TYPES = 
+  { 
+    "application/pdf", "image/jpeg", "video/mp4", "video/quicktime", 
+    "application/zip", "audio/mpeg", "text/plain"
+  };
+  
+  @Param( { "5", "50", "500" } )
+  int rulecount;
+  
+  CompiledRuleSet ruleset;
+  long[] sizes;
+  String[] types;
+  String[] paths;
+  int next = 0;
+  
+  @Setup
+  public void setup()
+  {
+    Config config = SyntheticEvents.facultyConfig( rulecount );
+    ruleset = CompiledRuleSet.compile( config, Logger.getLogger( RuleDispatchBenchmark.class ), new MetricsRegistry() );
+    
+    Random random = new Random( 42L );
+    int faculties = Math.max( 1, (rulecount-1) / 4 );
+    int n = 4096;
+    sizes = new long[n];
+    types = new String[n];
+    paths = new String[n];
+    for ( int i=0; i<n; i++ )
+    {
+      sizes[i] = (100L + random.nextInt( 6000 )) * CompiledRule.BYTES_PER_MB;
+      types[i] = TYPES[random.nextInt( TYPES.length )];
+      paths[i] = random.nextInt( 10 ) == 0 ? 
+              "/users/c" + (1000000 + random.nextInt( 9000000 )) + "/My Content/file" + i : 
+              SyntheticEvents.facultyPath( random.nextInt( faculties ) ) + "2223/Week " + random.nextInt( 12 ) + "/file" + i;
+    }
+  }
+  
+  /**
+   * Every rule is tried in turn, as before the index.
+   * 
+   * @return Number of rules matched, so the work is not optimised away.
+   */
+  @Benchmark
+  public int linear()
+  {
+    int i = next;
+    next = (i+1) & (sizes.length-1);
+    int matched = 0;
+    for ( CompiledRule rule : ruleset.getRules() )
+    {
+      if ( !rule.matchesFile( sizes[i], types[i], paths[i] ) )
+        continue;
+      matched++;
+      if ( !rule.getRule().isContinueRules() )
+        break;
+    }
+    return matched;
+  }
+  
+  /**
+   * Only the rules the index picks out are tried.
+   * 
+   * @return Number of rules matched, so the work is not optimised away.
+   */
+  @Benchmark
+  public int indexed()
+  {
+    int i = next;
+    next = (i+1) & (sizes.length-1);
+    int matched = 0;
+    List<CompiledRule> rules = ruleset.getRules();
+    BitSet candidates = ruleset.getCandidates( sizes[i], types[i], paths[i] );
+    for ( int r = candidates.nextSetBit( 0 ); r >= 0; r = candidates.nextSetBit( r+1 ) )
+    {
+      CompiledRule rule = rules.get( r );
+      if ( !rule.matchesFile( sizes[i], types[i], paths[i] ) )
+        continue;
+      matched++;
+      if ( !rule.getRule().isContinueRules() )
+        break;
+    }
+    return matched;
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.varia.NullAppender;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One event at a time through EventProcessor.processFileEvent with 
+ * stand-ins for Xythos, the BB database, email and overwriting that 
+ * answer straight away, so what is measured is the size check, the rule
+ * loop and the bookkeeping around them. Files come from a fixed, seeded
+ * mix where most are small, as in production, so most are rejected by the
+ * minimum size before any rule is looked at. Every user fits in the cache.
+ * 
+ * @author jon
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class RuleEvaluationBenchmark
+{
+  static final String[] TYPES = 
+  { 
+    "application/pdf", "image/jpeg", "video/mp4", "video/quicktime", 
+    "application/vnd.openxmlformats-officedocument.presentationml.presentation", 
+    "application/zip", "audio/mpeg", "text/plain"
+  };
+  static final String[] PATHS = 
+  {
+    "/courses/ABC123_2223/Week 1/lecture.mp4",
+    "/courses/XYZ987_2223/Assessment/submission.zip",
+    "/institution/Marketing/banner.jpg",
+    "/users/c1234567/My Content/notes.pdf",
+    "/internal/courses/DEF456_2223/recording.mov"
+  };
+  static final int USERS = 200;
+  
+  /**
+   * Percentage of events over the smallest rule's size threshold.
+   */
+  @Param( { "5", "50" } )
+  int largepercent;
+  
+  EventProcessor eventprocessor;
+  FileStore.Session session;
+  FileEvent[] events;
+  int next = 0;
+  
+  @Setup
+  public void setup()
+  {
+    Logger logger = Logger.getLogger( RuleEvaluationBenchmark.class );
+    logger.setLevel( Level.WARN );
+    Logger datalogger = Logger.getLogger( RuleEvaluationBenchmark.class.getName() + "/datalogger" );
+    datalogger.setAdditivity( false );
+    datalogger.addAppender( new NullAppender() );
+    datalogger.setLevel( Level.INFO );
+    MetricsRegistry metrics = new MetricsRegistry();
+    Config config = SyntheticEvents.defaultConfig();
+    
+    InMemoryFileStore filestore = new InMemoryFileStore( 12, 0L );
+    // One in fifty users is an administrator, which admin only rules skip.
+    UserProfileCache userprofilecache = new UserProfileCache( principalid -> 
+    {
+      String id = principalid.substring( 5 );
+      String username = id.hashCode() % 50 == 0 ? "sysadmin" + id : "c" + id;
+      return new UserProfile( principalid, username, username + "@example.ac.uk", "User " + id );
+    } );
+    userprofilecache.configure( 2 * USERS, 3600000L );
+    NotificationDigester notificationdigester = new NotificationDigester( ( user, rule, rows ) -> {}, logger );
+    notificationdigester.configure( 0L, 0 );
+    OverwriteQueue overwritequeue = ( entryid, targetpath, sourcepath, vsname, owner, size ) -> {};
+    eventprocessor = new EventProcessor( filestore, userprofilecache, notificationdigester, overwritequeue, 
+                                         new EventStatistics( metrics ), metrics, logger, datalogger );
+    eventprocessor.setRules( CompiledRuleSet.compile( config, logger, metrics ) );
+    session = filestore.open();
+    
+    Random random = new Random( 42L );
+    int n = 4096;
+    events = new FileEvent[n];
+    for ( int i=0; i<n; i++ )
+    {
+      boolean large = random.nextInt( 100 ) < largepercent;
+      long size = large ? 
+              (200L + random.nextInt( 6000 )) * CompiledRule.BYTES_PER_MB : 
+              random.nextInt( 200 * 1024 ) * 1024L;
+      String principal = "BB:U:_" + random.nextInt( USERS ) + "_1";
+      String path = PATHS[random.nextInt( PATHS.length )];
+      filestore.put( new FileDetails( i, path, size, TYPES[random.nextInt( TYPES.length )], principal, "vs" ) );
+      events[i] = new FileEvent( i, FileEvent.CREATED, path, size, System.currentTimeMillis() );
+    }
+  }
+  
+  /**
+   * One event through the processor.
+   */
+  @Benchmark
+  public void evaluate()
+  {
+    int i = next;
+    next = (i+1) & (events.length-1);
+    eventprocessor.processFileEvent( session, events[i] );
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Load test of the email outbox against an SMTP server that takes 200ms 
+ * per message. Each operation sends 200 messages and waits until all have 
+ * gone. Compares a few platform threads, which is how the outbox used to 
+ * be run, with a large number of platform or virtual threads limited by 
+ * the SMTP backend limit. The virtual case is only really virtual when 
+ * run on Java 21 or later, otherwise it falls back to platform threads.
+ * 
+ * @author jon
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.SingleShotTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 1 )
+@Measurement( iterations = 3 )
+@Fork( 1 )
+public class SmtpLatencyBenchmark
+{
+  static final int MESSAGES = 200;
+  static final long SMTP_LATENCY_MILLIS = 200L;
+  static final int SMTP_LIMIT = 50;
+  
+  @Param( { "platform-4", "platform-200", "virtual-200" } )
+  String mode;
+  
+  @Benchmark
+  public long sendAll() throws InterruptedException
+  {
+    String[] parts = mode.split( "-" );
+    ExecutionMode executionmode = new ExecutionMode();
+    executionmode.configure( "virtual".equals( parts[0] ), 1, 1, SMTP_LIMIT );
+    
+    Logger logger = Logger.getLogger( SmtpLatencyBenchmark.class );
+    logger.setLevel( Level.OFF );
+    EmailOutbox outbox = new EmailOutbox( email -> executionmode.call( ExecutionMode.Backend.SMTP, () ->
+    {
+      Thread.sleep( SMTP_LATENCY_MILLIS );
+      return null;
+    } ), logger );
+    outbox.setExecutionMode( executionmode );
+    outbox.configure( Integer.parseInt( parts[1] ), MESSAGES, 1, 1000L );
+    outbox.start();
+    for ( int i=0; i<MESSAGES; i++ )
+      outbox.enqueue( "from@example.ac.uk", "From", "user" + i + "@example.ac.uk", "User", null, "Subject", "Body" );
+    while ( outbox.getSent() < MESSAGES )
+      Thread.sleep( 5L );
+    outbox.stop();
+    return outbox.getSent();
+  }
+}
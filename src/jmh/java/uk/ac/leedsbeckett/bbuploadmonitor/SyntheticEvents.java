@@ -0,0 +1,227 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Makes up a repeatable stream of file created and moved events and puts
+ * the files they refer to in an InMemoryFileStore. Sizes have a log-normal
+ * distribution with videos ten times larger than other files, MIME types 
+ * follow a fixed mix and uploads are spread over users with a Zipf 
+ * distribution, so a few users upload a lot. Not thread safe.
+ * 
+ * @author jon
+ */
+public class SyntheticEvents
+{
+  static final String[][] TYPES =
+  {
+    // MIME type, file extension, weight
+    { "application/pdf", "pdf", "30" },
+    { "application/vnd.openxmlformats-officedocument.wordprocessingml.document", "docx", "15" },
+    { "application/vnd.openxmlformats-officedocument.presentationml.presentation", "pptx", "15" },
+    { "image/jpeg", "jpg", "15" },
+    { "video/mp4", "mp4", "10" },
+    { "video/quicktime", "mov", "3" },
+    { "application/zip", "zip", "5" },
+    { "audio/mpeg", "mp3", "2" },
+    { "text/plain", "txt", "5" }
+  };
+  static final String[] FOLDERS = { "Week 1", "Week 2", "Week 3", "Assessment", "Recordings", "Resources" };
+  
+  final InMemoryFileStore store;
+  final Random random;
+  final double[] userweights;
+  final int[] typeweights;
+  final double mu;
+  final double sigma;
+  final int movepercent;
+  final int courses;
+  long nextid = 1L;
+
+  /**
+   * @param store Where to put the files.
+   * @param seed Seed for the random numbers.
+   * @param users Number of users.
+   * @param skew Zipf exponent for users. Zero spreads uploads evenly.
+   * @param medianmb Median size of files that aren't videos.
+   * @param sigma Spread of the log of the size. 
+   * @param movepercent Percentage of events that are moves of earlier files.
+   */
+  public SyntheticEvents( InMemoryFileStore store, long seed, int users, double skew, double medianmb, double sigma, int movepercent )
+  {
+    this.store       = store;
+    this.random      = new Random( seed );
+    this.mu          = Math.log( medianmb * CompiledRule.BYTES_PER_MB );
+    this.sigma       = sigma;
+    this.movepercent = movepercent;
+    this.courses     = Math.max( 1, users / 20 );
+    
+    userweights = new double[Math.max( 1, users )];
+    double total = 0.0;
+    for ( int i=0; i<userweights.length; i++ )
+      userweights[i] = (total += 1.0 / Math.pow( i+1, skew ));
+    for ( int i=0; i<userweights.length; i++ )
+      userweights[i] /= total;
+    
+    typeweights = new int[TYPES.length];
+    int t = 0;
+    for ( int i=0; i<TYPES.length; i++ )
+      typeweights[i] = (t += Integer.parseInt( TYPES[i][2] ));
+  }
+  
+  /**
+   * @param now Time to put in the event.
+   * @return The next event.
+   */
+  public FileEvent next( long now )
+  {
+    if ( nextid > 1L && random.nextInt( 100 ) < movepercent )
+    {
+      // Rename a recent file.
+      long entryid = nextid - 1L - random.nextInt( (int)Math.min( nextid - 1L, 1000L ) );
+      FileDetails old = store.get( entryid );
+      if ( old != null )
+      {
+        String name = old.getName().substring( 0, old.getName().lastIndexOf( '/' ) + 1 ) + "renamed" + entryid + "." + extension( old.getContentType() );
+        store.put( new FileDetails( entryid, name, old.getSize(), old.getContentType(), old.getCreatedBy(), old.getVirtualServer() ) );
+        return new FileEvent( entryid, FileEvent.MOVED, name, -1L, now );
+      }
+    }
+    
+    long entryid = nextid++;
+    String[] type = TYPES[pickType()];
+    double m = type[0].startsWith( "video/" ) ? mu + Math.log( 10.0 ) : mu;
+    long size = (long)Math.exp( m + sigma * random.nextGaussian() );
+    int user = pickUser();
+    // A few files are made by Xythos itself rather than a user.
+    String principal = random.nextInt( 50 ) == 0 ? "XYTHOS:ADMIN" : "BB:U:_" + (user + 1000) + "_1";
+    String name = "/courses/C" + (user % courses) + "_2425/" + FOLDERS[random.nextInt( FOLDERS.length )] + "/file" + entryid + "." + type[1];
+    store.put( new FileDetails( entryid, name, size, type[0], principal, "vs" + (entryid & 3) ) );
+    return new FileEvent( entryid, FileEvent.CREATED, name, size, now );
+  }
+  
+  int pickUser()
+  {
+    int i = Arrays.binarySearch( userweights, random.nextDouble() );
+    return Math.min( i < 0 ? -i - 1 : i, userweights.length - 1 );
+  }
+  
+  int pickType()
+  {
+    int r = random.nextInt( typeweights[typeweights.length-1] );
+    for ( int i=0; i<typeweights.length; i++ )
+      if ( r < typeweights[i] )
+        return i;
+    return typeweights.length-1;
+  }
+  
+  static String extension( String mimetype )
+  {
+    for ( String[] type : TYPES )
+      if ( type[0].equals( mimetype ) )
+        return type[1];
+    return "bin";
+  }
+  
+  /**
+   * A configuration with five rules like those used in production.
+   * 
+   * @return The configuration.
+   */
+  public static Config defaultConfig()
+  {
+    Config config = new Config();
+    addRule( config, "Huge videos",     2000, "video/.*",          "/courses/.*",     false, true,  true,  true  );
+    addRule( config, "Large videos",     500, "video/.*",          "/courses/.*",     false, true,  false, false );
+    addRule( config, "Large archives",  1000, "application/zip",   ".*",              false, true,  false, false );
+    addRule( config, "Admin uploads",    200, ".*",                "/institution/.*", true,  false, false, false );
+    addRule( config, "Anything huge",   5000, ".*",                ".*",              false, true,  false, false );
+    return config;
+  }
+  
+  static final String[] FACULTY_TYPES = { "video/.*", "application/zip", "application/pdf", "image/.*" };
+  
+  /**
+   * A configuration with many rules, four per faculty for different
+   * MIME types and size thresholds, and a catch all rule at the end.
+   * 
+   * @param n How many rules.
+   * @return The configuration.
+   */
+  public static Config facultyConfig( int n )
+  {
+    Config config = new Config();
+    for ( int i=0; i<n-1; i++ )
+      addRule( config, "Faculty " + (i/4) + " " + FACULTY_TYPES[i%4], 100 + 100*(i%5), 
+               FACULTY_TYPES[i%4], facultyPath( i/4 ) + ".*", false, true, false, false );
+    addRule( config, "Anything huge", 5000, ".*", ".*", false, true, false, false );
+    return config;
+  }
+  
+  /**
+   * @param faculty Faculty number.
+   * @return The start of the paths of the faculty's courses.
+   */
+  public static String facultyPath( int faculty )
+  {
+    return String.format( "/courses/F%03d_", faculty );
+  }
+  
+  /**
+   * Add a shadow copy of each rule with half the size threshold, as 
+   * someone trying out lower thresholds might.
+   * 
+   * @param config The configuration to add to.
+   */
+  public static void addShadowRules( Config config )
+  {
+    int n = config.getRules().size();
+    for ( int i=0; i<n; i++ )
+    {
+      RuleConfig live = config.getRules().get( i );
+      RuleConfig rule = addRule( config, live.getName() + " (shadow)", live.getFileSize() / 2, live.getTypeRegex(), live.getPathRegex(), 
+               live.isAdminOnly(), live.isActionEmail(), live.isActionOverwrite(), live.isContinueRules() );
+      rule.setShadow( true );
+    }
+  }
+  
+  static RuleConfig addRule( Config config, String name, int mb, String typeregex, String pathregex, 
+                             boolean adminonly, boolean email, boolean overwrite, boolean continuerules )
+  {
+    RuleConfig rule = new RuleConfig();
+    rule.setN( config.getRules().size() );
+    config.getRules().add( rule );
+    rule.setEnabled( true );
+    rule.setName( name );
+    rule.setFileSize( mb );
+    rule.setTypeRegex( typeregex );
+    rule.setPathRegex( pathregex );
+    rule.setAdminOnly( adminonly );
+    rule.setActionLog( true );
+    rule.setActionEmail( email );
+    rule.setActionOverwrite( overwrite );
+    rule.setOverwritePath( "/institution/placeholder.mp4" );
+    rule.setContinueRules( continuerules );
+    rule.setEmailSubject( "Your file {filename}" );
+    rule.setEmailBody( "<p>Dear {name}, {filename} is {filesize_mb}MB.</p>" );
+    return rule;
+  }
+}
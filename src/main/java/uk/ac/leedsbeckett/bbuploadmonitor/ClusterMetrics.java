@@ -0,0 +1,376 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * Shares metrics between the servers in the cluster. Each server 
+ * periodically sends a compact snapshot of its own metrics to the others
+ * over the peer messaging channel and keeps the latest snapshot it has 
+ * received from each of them. So the status page on any server can show 
+ * every server side by side with cluster totals.
+ * 
+ * A snapshot is one line of text, "metrics:", the server name, the time 
+ * it was taken, how often the server publishes and then key=value pairs
+ * separated by semicolons. The publishing interval is left out by older
+ * versions so it is recognised by having no equals sign. The first
+ * letter of a key says how it is totalled across the cluster: c counters 
+ * and g gauges are added up, r ratios are averaged and p timings take 
+ * the worst server.
+ * 
+ * @author jon
+ */
+public class ClusterMetrics
+{
+  public static final String MESSAGE_PREFIX = "metrics:";
+  // How old a snapshot can be when the server didn't say how often it 
+  // publishes.
+  public static final long DEFAULT_MAXIMUM_AGE_MILLIS = 15L * 60L * 1000L;
+  // How long a stale snapshot is still shown before it is removed.
+  public static final long STALE_KEEP_MILLIS = 60L * 60L * 1000L;
+  
+  /**
+   * Sends a snapshot to the other servers.
+   */
+  public interface Publisher
+  {
+    void publish( String message ) throws Exception;
+  }
+  
+  /**
+   * The latest metrics received from one server.
+   */
+  public static class Snapshot
+  {
+    final String node;
+    final long taken;
+    final long received;
+    final long interval;
+    final LinkedHashMap<String,Double> values;
+
+    Snapshot( String node, long taken, long received, long interval, LinkedHashMap<String,Double> values )
+    {
+      this.node     = node;
+      this.taken    = taken;
+      this.received = received;
+      this.interval = interval;
+      this.values   = values;
+    }
+
+    public String getNode()
+    {
+      return node;
+    }
+
+    /**
+     * @return When the server took the snapshot, by its own clock.
+     */
+    public long getTaken()
+    {
+      return taken;
+    }
+
+    /**
+     * @return When this server received the snapshot, by this server's
+     * clock, so it can be compared with the current time.
+     */
+    public long getReceived()
+    {
+      return received;
+    }
+
+    /**
+     * @return How often the server publishes or 0 if it didn't say.
+     */
+    public long getInterval()
+    {
+      return interval;
+    }
+
+    /**
+     * @param key A key including its type letter.
+     * @return The value or null if the server didn't send it.
+     */
+    public Double get( String key )
+    {
+      return values.get( key );
+    }
+  }
+  
+  final MetricsRegistry metrics;
+  final String node;
+  final Publisher publisher;
+  final Logger logger;
+  final ConcurrentHashMap<String,Snapshot> snapshots = new ConcurrentHashMap<>();
+  ScheduledExecutorService scheduler;
+  long intervalmillis = 0L;
+
+  /**
+   * @param metrics This server's metrics.
+   * @param node This server's name or null if it isn't known, in which 
+   * case nothing is published.
+   * @param publisher Sends snapshots to the other servers.
+   * @param logger 
+   */
+  public ClusterMetrics( MetricsRegistry metrics, String node, Publisher publisher, Logger logger )
+  {
+    this.metrics   = metrics;
+    this.node      = node;
+    this.publisher = publisher;
+    this.logger    = logger;
+  }
+  
+  public synchronized void start()
+  {
+    if ( scheduler != null )
+      return;
+    scheduler = Executors.newSingleThreadScheduledExecutor( r -> 
+    {
+      Thread t = new Thread( r, "ClusterMetrics" );
+      t.setDaemon( true );
+      return t;
+    });
+    schedule();
+  }
+  
+  public void stop()
+  {
+    ScheduledExecutorService s;
+    synchronized ( this )
+    {
+      s = scheduler;
+      scheduler = null;
+    }
+    if ( s != null )
+      s.shutdownNow();
+  }
+  
+  /**
+   * @param intervalmillis How often to publish. Zero stops publishing but 
+   * snapshots from other servers are still received.
+   */
+  public synchronized void configure( long intervalmillis )
+  {
+    if ( this.intervalmillis == intervalmillis )
+      return;
+    this.intervalmillis = Math.max( 0L, intervalmillis );
+    if ( scheduler != null )
+    {
+      // Replace the scheduler so the old period is dropped.
+      scheduler.shutdownNow();
+      scheduler = null;
+      start();
+    }
+  }
+  
+  private void schedule()
+  {
+    if ( node == null )
+    {
+      if ( intervalmillis > 0L )
+        logger.warn( "This server has no name so its metrics won't be sent to other servers." );
+      return;
+    }
+    if ( intervalmillis > 0L )
+      scheduler.scheduleAtFixedRate( this::publish, intervalmillis, intervalmillis, TimeUnit.MILLISECONDS );
+  }
+  
+  public synchronized long getIntervalMillis()
+  {
+    return intervalmillis;
+  }
+  
+  /**
+   * Take a snapshot of this server's metrics, keep it and send it to the
+   * other servers.
+   */
+  public void publish()
+  {
+    try
+    {
+      long now = System.currentTimeMillis();
+      long interval = getIntervalMillis();
+      LinkedHashMap<String,Double> values = takeValues();
+      snapshots.put( node, new Snapshot( node, now, now, interval, values ) );
+      publisher.publish( encode( node, now, interval, values ) );
+    }
+    catch ( Throwable th )
+    {
+      logger.error( "Unable to publish metrics to other servers.", th );
+    }
+  }
+  
+  LinkedHashMap<String,Double> takeValues()
+  {
+    LinkedHashMap<String,Double> values = new LinkedHashMap<>();
+    for ( MetricsRegistry.Counter c : metrics.getCounters() )
+      values.put( "c" + c.getName() + (c.getLabelName() == null ? "" : "{" + c.getLabelValue() + "}"), (double)c.get() );
+    for ( MetricsRegistry.Histogram h : metrics.getHistograms() )
+    {
+      long p50 = h.getPercentileMicros( 0.5 );
+      long p99 = h.getPercentileMicros( 0.99 );
+      values.put( "c" + h.getName() + "_count", (double)h.getCount() );
+      values.put( "p" + h.getName() + "_p50ms", p50 < 0L ? Double.POSITIVE_INFINITY : p50 / 1000.0 );
+      values.put( "p" + h.getName() + "_p99ms", p99 < 0L ? Double.POSITIVE_INFINITY : p99 / 1000.0 );
+    }
+    for ( MetricsRegistry.Gauge g : metrics.getGauges() )
+      values.put( (g.getName().endsWith( "_ratio" ) ? "r" : "g") + g.getName(), g.get() );
+    return values;
+  }
+  
+  static String encode( String node, long taken, long interval, Map<String,Double> values ) throws UnsupportedEncodingException
+  {
+    StringBuilder sb = new StringBuilder( 64 + 40 * values.size() );
+    sb.append( MESSAGE_PREFIX ).append( URLEncoder.encode( node, "UTF-8" ) ).append( ';' ).append( taken ).append( ';' ).append( interval );
+    for ( Map.Entry<String,Double> e : values.entrySet() )
+    {
+      sb.append( ';' ).append( URLEncoder.encode( e.getKey(), "UTF-8" ) ).append( '=' );
+      double d = e.getValue();
+      if ( d == Math.rint( d ) && Math.abs( d ) < 1e15 )
+        sb.append( (long)d );
+      else
+        sb.append( d );
+    }
+    return sb.toString();
+  }
+  
+  /**
+   * Take in a message from another server.
+   * 
+   * @param message The text of the message.
+   * @return False if it was not a metrics message or couldn't be read.
+   */
+  public boolean accept( String message )
+  {
+    if ( message == null || !message.startsWith( MESSAGE_PREFIX ) )
+      return false;
+    try
+    {
+      String[] parts = message.substring( MESSAGE_PREFIX.length() ).split( ";" );
+      String from = URLDecoder.decode( parts[0], "UTF-8" );
+      // Our own snapshot was kept when it was sent.
+      if ( from.equals( node ) )
+        return true;
+      long taken = Long.parseLong( parts[1] );
+      long interval = 0L;
+      int first = 2;
+      if ( parts.length > 2 && parts[2].indexOf( '=' ) < 0 )
+        interval = Long.parseLong( parts[first++] );
+      LinkedHashMap<String,Double> values = new LinkedHashMap<>();
+      for ( int i=first; i<parts.length; i++ )
+      {
+        int eq = parts[i].indexOf( '=' );
+        if ( eq > 1 )
+          values.put( URLDecoder.decode( parts[i].substring( 0, eq ), "UTF-8" ), Double.parseDouble( parts[i].substring( eq+1 ) ) );
+      }
+      snapshots.put( from, new Snapshot( from, taken, System.currentTimeMillis(), interval, values ) );
+      return true;
+    }
+    catch ( Exception e )
+    {
+      logger.warn( "Unable to read metrics from another server.", e );
+      return false;
+    }
+  }
+  
+  /**
+   * @return The latest snapshot from each server, sorted by server name.
+   * Snapshots that have been stale for a long time are removed.
+   */
+  public List<Snapshot> getSnapshots()
+  {
+    long now = System.currentTimeMillis();
+    snapshots.values().removeIf( s -> now - s.received > getMaximumAge( s ) + STALE_KEEP_MILLIS );
+    ArrayList<Snapshot> list = new ArrayList<>( snapshots.values() );
+    Collections.sort( list, Comparator.comparing( Snapshot::getNode ) );
+    return list;
+  }
+  
+  /**
+   * @return Every key found in any of the snapshots.
+   */
+  public static List<String> getKeys( List<Snapshot> list )
+  {
+    LinkedHashSet<String> keys = new LinkedHashSet<>();
+    for ( Snapshot s : list )
+      keys.addAll( s.values.keySet() );
+    return new ArrayList<>( keys );
+  }
+  
+  /**
+   * Combine one value across the snapshots according to its type letter.
+   * 
+   * @param list The snapshots.
+   * @param key The key.
+   * @return The total, average or worst value.
+   */
+  public static double total( List<Snapshot> list, String key )
+  {
+    double total = 0.0;
+    int n = 0;
+    for ( Snapshot s : list )
+    {
+      Double d = s.values.get( key );
+      if ( d == null )
+        continue;
+      if ( key.charAt( 0 ) == 'p' )
+        total = Math.max( total, d );
+      else
+        total += d;
+      n++;
+    }
+    if ( key.charAt( 0 ) == 'r' && n > 0 )
+      total /= n;
+    return total;
+  }
+  
+  /**
+   * A snapshot is stale if it is older than three of the sending server's
+   * publishing intervals, i.e. at least two have been missed. If the 
+   * server didn't say how often it publishes, or has stopped publishing, 
+   * a fixed maximum age is used.
+   * 
+   * @param s The snapshot.
+   * @param now The current time.
+   * @return True if the server seems to have stopped publishing.
+   */
+  public boolean isStale( Snapshot s, long now )
+  {
+    return now - s.received > getMaximumAge( s );
+  }
+  
+  static long getMaximumAge( Snapshot s )
+  {
+    return s.interval > 0L ? 3L * s.interval : DEFAULT_MAXIMUM_AGE_MILLIS;
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * An immutable, ready to use form of a RuleConfig. The regular expressions
+ * are compiled and the size threshold is converted to bytes once, when the
+ * configuration is loaded, instead of for every Xythos event.
+ * 
+ * @author jon
+ */
+public class CompiledRule
+{
+  public static final long BYTES_PER_MB = 1024L*1024L;
+  static final Pattern BODY_END = Pattern.compile( "</body>", Pattern.CASE_INSENSITIVE );
+  
+  final RuleConfig rule;
+  final String     name;
+  final long       thresholdbytes;
+  final boolean    adminonly;
+  final boolean    shadow;
+  final Pattern    typepattern;
+  final Pattern    pathpattern;
+  final EmailTemplate subjecttemplate;
+  final EmailTemplate bodytemplate;
+  final EmailTemplate digestbodytemplate;
+  final MetricsRegistry.Counter matches;
+
+  /**
+   * Compile a rule.
+   * 
+   * @param rule The rule as it was configured.
+   * @param metrics Where to find the rule's match counter. Counters are 
+   * by name so they carry on when the rules are recompiled.
+   * @throws PatternSyntaxException If either regular expression is invalid.
+   */
+  public CompiledRule( RuleConfig rule, MetricsRegistry metrics ) throws PatternSyntaxException
+  {
+    this.rule           = rule;
+    this.name           = rule.getName();
+    this.thresholdbytes = BYTES_PER_MB * rule.getFileSize();
+    this.adminonly      = rule.isAdminOnly();
+    this.shadow         = rule.isShadow();
+    // A null regex would have thrown an exception in String.matches so
+    // treat it like an empty one.
+    this.typepattern    = Pattern.compile( rule.getTypeRegex() == null ? "" : rule.getTypeRegex() );
+    this.pathpattern    = Pattern.compile( rule.getPathRegex() == null ? "" : rule.getPathRegex() );
+    this.subjecttemplate = EmailTemplate.compile( rule.getEmailSubject() );
+    this.bodytemplate    = EmailTemplate.compile( rule.getEmailBody() );
+    // A body without a repeating section would only describe the first
+    // file of a digest so list all of them at the end.
+    this.digestbodytemplate = bodytemplate.hasSection() ? 
+            bodytemplate : 
+            EmailTemplate.compile( withFileList( bodytemplate.getSource() ) );
+    this.matches = shadow ?
+            metrics.counter( "rule_shadow_matches_total", "Files matched by each shadow rule", "rule", name ) :
+            metrics.counter( "rule_matches_total", "Files matched by each rule", "rule", name );
+  }
+
+  /**
+   * Add a list of files to the end of a body, inside the HTML body element
+   * if it has one so that the email is still well formed.
+   */
+  static String withFileList( String source )
+  {
+    Matcher m = BODY_END.matcher( source );
+    int end = -1;
+    while ( m.find() )
+      end = m.start();
+    if ( end < 0 )
+      return source + "{filelist}";
+    return source.substring( 0, end ) + "{filelist}" + source.substring( end );
+  }
+
+  /**
+   * @return Counter of files this rule has matched.
+   */
+  public MetricsRegistry.Counter getMatches()
+  {
+    return matches;
+  }
+  
+  public RuleConfig getRule()
+  {
+    return rule;
+  }
+
+  public String getName()
+  {
+    return name;
+  }
+
+  public long getThresholdBytes()
+  {
+    return thresholdbytes;
+  }
+
+  public boolean isAdminOnly()
+  {
+    return adminonly;
+  }
+
+  /**
+   * @return True if the rule only counts the files it matches and takes
+   * no action.
+   */
+  public boolean isShadow()
+  {
+    return shadow;
+  }
+
+  public EmailTemplate getSubjectTemplate()
+  {
+    return subjecttemplate;
+  }
+
+  /**
+   * @param digest True if the email is about more than one file.
+   * @return The template for the email body.
+   */
+  public EmailTemplate getBodyTemplate( boolean digest )
+  {
+    return digest ? digestbodytemplate : bodytemplate;
+  }
+  
+  /**
+   * Does the file meet the size, MIME type and path filters of this rule?
+   * 
+   * @param size Size of the file in bytes.
+   * @param type MIME type of the file.
+   * @param path Full path of the file.
+   * @return True if all three filters match.
+   */
+  public boolean matchesFile( long size, String type, String path )
+  {
+    return size >= thresholdbytes &&
+           typepattern.matcher( type ).matches() &&
+           pathpattern.matcher( path ).matches();
+  }
+  
+  /**
+   * Does the user meet the admin only filter of this rule?
+   * 
+   * @param username The BB user name of the file creator.
+   * @return True if the rule applies to this user.
+   */
+  public boolean matchesUser( String username )
+  {
+    return !adminonly || (username != null && username.endsWith( "admin" ));
+  }
+}
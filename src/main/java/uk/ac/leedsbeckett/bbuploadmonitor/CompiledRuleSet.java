@@ -0,0 +1,201 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.PatternSyntaxException;
+import org.apache.log4j.Logger;
+
+/**
+ * An immutable snapshot of the enabled rules in a Config. A new one is built
+ * every time the configuration is reloaded and swapped in as a whole so the
+ * event listener never sees a half updated set of rules.
+ * 
+ * @author jon
+ */
+public class CompiledRuleSet
+{
+  public static final CompiledRuleSet EMPTY = new CompiledRuleSet( Collections.<CompiledRule>emptyList() );
+  
+  final List<CompiledRule> rules;
+  final List<CompiledRule> shadowrules;
+  final RuleIndex index;
+  final RuleIndex shadowindex;
+  final long minimumthreshold;
+  final long minimumactionthreshold;
+  final long minimumshadowthreshold;
+
+  CompiledRuleSet( List<CompiledRule> all )
+  {
+    ArrayList<CompiledRule> live = new ArrayList<>();
+    ArrayList<CompiledRule> shadow = new ArrayList<>();
+    long min = Long.MAX_VALUE;
+    long minaction = Long.MAX_VALUE;
+    long minshadow = Long.MAX_VALUE;
+    for ( CompiledRule rule : all )
+    {
+      if ( rule.isShadow() )
+      {
+        shadow.add( rule );
+        minshadow = Math.min( minshadow, rule.getThresholdBytes() );
+        if ( rule.getRule().isActionEmail() || rule.getRule().isActionOverwrite() )
+          minaction = Math.min( minaction, rule.getThresholdBytes() );
+        continue;
+      }
+      live.add( rule );
+      min = Math.min( min, rule.getThresholdBytes() );
+      if ( rule.getRule().isActionEmail() || rule.getRule().isActionOverwrite() )
+        minaction = Math.min( minaction, rule.getThresholdBytes() );
+    }
+    this.rules = Collections.unmodifiableList( live );
+    this.shadowrules = Collections.unmodifiableList( shadow );
+    this.index = new RuleIndex( live );
+    this.shadowindex = new RuleIndex( shadow );
+    this.minimumthreshold = min;
+    this.minimumactionthreshold = minaction;
+    this.minimumshadowthreshold = minshadow;
+  }
+  
+  /**
+   * Build a rule set from the enabled rules in a configuration. Rules
+   * with invalid regular expressions are logged and left out.
+   * 
+   * @param config The configuration.
+   * @param logger Where to report rules that cannot be compiled. May be null.
+   * @param metrics Where the rules' counters are.
+   * @return A new rule set.
+   */
+  public static CompiledRuleSet compile( Config config, Logger logger, MetricsRegistry metrics )
+  {
+    return compile( config, logger, metrics, false );
+  }
+  
+  /**
+   * Build a rule set from a configuration, optionally including the
+   * disabled rules so they can be tried out in a simulation.
+   * 
+   * @param config The configuration.
+   * @param logger Where to report rules that cannot be compiled. May be null.
+   * @param metrics Where the rules' counters are.
+   * @param includedisabled True to include rules that are not enabled.
+   * @return A new rule set.
+   */
+  public static CompiledRuleSet compile( Config config, Logger logger, MetricsRegistry metrics, boolean includedisabled )
+  {
+    ArrayList<CompiledRule> list = new ArrayList<>();
+    for ( RuleConfig rule : config.getRules() )
+    {
+      if ( !rule.isEnabled() && !includedisabled )
+        continue;
+      try
+      {
+        list.add( new CompiledRule( rule, metrics ) );
+      }
+      catch ( PatternSyntaxException psex )
+      {
+        if ( logger != null )
+          logger.error( "Rule " + rule.getName() + " has an invalid regular expression and will be ignored.", psex );
+      }
+    }
+    return new CompiledRuleSet( list );
+  }
+
+  /**
+   * @return The compiled live rules in the order they were configured.
+   */
+  public List<CompiledRule> getRules()
+  {
+    return rules;
+  }
+  
+  /**
+   * @param size Size of the file in bytes.
+   * @param type MIME type of the file.
+   * @param path Full path of the file.
+   * @return Positions in getRules() of the live rules that could match
+   * the file.
+   */
+  public BitSet getCandidates( long size, String type, String path )
+  {
+    return index.candidates( size, type, path );
+  }
+  
+  /**
+   * @param size Size of the file in bytes.
+   * @param type MIME type of the file.
+   * @param path Full path of the file.
+   * @return Positions in getShadowRules() of the shadow rules that could
+   * match the file.
+   */
+  public BitSet getShadowCandidates( long size, String type, String path )
+  {
+    return shadowindex.candidates( size, type, path );
+  }
+  
+  /**
+   * Shadow rules are checked against the same events as the live rules
+   * but only count matches. Each is checked on its own, whatever the
+   * live rules or other shadow rules matched, so continuation is ignored.
+   * 
+   * @return The compiled shadow rules in the order they were configured.
+   */
+  public List<CompiledRule> getShadowRules()
+  {
+    return shadowrules;
+  }
+  
+  /**
+   * Files smaller than this cannot match any rule so they can be rejected
+   * before anything expensive is done.
+   * 
+   * @return The smallest size threshold of all the rules, in bytes, or
+   * Long.MAX_VALUE if there are no rules.
+   */
+  public long getMinimumThreshold()
+  {
+    return minimumthreshold;
+  }
+  
+  /**
+   * Files smaller than this can only be logged, not emailed about or
+   * overwritten, by the live rules or, in a trial, by the shadow rules.
+   * 
+   * @return The smallest size threshold of the live or shadow rules that
+   * email or overwrite, in bytes, or Long.MAX_VALUE if there are none.
+   */
+  public long getMinimumActionThreshold()
+  {
+    return minimumactionthreshold;
+  }
+  
+  /**
+   * @return The smallest size threshold of the shadow rules, in bytes, or
+   * Long.MAX_VALUE if there are none.
+   */
+  public long getMinimumShadowThreshold()
+  {
+    return minimumshadowthreshold;
+  }
+  
+  public boolean isEmpty()
+  {
+    return rules.isEmpty() && shadowrules.isEmpty();
+  }
+}
@@ -21,16 +21,33 @@ public class Config
   String userName = "administrator";
   String emailFrom = "";
   String emailFromName = "";
+  int userCacheSize = 1000;
+  int userCacheTtlSeconds = 600;
+  int emailSenderThreads = 2;
+  int emailQueueCapacity = 10000;
+  int emailMaxAttempts = 5;
+  int emailRetrySeconds = 60;
+  int emailTimeoutSeconds = 30;
+  int digestWindowSeconds = 0;
+  int dailyEmailCap = 0;
+  int overwriteThreads = 2;
+  int overwritePerServerLimit = 2;
+  int overwriteBatchSize = 10;
+  boolean overwriteLargestFirst = false;
+  int intakeThreads = 2;
+  int intakeCapacity = 10000;
+  String intakePolicy = "SPILL";
+  int intakeBlockMillis = 5;
+  int coalesceMillis = 1000;
+  boolean virtualThreads = false;
+  int xythosConcurrency = 8;
+  int databaseConcurrency = 8;
+  int smtpConcurrency = 4;
+  int overwriteAgingMbPerMinute = 100;
+  String metricsToken = "";
+  int metricsPublishSeconds = 60;
   ArrayList<RuleConfig> rules = new ArrayList<>();
 
-  public Config()
-  {
-    for ( int i=0; i<5; i++ )
-    {
-      rules.add( new RuleConfig() );
-      rules.get( i ).setN( i );
-    }
-  }
   
   public Level getLoglevel() {
     return loglevel;
@@ -71,6 +88,205 @@ public class Config
     this.emailFromName = emailFromName;
   }
 
+  public int getUserCacheSize() {
+    return userCacheSize;
+  }
+
+  public void setUserCacheSize(int userCacheSize) {
+    this.userCacheSize = userCacheSize;
+  }
+
+  public int getUserCacheTtlSeconds() {
+    return userCacheTtlSeconds;
+  }
+
+  public void setUserCacheTtlSeconds(int userCacheTtlSeconds) {
+    this.userCacheTtlSeconds = userCacheTtlSeconds;
+  }
+
+  public int getEmailSenderThreads() {
+    return emailSenderThreads;
+  }
+
+  public void setEmailSenderThreads(int emailSenderThreads) {
+    this.emailSenderThreads = emailSenderThreads;
+  }
+
+  public int getEmailQueueCapacity() {
+    return emailQueueCapacity;
+  }
+
+  public void setEmailQueueCapacity(int emailQueueCapacity) {
+    this.emailQueueCapacity = emailQueueCapacity;
+  }
+
+  public int getEmailMaxAttempts() {
+    return emailMaxAttempts;
+  }
+
+  public void setEmailMaxAttempts(int emailMaxAttempts) {
+    this.emailMaxAttempts = emailMaxAttempts;
+  }
+
+  public int getEmailRetrySeconds() {
+    return emailRetrySeconds;
+  }
+
+  public void setEmailRetrySeconds(int emailRetrySeconds) {
+    this.emailRetrySeconds = emailRetrySeconds;
+  }
+
+  public int getEmailTimeoutSeconds() {
+    return emailTimeoutSeconds;
+  }
+
+  public void setEmailTimeoutSeconds(int emailTimeoutSeconds) {
+    this.emailTimeoutSeconds = emailTimeoutSeconds;
+  }
+
+  public int getDigestWindowSeconds() {
+    return digestWindowSeconds;
+  }
+
+  public void setDigestWindowSeconds(int digestWindowSeconds) {
+    this.digestWindowSeconds = digestWindowSeconds;
+  }
+
+  public int getDailyEmailCap() {
+    return dailyEmailCap;
+  }
+
+  public void setDailyEmailCap(int dailyEmailCap) {
+    this.dailyEmailCap = dailyEmailCap;
+  }
+
+  public int getOverwriteThreads() {
+    return overwriteThreads;
+  }
+
+  public void setOverwriteThreads(int overwriteThreads) {
+    this.overwriteThreads = overwriteThreads;
+  }
+
+  public int getOverwritePerServerLimit() {
+    return overwritePerServerLimit;
+  }
+
+  public void setOverwritePerServerLimit(int overwritePerServerLimit) {
+    this.overwritePerServerLimit = overwritePerServerLimit;
+  }
+
+  public int getOverwriteBatchSize() {
+    return overwriteBatchSize;
+  }
+
+  public void setOverwriteBatchSize(int overwriteBatchSize) {
+    this.overwriteBatchSize = overwriteBatchSize;
+  }
+
+  public boolean isOverwriteLargestFirst() {
+    return overwriteLargestFirst;
+  }
+
+  public void setOverwriteLargestFirst(boolean overwriteLargestFirst) {
+    this.overwriteLargestFirst = overwriteLargestFirst;
+  }
+
+  public int getIntakeThreads() {
+    return intakeThreads;
+  }
+
+  public void setIntakeThreads(int intakeThreads) {
+    this.intakeThreads = intakeThreads;
+  }
+
+  public int getIntakeCapacity() {
+    return intakeCapacity;
+  }
+
+  public void setIntakeCapacity(int intakeCapacity) {
+    this.intakeCapacity = intakeCapacity;
+  }
+
+  public String getIntakePolicy() {
+    return intakePolicy;
+  }
+
+  public void setIntakePolicy(String intakePolicy) {
+    this.intakePolicy = intakePolicy;
+  }
+
+  public int getIntakeBlockMillis() {
+    return intakeBlockMillis;
+  }
+
+  public void setIntakeBlockMillis(int intakeBlockMillis) {
+    this.intakeBlockMillis = intakeBlockMillis;
+  }
+
+  public int getCoalesceMillis() {
+    return coalesceMillis;
+  }
+
+  public void setCoalesceMillis(int coalesceMillis) {
+    this.coalesceMillis = coalesceMillis;
+  }
+
+  public boolean isVirtualThreads() {
+    return virtualThreads;
+  }
+
+  public void setVirtualThreads(boolean virtualThreads) {
+    this.virtualThreads = virtualThreads;
+  }
+
+  public int getXythosConcurrency() {
+    return xythosConcurrency;
+  }
+
+  public void setXythosConcurrency(int xythosConcurrency) {
+    this.xythosConcurrency = xythosConcurrency;
+  }
+
+  public int getDatabaseConcurrency() {
+    return databaseConcurrency;
+  }
+
+  public void setDatabaseConcurrency(int databaseConcurrency) {
+    this.databaseConcurrency = databaseConcurrency;
+  }
+
+  public int getSmtpConcurrency() {
+    return smtpConcurrency;
+  }
+
+  public void setSmtpConcurrency(int smtpConcurrency) {
+    this.smtpConcurrency = smtpConcurrency;
+  }
+
+  public int getOverwriteAgingMbPerMinute() {
+    return overwriteAgingMbPerMinute;
+  }
+
+  public void setOverwriteAgingMbPerMinute(int overwriteAgingMbPerMinute) {
+    this.overwriteAgingMbPerMinute = overwriteAgingMbPerMinute;
+  }
+
+  public String getMetricsToken() {
+    return metricsToken;
+  }
+
+  public void setMetricsToken(String metricsToken) {
+    this.metricsToken = metricsToken;
+  }
+
+  public int getMetricsPublishSeconds() {
+    return metricsPublishSeconds;
+  }
+
+  public void setMetricsPublishSeconds(int metricsPublishSeconds) {
+    this.metricsPublishSeconds = metricsPublishSeconds;
+  }
   
   
   public ArrayList<RuleConfig> getRules()
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import org.apache.log4j.Logger;
+
+/**
+ * Journal of the email outbox. A record is written when a message is 
+ * queued and another when it has been sent or given up on, so messages
+ * that were waiting when the server stopped can be queued again when it
+ * starts.
+ * 
+ * @author jon
+ */
+public class EmailJournal extends Journal
+{
+  static final byte RECORD_QUEUED = 1;
+  static final byte RECORD_DONE   = 2;
+  
+  final LinkedHashMap<Long,OutgoingEmail> live = new LinkedHashMap<>();
+
+  public EmailJournal( Path file, long syncintervalmillis, Logger logger )
+  {
+    super( file, syncintervalmillis, logger );
+  }
+  
+  /**
+   * @return The messages which were not finished with when the journal
+   * was last closed, oldest first.
+   */
+  public synchronized List<OutgoingEmail> getPending()
+  {
+    return new ArrayList<>( live.values() );
+  }
+  
+  public synchronized void recordQueued( OutgoingEmail email ) throws IOException
+  {
+    live.put( email.getId(), email );
+    writeQueued( email );
+  }
+  
+  public synchronized void recordDone( OutgoingEmail email ) throws IOException
+  {
+    if ( live.remove( email.getId() ) == null )
+      return;
+    PayloadBuilder p = new PayloadBuilder();
+    p.writeLong( email.getId() );
+    append( RECORD_DONE, p.toByteArray() );
+    compactIfWorthwhile();
+  }
+
+  private void writeQueued( OutgoingEmail email ) throws IOException
+  {
+    PayloadBuilder p = new PayloadBuilder();
+    p.writeLong( email.getId() );
+    p.writeLong( email.getCreated() );
+    writeString( p, email.getFrom()     );
+    writeString( p, email.getFromName() );
+    writeString( p, email.getTo()       );
+    writeString( p, email.getToName()   );
+    writeString( p, email.getCc()       );
+    writeString( p, email.getSubject()  );
+    writeString( p, email.getBody()     );
+    append( RECORD_QUEUED, p.toByteArray() );
+  }
+  
+  @Override
+  protected void replayRecord( byte type, DataInputStream in ) throws IOException
+  {
+    long id = in.readLong();
+    if ( type == RECORD_DONE )
+    {
+      live.remove( id );
+      return;
+    }
+    if ( type != RECORD_QUEUED )
+      throw new IOException( "Unknown email journal record type " + type );
+    long created = in.readLong();
+    OutgoingEmail email = new OutgoingEmail( id, created, 
+            readString( in ), readString( in ), readString( in ), readString( in ), 
+            readString( in ), readString( in ), readString( in ) );
+    live.put( id, email );
+  }
+
+  @Override
+  protected void writeLiveRecords() throws IOException
+  {
+    for ( OutgoingEmail email : live.values() )
+      writeQueued( email );
+  }
+
+  @Override
+  protected int getLiveCount()
+  {
+    return live.size();
+  }
+}
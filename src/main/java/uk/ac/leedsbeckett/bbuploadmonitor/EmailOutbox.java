@@ -0,0 +1,326 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.log4j.Logger;
+
+/**
+ * Holds rendered email messages until a pool of sender threads can deliver
+ * them. This means the Xythos event listener only has to put a message in 
+ * the outbox and is never held up by a slow or unreachable SMTP server. 
+ * Messages that fail are put back with an increasing delay and given up 
+ * after a configured number of attempts. If a journal is set every message
+ * is recorded in it until it has been dealt with so nothing is lost when
+ * the server restarts.
+ * 
+ * @author jon
+ */
+public class EmailOutbox
+{
+  public static final long MAXIMUM_RETRY_DELAY_MILLIS = 60L*60L*1000L;
+  public static final long STOP_WAIT_MILLIS = 10000L;
+  
+  final EmailSender sender;
+  final Logger logger;
+  final DelayQueue<OutgoingEmail> queue = new DelayQueue<>();
+  final AtomicInteger depth = new AtomicInteger();
+  final AtomicLong nextid = new AtomicLong( System.currentTimeMillis() );
+  final ArrayList<Thread> senders = new ArrayList<>();
+  EmailJournal journal;
+  ExecutionMode executionmode = ExecutionMode.PLATFORM;
+  
+  volatile int  capacity        = 10000;
+  volatile int  maximumattempts = 5;
+  volatile long retrydelaymillis = 60000L;
+  int concurrency = 2;
+  boolean running = false;
+  
+  final LongAdder enqueued = new LongAdder();
+  final LongAdder rejected = new LongAdder();
+  final LongAdder sent     = new LongAdder();
+  final LongAdder retried  = new LongAdder();
+  final LongAdder failed   = new LongAdder();
+
+  public EmailOutbox( EmailSender sender, Logger logger )
+  {
+    this.sender = sender;
+    this.logger = logger;
+  }
+
+  /**
+   * Set the tunable parameters. Can be called while running, the number of
+   * sender threads is adjusted to match.
+   * 
+   * @param concurrency Number of sender threads.
+   * @param capacity Maximum number of messages waiting.
+   * @param maximumattempts How many times to try each message.
+   * @param retrydelaymillis Delay before the first retry, doubled for each subsequent one.
+   */
+  public synchronized void configure( int concurrency, int capacity, int maximumattempts, long retrydelaymillis )
+  {
+    this.concurrency      = Math.max( 1, concurrency );
+    this.capacity         = Math.max( 1, capacity );
+    this.maximumattempts  = Math.max( 1, maximumattempts );
+    this.retrydelaymillis = Math.max( 1000L, retrydelaymillis );
+    if ( running )
+      adjustSenders();
+  }
+  
+  /**
+   * Decides whether sender threads are virtual. Only affects threads 
+   * started afterwards.
+   */
+  public synchronized void setExecutionMode( ExecutionMode executionmode )
+  {
+    this.executionmode = executionmode;
+  }
+  
+  /**
+   * Use a journal which has been opened and queue the messages which it 
+   * says were not sent before the last shutdown. Call before start.
+   * 
+   * @param journal The journal.
+   */
+  public synchronized void setJournal( EmailJournal journal )
+  {
+    this.journal = journal;
+    int n=0;
+    for ( OutgoingEmail email : journal.getPending() )
+    {
+      if ( email.getId() >= nextid.get() )
+        nextid.set( email.getId() );
+      depth.incrementAndGet();
+      queue.add( email );
+      n++;
+    }
+    logger.info( "Email outbox restored " + n + " messages from journal." );
+  }
+  
+  public synchronized void start()
+  {
+    if ( running )
+      return;
+    running = true;
+    adjustSenders();
+  }
+  
+  /**
+   * Stop the sender threads and wait a while for any message being sent
+   * to finish so that it is journaled before the journal is closed.
+   */
+  public synchronized void stop()
+  {
+    ArrayList<Thread> stopping = new ArrayList<>( senders );
+    running = false;
+    adjustSenders();
+    for ( Thread t : stopping )
+    {
+      try { t.join( STOP_WAIT_MILLIS ); }
+      catch ( InterruptedException ex ) { Thread.currentThread().interrupt(); }
+      if ( t.isAlive() )
+        logger.error( t.getName() + " did not stop. A message it was sending may be sent again after restart." );
+    }
+  }
+  
+  /**
+   * Start or interrupt sender threads until there are the right number.
+   */
+  private void adjustSenders()
+  {
+    int wanted = running ? concurrency : 0;
+    while ( senders.size() > wanted )
+      senders.remove( senders.size()-1 ).interrupt();
+    while ( senders.size() < wanted )
+    {
+      Thread t = executionmode.newThread( "EmailOutbox-" + senders.size(), this::run );
+      senders.add( t );
+      t.start();
+    }
+  }
+  
+  /**
+   * Create a message and put it in the outbox. Never blocks.
+   * 
+   * @return False if the outbox was full and the message was discarded.
+   */
+  public boolean enqueue( String from, String fromname, String to, String toname, String cc, String subject, String body )
+  {
+    return enqueue( new OutgoingEmail( nextid.incrementAndGet(), System.currentTimeMillis(), 
+                                       from, fromname, to, toname, cc, subject, body ) );
+  }
+  
+  boolean enqueue( OutgoingEmail email )
+  {
+    if ( depth.incrementAndGet() > capacity )
+    {
+      depth.decrementAndGet();
+      rejected.increment();
+      logger.error( "Email outbox is full. Discarding message to " + email.getTo() );
+      return false;
+    }
+    journalQueued( email );
+    queue.add( email );
+    enqueued.increment();
+    return true;
+  }
+  
+  private void journalQueued( OutgoingEmail email )
+  {
+    EmailJournal j = journal;
+    if ( j == null )
+      return;
+    try
+    {
+      j.recordQueued( email );
+    }
+    catch ( IOException ex )
+    {
+      logger.error( "Unable to journal email to " + email.getTo(), ex );
+    }
+  }
+  
+  private void journalDone( OutgoingEmail email )
+  {
+    EmailJournal j = journal;
+    if ( j == null )
+      return;
+    try
+    {
+      j.recordDone( email );
+    }
+    catch ( IOException ex )
+    {
+      logger.error( "Unable to journal email to " + email.getTo(), ex );
+    }
+  }
+  
+  /**
+   * The main loop of each sender thread.
+   */
+  void run()
+  {
+    logger.info( Thread.currentThread().getName() + " has started." );
+    while ( !Thread.currentThread().isInterrupted() )
+    {
+      OutgoingEmail email;
+      try
+      {
+        email = queue.take();
+      }
+      catch ( InterruptedException ex )
+      {
+        break;
+      }
+      deliver( email );
+    }
+    logger.info( Thread.currentThread().getName() + " has stopped." );
+  }
+
+  /**
+   * Try once to send a message and decide what to do with it if that 
+   * failed.
+   * 
+   * @param email The message, which has been taken out of the queue.
+   */
+  void deliver( OutgoingEmail email )
+  {
+    email.attempts++;
+    try
+    {
+      sender.send( email );
+      journalDone( email );
+      depth.decrementAndGet();
+      sent.increment();
+      return;
+    }
+    catch ( Exception ex )
+    {
+      logger.error( "Exception while attempting to send an email to " + email.getTo() + 
+                    " (attempt " + email.attempts + ")", ex );
+    }
+    
+    if ( email.attempts >= maximumattempts )
+    {
+      journalDone( email );
+      depth.decrementAndGet();
+      failed.increment();
+      logger.error( "Giving up on email to " + email.getTo() + " subject " + email.getSubject() );
+      return;
+    }
+    long delay = Math.min( MAXIMUM_RETRY_DELAY_MILLIS, retrydelaymillis << Math.min( 20, email.attempts-1 ) );
+    email.notbefore = System.currentTimeMillis() + delay;
+    retried.increment();
+    queue.add( email );
+  }
+
+  /**
+   * @return Number of messages waiting to be sent, including any being 
+   * sent right now.
+   */
+  public int getDepth()
+  {
+    return depth.get();
+  }
+  
+  /**
+   * Looks through the whole queue so only for occasional use.
+   * @return Age in milliseconds of the oldest message waiting or zero.
+   */
+  public long getOldestAgeMillis()
+  {
+    long oldest = Long.MAX_VALUE;
+    for ( OutgoingEmail email : queue )
+      oldest = Math.min( oldest, email.getCreated() );
+    return oldest == Long.MAX_VALUE ? 0L : System.currentTimeMillis() - oldest;
+  }
+
+  public int getCapacity()
+  {
+    return capacity;
+  }
+
+  public long getEnqueued()
+  {
+    return enqueued.sum();
+  }
+
+  public long getRejected()
+  {
+    return rejected.sum();
+  }
+
+  public long getSent()
+  {
+    return sent.sum();
+  }
+
+  public long getRetried()
+  {
+    return retried.sum();
+  }
+
+  public long getFailed()
+  {
+    return failed.sum();
+  }
+}
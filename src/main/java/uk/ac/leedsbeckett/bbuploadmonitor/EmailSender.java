@@ -0,0 +1,32 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+/**
+ * Something that can deliver a rendered email message.
+ * 
+ * @author jon
+ */
+public interface EmailSender
+{
+  /**
+   * Deliver one message. 
+   * @param email The message.
+   * @throws Exception If delivery failed and might succeed if tried later.
+   */
+  void send( OutgoingEmail email ) throws Exception;
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An email subject or body that has been split up, once, into literal text
+ * and placeholders so that it can be rendered in a single pass. Placeholders
+ * are names in curly brackets, e.g. {filename}. Text between {#files} and
+ * {/files} is a section that is rendered once for each file row. {filelist}
+ * is shorthand for a section that renders a simple HTML list of files.
+ * Placeholders which have no value are left in the output as they were.
+ * 
+ * @author jon
+ */
+public class EmailTemplate
+{
+  public static final String SECTION_NAME = "files";
+  
+  /**
+   * What {filelist} stands for.
+   */
+  public static final String DEFAULT_FILE_LIST = 
+          "<ul>{#files}<li>{filename} ({filesize_mb}MB)</li>{/files}</ul>";
+  
+  private static final ThreadLocal<StringBuilder> BUILDER = 
+          ThreadLocal.withInitial( () -> new StringBuilder( 8*1024 ) );
+  
+  final String source;
+  final Segment[] segments;
+  final boolean hassection;
+  
+  private EmailTemplate( String source, List<Segment> segments )
+  {
+    this.source = source;
+    this.segments = segments.toArray( new Segment[segments.size()] );
+    boolean b = false;
+    for ( Segment s : segments )
+      b = b || s.section != null;
+    this.hassection = b;
+  }
+
+  /**
+   * Parse a template.
+   * 
+   * @param source The template text. Null is treated as empty.
+   * @return The parsed template.
+   */
+  public static EmailTemplate compile( String source )
+  {
+    if ( source == null )
+      source = "";
+    ArrayList<Segment> list = new ArrayList<>();
+    int end = parse( source, 0, list, false );
+    if ( end < source.length() )
+      list.add( Segment.literal( source.substring( end ) ) );
+    return new EmailTemplate( source, list );
+  }
+  
+  /**
+   * Parse from a position until the end of the text or, when inside a 
+   * section, the end of the section.
+   * @return The position after what was parsed.
+   */
+  private static int parse( String source, int pos, List<Segment> list, boolean insection )
+  {
+    int literalstart = pos;
+    while ( pos < source.length() )
+    {
+      int open = source.indexOf( '{', pos );
+      if ( open < 0 )
+        break;
+      int close = source.indexOf( '}', open+1 );
+      if ( close < 0 )
+        break;
+      String name = source.substring( open+1, close );
+      if ( !isName( name ) )
+      {
+        pos = open+1;
+        continue;
+      }
+      
+      if ( insection && name.equals( "/" + SECTION_NAME ) )
+      {
+        addLiteral( source, literalstart, open, list );
+        return close+1;
+      }
+      
+      if ( !insection && name.equals( "#" + SECTION_NAME ) && source.indexOf( "{/" + SECTION_NAME + "}", close ) >= 0 )
+      {
+        addLiteral( source, literalstart, open, list );
+        ArrayList<Segment> inner = new ArrayList<>();
+        pos = parse( source, close+1, inner, true );
+        String innersource = source.substring( close+1, pos - SECTION_NAME.length() - 3 );
+        list.add( Segment.section( new EmailTemplate( innersource, inner ) ) );
+        literalstart = pos;
+        continue;
+      }
+      
+      if ( !insection && name.equals( "filelist" ) )
+      {
+        addLiteral( source, literalstart, open, list );
+        list.addAll( Arrays.asList( compile( DEFAULT_FILE_LIST ).segments ) );
+        pos = literalstart = close+1;
+        continue;
+      }
+      
+      if ( name.charAt( 0 ) == '#' || name.charAt( 0 ) == '/' )
+      {
+        // Stray section markers are left as text.
+        pos = close+1;
+        continue;
+      }
+      
+      addLiteral( source, literalstart, open, list );
+      list.add( Segment.placeholder( name ) );
+      pos = literalstart = close+1;
+    }
+    addLiteral( source, literalstart, source.length(), list );
+    return source.length();
+  }
+  
+  private static void addLiteral( String source, int start, int end, List<Segment> list )
+  {
+    if ( end > start )
+      list.add( Segment.literal( source.substring( start, end ) ) );
+  }
+  
+  private static boolean isName( String s )
+  {
+    if ( s.isEmpty() || s.length() > 64 )
+      return false;
+    for ( int i=0; i<s.length(); i++ )
+    {
+      char c = s.charAt( i );
+      if ( !( Character.isLetterOrDigit( c ) || c == '_' || (i == 0 && (c == '#' || c == '/')) ) )
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return True if this template has a repeating section for files.
+   */
+  public boolean hasSection()
+  {
+    return hassection;
+  }
+
+  public String getSource()
+  {
+    return source;
+  }
+  
+  /**
+   * Render into a new string using a builder that is reused by the 
+   * calling thread.
+   * 
+   * @param values Placeholder values.
+   * @param rows Placeholder values for each repetition of the section. May be null.
+   * @param escapehtml True if values should be escaped for HTML.
+   * @return The rendered text.
+   */
+  public String render( Map<String,String> values, List<? extends Map<String,String>> rows, boolean escapehtml )
+  {
+    StringBuilder sb = BUILDER.get();
+    sb.setLength( 0 );
+    render( sb, values, rows, escapehtml );
+    String s = sb.toString();
+    // Don't let one huge email hold on to lots of memory.
+    if ( sb.capacity() > 256*1024 )
+      BUILDER.remove();
+    return s;
+  }
+  
+  /**
+   * Render into a builder.
+   * 
+   * @param sb Where to render to.
+   * @param values Placeholder values.
+   * @param rows Placeholder values for each repetition of the section. May be null.
+   * @param escapehtml True if values should be escaped for HTML.
+   */
+  public void render( StringBuilder sb, Map<String,String> values, List<? extends Map<String,String>> rows, boolean escapehtml )
+  {
+    if ( rows == null )
+      rows = Collections.emptyList();
+    for ( Segment s : segments )
+    {
+      if ( s.literal != null )
+        sb.append( s.literal );
+      else if ( s.section != null )
+      {
+        for ( Map<String,String> row : rows )
+          s.section.renderRow( sb, row, values, escapehtml );
+      }
+      else
+        appendValue( sb, s.placeholder, values.get( s.placeholder ), escapehtml );
+    }
+  }
+  
+  private void renderRow( StringBuilder sb, Map<String,String> row, Map<String,String> values, boolean escapehtml )
+  {
+    for ( Segment s : segments )
+    {
+      if ( s.literal != null )
+        sb.append( s.literal );
+      else
+      {
+        String v = row.get( s.placeholder );
+        if ( v == null )
+          v = values.get( s.placeholder );
+        appendValue( sb, s.placeholder, v, escapehtml );
+      }
+    }
+  }
+  
+  private static void appendValue( StringBuilder sb, String name, String value, boolean escapehtml )
+  {
+    if ( value == null )
+    {
+      sb.append( '{' ).append( name ).append( '}' );
+      return;
+    }
+    if ( !escapehtml )
+    {
+      sb.append( value );
+      return;
+    }
+    for ( int i=0; i<value.length(); i++ )
+    {
+      char c = value.charAt( i );
+      switch ( c )
+      {
+        case '&':  sb.append( "&amp;"  ); break;
+        case '<':  sb.append( "&lt;"   ); break;
+        case '>':  sb.append( "&gt;"   ); break;
+        case '"':  sb.append( "&quot;" ); break;
+        case '\'': sb.append( "&#39;"  ); break;
+        default:   sb.append( c );
+      }
+    }
+  }
+  
+  /**
+   * Exactly one of the fields is set.
+   */
+  static class Segment
+  {
+    final String literal;
+    final String placeholder;
+    final EmailTemplate section;
+
+    private Segment( String literal, String placeholder, EmailTemplate section )
+    {
+      this.literal = literal;
+      this.placeholder = placeholder;
+      this.section = section;
+    }
+    
+    static Segment literal( String s )
+    {
+      return new Segment( s, null, null );
+    }
+    
+    static Segment placeholder( String name )
+    {
+      return new Segment( null, name, null );
+    }
+    
+    static Segment section( EmailTemplate t )
+    {
+      return new Segment( null, null, t );
+    }
+  }
+}
@@ -0,0 +1,507 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.log4j.Logger;
+
+/**
+ * Hands file system events from the Xythos listener thread to our own 
+ * processing threads. Putting an event in is lock free and normally takes 
+ * well under a microsecond so Xythos is never held up by database lookups
+ * or rule processing. Each processing thread has its own queue and events
+ * are shared out by entry ID so events for one file are handled in order.
+ * 
+ * An upload usually causes a created event quickly followed by one or more
+ * moved events for the same entry. If a coalescing window is set each 
+ * thread holds events for that long after the first event for an entry
+ * arrives and merges later events for the same entry into it, so rules 
+ * are evaluated once against the final path.
+ * 
+ * The total number of queued events is limited. When the limit is reached
+ * the configured policy decides what happens. BLOCK waits a short time for
+ * space. SHED drops events straight away if they are too small for any 
+ * rule that emails or overwrites, so they could only have been logged, 
+ * and otherwise waits like BLOCK. SPILL writes events to a file, and while
+ * that file has events in it new events go there too so the order is kept.
+ * Events that still don't fit are dropped and counted.
+ * 
+ * @author jon
+ */
+public class EventIntake
+{
+  public enum Policy { BLOCK, SHED, SPILL }
+  
+  /**
+   * Does the work for a batch of events.
+   */
+  public interface Processor
+  {
+    void process( List<FileEvent> events );
+  }
+  
+  public static final int BATCH_SIZE = 50;
+  
+  /**
+   * @param name Name of a policy in any case.
+   * @return The policy or BLOCK if the name isn't known.
+   */
+  public static Policy parsePolicy( String name )
+  {
+    for ( Policy p : Policy.values() )
+      if ( p.name().equalsIgnoreCase( name ) )
+        return p;
+    return Policy.BLOCK;
+  }
+  
+  final Processor processor;
+  final Logger logger;
+  final AtomicInteger depth = new AtomicInteger();
+  LinkedTransferQueue<FileEvent>[] partitions;
+  /**
+   * Events being held for coalescing, by entry ID, one map per thread.
+   * Each map is only used by its thread until the thread has stopped.
+   */
+  LinkedHashMap<Long,FileEvent>[] held;
+  Thread[] threads;
+  EventSpill spill;
+  ExecutionMode executionmode = ExecutionMode.PLATFORM;
+  
+  volatile int    capacity = 10000;
+  volatile Policy policy = Policy.BLOCK;
+  volatile long   blocknanos = TimeUnit.MILLISECONDS.toNanos( 5 );
+  volatile long   shedbelow = Long.MAX_VALUE;
+  volatile long   coalescemillis = 0L;
+  
+  final LongAdder accepted = new LongAdder();
+  final LongAdder waited   = new LongAdder();
+  final LongAdder shed     = new LongAdder();
+  final LongAdder spilled  = new LongAdder();
+  final LongAdder merged   = new LongAdder();
+  
+  public EventIntake( Processor processor, Logger logger )
+  {
+    this.processor = processor;
+    this.logger = logger;
+  }
+  
+  /**
+   * @param capacity Most events held in memory.
+   * @param policy What to do when full.
+   * @param blockmillis Longest wait for space when full.
+   */
+  public void configure( int capacity, Policy policy, long blockmillis )
+  {
+    this.capacity = Math.max( 1, capacity );
+    this.policy = policy;
+    this.blocknanos = TimeUnit.MILLISECONDS.toNanos( Math.max( 0L, blockmillis ) );
+  }
+  
+  /**
+   * @param coalescemillis How long to hold events so that later events 
+   * for the same entry can be merged. Zero to process events as soon as
+   * possible.
+   */
+  public void setCoalesceMillis( long coalescemillis )
+  {
+    this.coalescemillis = Math.max( 0L, coalescemillis );
+  }
+  
+  /**
+   * @param shedbelow Events with a known size below this may be shed 
+   * because they can't lead to anything except a log entry.
+   */
+  public void setShedThreshold( long shedbelow )
+  {
+    this.shedbelow = shedbelow;
+  }
+  
+  /**
+   * Decides whether the processing threads are virtual. Call before start.
+   */
+  public void setExecutionMode( ExecutionMode executionmode )
+  {
+    this.executionmode = executionmode;
+  }
+  
+  /**
+   * Use an opened spill file. Call before start.
+   */
+  public void setSpill( EventSpill spill )
+  {
+    this.spill = spill;
+  }
+  
+  public synchronized void start( int threadcount )
+  {
+    if ( threads != null )
+      return;
+    int n = Math.max( 1, threadcount );
+    @SuppressWarnings("unchecked")
+    LinkedTransferQueue<FileEvent>[] p = new LinkedTransferQueue[n];
+    @SuppressWarnings("unchecked")
+    LinkedHashMap<Long,FileEvent>[] h = new LinkedHashMap[n];
+    for ( int i=0; i<n; i++ )
+    {
+      p[i] = new LinkedTransferQueue<>();
+      h[i] = new LinkedHashMap<>();
+    }
+    held = h;
+    partitions = p;
+    threads = new Thread[n];
+    for ( int i=0; i<n; i++ )
+    {
+      final int index = i;
+      threads[i] = executionmode.newThread( "EventIntake-" + i, () -> run( index ) );
+      threads[i].start();
+    }
+    logger.info( "Event intake started " + n + " threads." );
+  }
+  
+  /**
+   * Stop the processing threads. Events still in memory are written to the
+   * spill file if there is one so they are processed after a restart. They
+   * arrived before any events that are still in the spill file so they go
+   * in front of them. If a thread doesn't stop its events can't be saved
+   * safely and they are dropped.
+   */
+  public synchronized void stop()
+  {
+    if ( threads == null )
+      return;
+    for ( Thread t : threads )
+      t.interrupt();
+    int alive = 0;
+    for ( Thread t : threads )
+    {
+      try { t.join( 5000L ); }
+      catch ( InterruptedException ex ) { Thread.currentThread().interrupt(); }
+      if ( t.isAlive() )
+        alive++;
+    }
+    threads = null;
+    if ( spill == null )
+      return;
+    if ( alive > 0 )
+    {
+      logger.error( alive + " event intake threads did not stop. " + depth.get() + " events in memory were not saved to the spill file." );
+      spill.close();
+      return;
+    }
+    // Per partition the held events came off the queue before those 
+    // still on it and all events for one entry are in one partition.
+    ArrayList<FileEvent> events = new ArrayList<>();
+    for ( int i=0; i<partitions.length; i++ )
+    {
+      events.addAll( held[i].values() );
+      held[i].clear();
+      partitions[i].drainTo( events );
+    }
+    try
+    {
+      spill.closeWithFirst( events );
+      logger.info( "Event intake saved " + events.size() + " queued events to spill file." );
+    }
+    catch ( IOException ex )
+    {
+      logger.error( "Unable to save queued events to spill file.", ex );
+      spill.close();
+    }
+  }
+  
+  /**
+   * Called on the Xythos listener thread.
+   * 
+   * @param event The event.
+   * @return False if the event was shed.
+   */
+  public boolean offer( FileEvent event )
+  {
+    LinkedTransferQueue<FileEvent>[] p = partitions;
+    if ( p == null )
+      return shed( event );
+    Policy pol = policy;
+    EventSpill s = spill;
+    if ( pol == Policy.SPILL && s != null && s.getCount() > 0 )
+      return spill( s, event ) || waitAndPut( event ) || shed( event );
+    if ( tryReserve() )
+    {
+      put( p, event );
+      accepted.increment();
+      return true;
+    }
+    switch ( pol )
+    {
+      case SHED:
+        if ( event.size >= 0 && event.size < shedbelow )
+          return shed( event );
+        break;
+      case SPILL:
+        if ( s != null && spill( s, event ) )
+          return true;
+        break;
+      default:
+        break;
+    }
+    return waitAndPut( event ) || shed( event );
+  }
+  
+  private boolean tryReserve()
+  {
+    if ( depth.incrementAndGet() > capacity )
+    {
+      depth.decrementAndGet();
+      return false;
+    }
+    return true;
+  }
+  
+  private void put( LinkedTransferQueue<FileEvent>[] p, FileEvent event )
+  {
+    p[ (int)((event.entryid & Long.MAX_VALUE) % p.length) ].offer( event );
+  }
+  
+  private boolean waitAndPut( FileEvent event )
+  {
+    long deadline = System.nanoTime() + blocknanos;
+    while ( System.nanoTime() < deadline )
+    {
+      LockSupport.parkNanos( 50000L );
+      if ( tryReserve() )
+      {
+        waited.increment();
+        accepted.increment();
+        put( partitions, event );
+        return true;
+      }
+    }
+    return false;
+  }
+  
+  private boolean spill( EventSpill s, FileEvent event )
+  {
+    try
+    {
+      s.append( event );
+      spilled.increment();
+      return true;
+    }
+    catch ( IOException ex )
+    {
+      logger.error( "Unable to write event to spill file.", ex );
+      return false;
+    }
+  }
+  
+  private boolean shed( FileEvent event )
+  {
+    shed.increment();
+    logger.debug( "Event intake is full. Dropped event for entry " + event.entryid );
+    return false;
+  }
+  
+  /**
+   * Move events from the spill file back into memory if there is room.
+   */
+  private void refill()
+  {
+    EventSpill s = spill;
+    if ( s == null || s.getCount() == 0 )
+      return;
+    // Reserve the room first so offer() can't fill it meanwhile.
+    int d, room;
+    do
+    {
+      d = depth.get();
+      room = Math.max( 1, capacity/2 ) - d;
+      if ( room <= 0 )
+        return;
+    }
+    while ( !depth.compareAndSet( d, d + room ) );
+    List<FileEvent> events = Collections.emptyList();
+    try
+    {
+      events = s.read( room );
+      for ( FileEvent event : events )
+        put( partitions, event );
+    }
+    catch ( IOException ex )
+    {
+      logger.error( "Unable to read events from spill file.", ex );
+    }
+    finally
+    {
+      depth.addAndGet( events.size() - room );
+    }
+  }
+  
+  /**
+   * The main loop of each processing thread.
+   * 
+   * @param index Which partition the thread serves.
+   */
+  void run( int index )
+  {
+    logger.info( Thread.currentThread().getName() + " has started." );
+    LinkedTransferQueue<FileEvent> queue = partitions[index];
+    LinkedHashMap<Long,FileEvent> map = held[index];
+    ArrayList<FileEvent> batch = new ArrayList<>( BATCH_SIZE );
+    try
+    {
+      while ( !Thread.currentThread().isInterrupted() )
+      {
+        refill();
+        long window = coalescemillis;
+        long wait = 1000L;
+        if ( !map.isEmpty() )
+          wait = map.values().iterator().next().received + window - System.currentTimeMillis();
+        FileEvent first = wait > 0L ? queue.poll( wait, TimeUnit.MILLISECONDS ) : queue.poll();
+        if ( first != null )
+        {
+          batch.add( first );
+          queue.drainTo( batch, BATCH_SIZE-1 );
+          if ( window == 0L && map.isEmpty() )
+          {
+            depth.addAndGet( -batch.size() );
+            process( batch );
+            continue;
+          }
+          // Held events still count towards the depth so the capacity 
+          // limits them too.
+          for ( FileEvent event : batch )
+          {
+            FileEvent earlier = map.get( event.entryid );
+            if ( earlier == null )
+              map.put( event.entryid, event );
+            else
+            {
+              map.put( event.entryid, earlier.merge( event ) );
+              merged.increment();
+              depth.decrementAndGet();
+            }
+          }
+          batch.clear();
+        }
+        
+        // The map is in order of first arrival so the events that are due
+        // are at the front.
+        long due = System.currentTimeMillis() - window;
+        Iterator<FileEvent> events = map.values().iterator();
+        while ( events.hasNext() )
+        {
+          FileEvent event = events.next();
+          if ( event.received > due )
+            break;
+          events.remove();
+          depth.decrementAndGet();
+          batch.add( event );
+          if ( batch.size() == BATCH_SIZE )
+            process( batch );
+        }
+        if ( !batch.isEmpty() )
+          process( batch );
+      }
+    }
+    catch ( InterruptedException ex )
+    {
+      // Normal way to stop.
+    }
+    logger.info( Thread.currentThread().getName() + " has stopped." );
+  }
+  
+  /**
+   * Process a batch of events and empty the list.
+   */
+  private void process( ArrayList<FileEvent> batch )
+  {
+    try
+    {
+      processor.process( batch );
+    }
+    catch ( Throwable th )
+    {
+      logger.error( "Exception processing events.", th );
+    }
+    batch.clear();
+  }
+  
+  /**
+   * @return Number of events merged into an earlier event for the same entry.
+   */
+  public long getMerged()
+  {
+    return merged.sum();
+  }
+  
+  public Policy getPolicy()
+  {
+    return policy;
+  }
+  
+  public int getCapacity()
+  {
+    return capacity;
+  }
+  
+  /**
+   * @return Number of events in memory waiting to be processed, including
+   * those held back to be merged.
+   */
+  public int getDepth()
+  {
+    return depth.get();
+  }
+  
+  /**
+   * @return Number of events in the spill file.
+   */
+  public int getSpillCount()
+  {
+    EventSpill s = spill;
+    return s == null ? 0 : s.getCount();
+  }
+  
+  public long getAccepted()
+  {
+    return accepted.sum();
+  }
+  
+  public long getWaited()
+  {
+    return waited.sum();
+  }
+  
+  public long getShed()
+  {
+    return shed.sum();
+  }
+  
+  public long getSpilled()
+  {
+    return spilled.sum();
+  }
+}
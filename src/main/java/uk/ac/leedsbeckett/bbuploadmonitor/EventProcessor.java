@@ -0,0 +1,343 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import org.apache.log4j.Logger;
+
+/**
+ * Applies the rules to file events and takes the actions. Files, users,
+ * email and overwriting are all reached through interfaces so this can run
+ * against Xythos and Blackboard or against stand-ins in a load test.
+ * 
+ * @author jon
+ */
+public class EventProcessor
+{
+  final FileStore filestore;
+  final UserProfileCache userprofilecache;
+  final NotificationDigester notificationdigester;
+  final OverwriteQueue overwritequeue;
+  final EventStatistics eventstatistics;
+  final Logger logger;
+  final Logger datalogger;
+  
+  final MetricsRegistry.Histogram intakelatency;
+  final MetricsRegistry.Histogram userlookuptime;
+  final MetricsRegistry.Histogram ruletime;
+  final MetricsRegistry.Histogram endtoend;
+  final MetricsRegistry.Histogram shadowtime;
+  
+  final ShadowLog shadowlog = new ShadowLog();
+  
+  /**
+   * The enabled rules in ready to use form. Replaced as a whole whenever
+   * the configuration is reloaded.
+   */
+  volatile CompiledRuleSet compiledrules = CompiledRuleSet.EMPTY;
+
+  /**
+   * @param filestore Where to look up the files in events.
+   * @param userprofilecache Where to look up the users who created them.
+   * @param notificationdigester Where to send email actions.
+   * @param overwritequeue Where to send overwrite actions.
+   * @param eventstatistics Counts of events by outcome.
+   * @param metrics Where the timings are recorded.
+   * @param logger Technical log.
+   * @param datalogger Log of files matched by rules with the log action.
+   */
+  public EventProcessor( 
+          FileStore filestore, 
+          UserProfileCache userprofilecache, 
+          NotificationDigester notificationdigester, 
+          OverwriteQueue overwritequeue, 
+          EventStatistics eventstatistics, 
+          MetricsRegistry metrics, 
+          Logger logger, 
+          Logger datalogger )
+  {
+    this.filestore            = filestore;
+    this.userprofilecache     = userprofilecache;
+    this.notificationdigester = notificationdigester;
+    this.overwritequeue       = overwritequeue;
+    this.eventstatistics      = eventstatistics;
+    this.logger               = logger;
+    this.datalogger           = datalogger;
+    this.intakelatency  = metrics.histogram( "event_intake",       "Time from an event arriving to it being processed" );
+    this.userlookuptime = metrics.histogram( "user_lookup",        "Time to look up the user who uploaded a file" );
+    this.ruletime       = metrics.histogram( "rule_evaluation",    "Time to evaluate the rules and take actions, excluding user lookup" );
+    this.endtoend       = metrics.histogram( "event_end_to_end",   "Time from an event arriving to the end of its processing" );
+    this.shadowtime     = metrics.histogram( "shadow_rule_evaluation", "Time to evaluate the shadow rules" );
+  }
+
+  public void setRules( CompiledRuleSet compiledrules )
+  {
+    this.compiledrules = compiledrules;
+  }
+  
+  public CompiledRuleSet getRules()
+  {
+    return compiledrules;
+  }
+  
+  /**
+   * @return The files most recently matched by shadow rules.
+   */
+  public ShadowLog getShadowLog()
+  {
+    return shadowlog;
+  }
+  
+  /**
+   * Process a batch of events from the intake using one file store session.
+   * 
+   * @param events The events.
+   */
+  public void processEvents( List<FileEvent> events )
+  {
+    try ( FileStore.Session session = filestore.open() )
+    {
+      for ( FileEvent event : events )
+        processFileEvent( session, event );
+    }
+    catch ( Exception ex )
+    {
+      logger.error( "Problem with file store session. Some of " + events.size() + " events may not have been processed.", ex );
+    }
+  }
+  
+  /**
+   * Look up the file in an event and apply the rules to it.
+   * 
+   * @param session The file store session.
+   * @param event The event.
+   */
+  void processFileEvent( FileStore.Session session, FileEvent event )
+  {
+    long rulestart = 0L;
+    long lookupnanos = 0L;
+    CompiledRuleSet ruleset = null;
+    FileDetails entry = null;
+    // User details are loaded when the first rule matches on file details.
+    UserProfile user = null;
+    try
+    {
+      intakelatency.recordMillis( System.currentTimeMillis() - event.getReceived() );
+      logger.debug( "BlackboardBackend -   " + (event.getKind() == FileEvent.CREATED ? "create" : "  move") + " entry event = " + event.getName() );
+      logger.debug( "BlackboardBackend -           entry id = " + event.getEntryId() );
+      logger.debug( "BlackboardBackend -               size = " + event.getSize()    );
+      entry = session.find( event.getEntryId() );
+      String entryid = String.valueOf( event.getEntryId() );
+      
+      if ( entry == null )
+      {
+        logger.debug( "File system entry with that id not found." );
+        eventstatistics.increment( EventStatistics.Stage.ENTRY_NOT_FOUND );
+        return;
+      }
+
+      // Take a snapshot so a reconfiguration part way through doesn't
+      // mix old and new rules.
+      ruleset = compiledrules;
+      
+      long size = entry.getSize();
+      // The checks are ordered cheapest first so that the BB user is only
+      // loaded from the database for files that some rule could match.
+      if ( size < ruleset.getMinimumThreshold() )
+      {
+        eventstatistics.increment( EventStatistics.Stage.REJECTED_SIZE );
+        return;
+      }
+      
+      // Skips files not created by real users
+      String longid = entry.getCreatedBy();
+      if ( longid == null || !longid.startsWith( "BB:U:" ) )
+      {
+        eventstatistics.increment( EventStatistics.Stage.REJECTED_PRINCIPAL );
+        return;
+      }
+      
+      // Get information about the file entry
+      String filepath = entry.getName();
+      String shortid = longid.substring( 5 );
+      String type = entry.getContentType();
+      
+      String name = null;
+      String un = null;
+      boolean matched = false;
+      
+      rulestart = System.nanoTime();
+      // Only the rules that could match are tried, in configured order.
+      List<CompiledRule> rules = ruleset.getRules();
+      BitSet candidates = ruleset.getCandidates( size, type, filepath );
+      for ( int r = candidates.nextSetBit( 0 ); r >= 0; r = candidates.nextSetBit( r+1 ) )
+      {      
+        CompiledRule compiledrule = rules.get( r );
+        RuleConfig rule = compiledrule.getRule();
+        logger.debug( "Checking Rule " + rule.name );
+        
+        // Skip files that are smaller than threshold or don't match filters
+        if ( !compiledrule.matchesFile( size, type, filepath ) )
+          continue;
+
+        if ( user == null )
+        {
+          eventstatistics.increment( EventStatistics.Stage.USER_LOOKUP );
+          long lookupstart = System.nanoTime();
+          user = userprofilecache.get( longid );
+          lookupnanos = System.nanoTime() - lookupstart;
+          userlookuptime.recordNanos( lookupnanos );
+          if ( user == null )
+          {
+            logger.debug( "No BB user with id " + shortid );
+            eventstatistics.increment( EventStatistics.Stage.USER_NOT_FOUND );
+            return;
+          }
+          name = user.getName();
+          un = user.getUserName();
+        }
+        
+        if ( !compiledrule.matchesUser( un ) )
+          continue;
+
+        logger.debug( "Matches Rule " + rule.name );
+        compiledrule.getMatches().increment();
+        if ( !matched )
+        {
+          matched = true;
+          eventstatistics.increment( EventStatistics.Stage.MATCHED );
+        }
+
+        // Matches so take configured action...
+        if ( rule.isActionLog() )
+        {
+          logger.debug( "Type = " + type );
+          logger.debug( "Created by " + longid + "  =  " + shortid );
+          logger.debug( "User name of file creator: " + user.getUserName() );
+          logger.debug( "Email of file creator: "     + user.getEmailAddress() );
+          logger.debug( "Name of file creator: "      + name );
+          datalogger.info( 
+                  filepath + "," +
+                  (size/(1024*1024))             + "," + 
+                  user.getUserName()             + "," +
+                  user.getEmailAddress()         + "," +
+                  name                           + "," +
+                  type                                      );
+        }
+
+        if ( rule.isActionOverwrite() )
+          overwritequeue.add( entryid, filepath, rule.getOverwritePath(), entry.getVirtualServer(), longid, size );
+        
+        if ( rule.isActionEmail() )
+        {
+          // Set up information that will be useful for email.
+          HashMap<String,String> properties = new HashMap<>();
+          properties.put( "filename", filepath );
+          properties.put( "filesize_mb", Long.toString( Math.round( (double)size / (1024.0*1024.0) ) ) );
+          properties.put( "filetype", type );
+          properties.put( "name", name );
+          properties.put( "user_name", un );
+          properties.put( "user_email", user.getEmailAddress() );
+          properties.put( "rule", rule.getName() );
+
+          // The digester decides when to send and may combine this with
+          // other files from the same user.
+          notificationdigester.add( user, compiledrule, properties );
+        }
+
+        if ( !rule.isContinueRules() )
+        {
+          logger.debug( "Rule " + rule.name + " does not allow continuation." );
+          return;
+        }
+      }
+      if ( !matched )
+        eventstatistics.increment( EventStatistics.Stage.REJECTED_RULES );
+      logger.debug( "Rule checking complete." );
+      
+    }
+    catch ( Exception e )
+    {
+      logger.error( "Exception while handling file event.", e );
+    }
+    finally
+    {
+      if ( rulestart != 0L )
+        ruletime.recordNanos( System.nanoTime() - rulestart - lookupnanos );
+      // After the live rules so the user they loaded, if any, is reused.
+      if ( ruleset != null && entry.getSize() >= ruleset.getMinimumShadowThreshold() )
+        processShadowRules( ruleset, entry, entry.getSize(), user );
+      endtoend.recordMillis( System.currentTimeMillis() - event.getReceived() );
+    }
+  }
+  
+  /**
+   * Check a file against the shadow rules, counting and recording the
+   * matches but taking no action. Nothing that goes wrong here is allowed 
+   * to affect the live rules. The user is only looked up if the live rules
+   * didn't load it and an admin only shadow rule matches the file's size,
+   * type and path.
+   * 
+   * @param ruleset The rules.
+   * @param entry The file.
+   * @param size The size of the file.
+   * @param user The user the live rules looked up or null.
+   */
+  void processShadowRules( CompiledRuleSet ruleset, FileDetails entry, long size, UserProfile user )
+  {
+    long start = System.nanoTime();
+    try
+    {
+      String longid = entry.getCreatedBy();
+      if ( longid == null || !longid.startsWith( "BB:U:" ) )
+        return;
+      String filepath = entry.getName();
+      String type = entry.getContentType();
+      String un = user == null ? null : user.getUserName();
+      List<CompiledRule> rules = ruleset.getShadowRules();
+      BitSet candidates = ruleset.getShadowCandidates( size, type, filepath );
+      for ( int r = candidates.nextSetBit( 0 ); r >= 0; r = candidates.nextSetBit( r+1 ) )
+      {
+        CompiledRule compiledrule = rules.get( r );
+        if ( !compiledrule.matchesFile( size, type, filepath ) )
+          continue;
+        // Only admin only rules need the user.
+        if ( compiledrule.isAdminOnly() && un == null )
+        {
+          UserProfile found = userprofilecache.get( longid );
+          un = found == null ? "" : found.getUserName();
+        }
+        if ( !compiledrule.matchesUser( un ) )
+          continue;
+        logger.debug( "Matches shadow rule " + compiledrule.getName() );
+        compiledrule.getMatches().increment();
+        shadowlog.add( new ShadowLog.Entry( System.currentTimeMillis(), compiledrule, filepath, size, longid.substring( 5 ), type ) );
+      }
+    }
+    catch ( Exception e )
+    {
+      logger.error( "Exception while checking shadow rules.", e );
+    }
+    finally
+    {
+      shadowtime.recordNanos( System.nanoTime() - start );
+    }
+  }
+}
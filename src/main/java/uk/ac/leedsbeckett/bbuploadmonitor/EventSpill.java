@@ -0,0 +1,363 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A first in first out file of events that didn't fit in the intake queue.
+ * Events are appended at the end and read from a position that moves 
+ * forward. Appending and reading use separate handles and locks so the
+ * Xythos listener thread never waits for a read. When everything has been
+ * read the file is emptied and once enough has been read from the front
+ * the unread part is copied to a new file. This is overflow storage, not
+ * a journal, so it is not forced to disk but anything left in it when the
+ * server stops is read at the next start.
+ * 
+ * @author jon
+ */
+public class EventSpill
+{
+  // Bytes read from the front of the file before it is worth compacting,
+  // which is only done if no more than that are left to copy.
+  static final long COMPACT_BYTES = 4L * 1024L * 1024L;
+  
+  final Path file;
+  final Path tempfile;
+  // Lock order is readlock then writelock.
+  final Object readlock = new Object();
+  final Object writelock = new Object();
+  // Guarded by readlock.
+  FileChannel readchannel;
+  long readposition = 0L;
+  // Guarded by writelock.
+  FileChannel writechannel;
+  // Written under writelock, read without it. Only whole events are 
+  // before this position.
+  volatile long writeposition = 0L;
+  final AtomicInteger count = new AtomicInteger();
+  long compactbytes = COMPACT_BYTES;
+  long compactions = 0L;
+
+  public EventSpill( Path file )
+  {
+    this.file = file;
+    this.tempfile = file.resolveSibling( file.getFileName() + ".tmp" );
+  }
+  
+  /**
+   * Open the file and count the events left in it. A partly written event
+   * at the end is cut off.
+   */
+  public void open() throws IOException
+  {
+    synchronized ( readlock )
+    {
+      synchronized ( writelock )
+      {
+        writechannel = FileChannel.open( file, StandardOpenOption.CREATE, StandardOpenOption.WRITE );
+        readchannel = FileChannel.open( file, StandardOpenOption.READ );
+        CountingInputStream counter = new CountingInputStream( new BufferedInputStream( Channels.newInputStream( readchannel.position( 0L ) ) ) );
+        DataInputStream in = new DataInputStream( counter );
+        long length = readchannel.size();
+        int n = 0;
+        long good = 0L;
+        try
+        {
+          while ( counter.count < length )
+          {
+            readEvent( in );
+            good = counter.count;
+            n++;
+          }
+        }
+        catch ( EOFException ex )
+        {
+          writechannel.truncate( good );
+        }
+        readposition = 0L;
+        writeposition = good;
+        count.set( n );
+      }
+    }
+  }
+  
+  public void close()
+  {
+    synchronized ( readlock )
+    {
+      synchronized ( writelock )
+      {
+        if ( readchannel == null )
+          return;
+        closeQuietly( readchannel );
+        closeQuietly( writechannel );
+        readchannel = null;
+        writechannel = null;
+      }
+    }
+  }
+  
+  /**
+   * Close the file with the given events in front of the events not yet
+   * read so that they are read first at the next start. 
+   * 
+   * @param first Events to read first.
+   * @throws IOException If the file couldn't be rewritten. It is left as
+   * it was but still has to be closed.
+   */
+  public void closeWithFirst( List<FileEvent> first ) throws IOException
+  {
+    synchronized ( readlock )
+    {
+      synchronized ( writelock )
+      {
+        if ( readchannel == null )
+          throw new IOException( "Spill file is not open." );
+        if ( first.isEmpty() )
+        {
+          close();
+          return;
+        }
+        try ( FileChannel newwriter = FileChannel.open( tempfile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE ) )
+        {
+          for ( FileEvent event : first )
+          {
+            ByteBuffer buffer = encode( event );
+            while ( buffer.hasRemaining() )
+              newwriter.write( buffer );
+          }
+          copy( readposition, writeposition, newwriter );
+        }
+        catch ( IOException ex )
+        {
+          try { Files.deleteIfExists( tempfile ); } catch ( IOException ex2 ) {}
+          throw ex;
+        }
+        close();
+        Files.move( tempfile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+      }
+    }
+  }
+  
+  /**
+   * @return Number of events waiting to be read.
+   */
+  public int getCount()
+  {
+    return count.get();
+  }
+  
+  public void append( FileEvent event ) throws IOException
+  {
+    ByteBuffer buffer = encode( event );
+    synchronized ( writelock )
+    {
+      if ( writechannel == null )
+        throw new IOException( "Spill file is not open." );
+      long position = writeposition;
+      while ( buffer.hasRemaining() )
+        writechannel.write( buffer, position + buffer.position() );
+      count.incrementAndGet();
+      writeposition = position + buffer.limit();
+    }
+  }
+  
+  /**
+   * Read the oldest events.
+   * 
+   * @param max Most events to read.
+   * @return The events, which are removed from the file.
+   */
+  public List<FileEvent> read( int max ) throws IOException
+  {
+    ArrayList<FileEvent> list = new ArrayList<>();
+    synchronized ( readlock )
+    {
+      long end = writeposition;
+      if ( readchannel == null || readposition >= end )
+        return list;
+      // The buffer may read past the end into an event that is still being
+      // written but only whole events are decoded and it is thrown away.
+      CountingInputStream counter = new CountingInputStream( new BufferedInputStream( Channels.newInputStream( readchannel.position( readposition ) ) ) );
+      DataInputStream in = new DataInputStream( counter );
+      while ( list.size() < max && readposition + counter.count < end )
+        list.add( readEvent( in ) );
+      readposition += counter.count;
+      count.addAndGet( -list.size() );
+      shrink();
+    }
+    return list;
+  }
+  
+  /**
+   * Empty the file if everything has been read or compact it if enough
+   * has been read from the front. Called holding readlock.
+   */
+  private void shrink()
+  {
+    synchronized ( writelock )
+    {
+      if ( readposition >= writeposition )
+      {
+        try
+        {
+          writechannel.truncate( 0L );
+          readposition = writeposition = 0L;
+        }
+        catch ( IOException ex )
+        {
+          // Carry on with the file as it is.
+        }
+        return;
+      }
+    }
+    if ( readposition >= compactbytes && writeposition - readposition <= readposition )
+      compact();
+  }
+  
+  /**
+   * Copy the unread events to a new file which replaces the old one. Most
+   * of the copying is done without writelock and only what was appended 
+   * meanwhile is copied holding it. If anything goes wrong the old file is
+   * kept and compaction is tried again after a later read. Called holding
+   * readlock.
+   */
+  private void compact()
+  {
+    FileChannel newwriter = null;
+    FileChannel newreader = null;
+    try
+    {
+      newwriter = FileChannel.open( tempfile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE );
+      newreader = FileChannel.open( tempfile, StandardOpenOption.READ );
+      long end = writeposition;
+      copy( readposition, end, newwriter );
+      synchronized ( writelock )
+      {
+        copy( end, writeposition, newwriter );
+        Files.move( tempfile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+        closeQuietly( writechannel );
+        closeQuietly( readchannel );
+        writechannel = newwriter;
+        readchannel = newreader;
+        writeposition -= readposition;
+        readposition = 0L;
+      }
+      compactions++;
+    }
+    catch ( IOException ex )
+    {
+      closeQuietly( newwriter );
+      closeQuietly( newreader );
+      try { Files.deleteIfExists( tempfile ); } catch ( IOException ex2 ) {}
+    }
+  }
+  
+  private static void closeQuietly( FileChannel channel )
+  {
+    if ( channel != null )
+      try { channel.close(); } catch ( IOException ex ) {}
+  }
+  
+  private void copy( long from, long to, FileChannel out ) throws IOException
+  {
+    long position = from;
+    while ( position < to )
+      position += readchannel.transferTo( position, to - position, out );
+  }
+  
+  private static ByteBuffer encode( FileEvent event ) throws IOException
+  {
+    ByteArrayOutputStream baout = new ByteArrayOutputStream( 64 );
+    DataOutputStream out = new DataOutputStream( baout );
+    out.writeLong( event.entryid );
+    out.writeByte( event.kind );
+    out.writeLong( event.size );
+    out.writeLong( event.received );
+    out.writeUTF( event.name == null ? "" : event.name );
+    return ByteBuffer.wrap( baout.toByteArray() );
+  }
+  
+  private static FileEvent readEvent( DataInput in ) throws IOException
+  {
+    long entryid = in.readLong();
+    byte kind = in.readByte();
+    long size = in.readLong();
+    long received = in.readLong();
+    String name = in.readUTF();
+    return new FileEvent( entryid, kind, name, size, received );
+  }
+  
+  /**
+   * Counts the bytes taken by the decoder so the read position can be
+   * moved on by exactly that much.
+   */
+  static class CountingInputStream extends FilterInputStream
+  {
+    long count = 0L;
+
+    CountingInputStream( InputStream in )
+    {
+      super( in );
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+      int b = super.read();
+      if ( b >= 0 )
+        count++;
+      return b;
+    }
+
+    @Override
+    public int read( byte[] b, int off, int len ) throws IOException
+    {
+      int n = super.read( b, off, len );
+      if ( n > 0 )
+        count += n;
+      return n;
+    }
+
+    @Override
+    public long skip( long n ) throws IOException
+    {
+      long skipped = super.skip( n );
+      count += skipped;
+      return skipped;
+    }
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+/**
+ * Counts how many Xythos events reached each stage of processing and
+ * where the others were rejected. Updated by the event listener thread and
+ * read by the status servlet. The counts are kept in the metrics registry
+ * as one counter per stage so they are exported and reset with everything
+ * else.
+ * 
+ * @author jon
+ */
+public class EventStatistics
+{
+  /**
+   * The stages of event processing in the order they are applied.
+   */
+  public enum Stage
+  {
+    RECEIVED(           "Events received"                          ),
+    IGNORED_EVENT_TYPE( "Ignored - not a create or move event"     ),
+    ENTRY_NOT_FOUND(    "Ignored - file entry not found"           ),
+    REJECTED_SIZE(      "Rejected - smaller than every rule"       ),
+    REJECTED_PRINCIPAL( "Rejected - not created by a BB user"      ),
+    REJECTED_RULES(     "Rejected - no rule matched"               ),
+    USER_NOT_FOUND(     "Rejected - BB user could not be loaded"   ),
+    USER_LOOKUP(        "User lookups (cache or database)"         ),
+    MATCHED(            "Matched at least one rule"                );
+    
+    final String label;
+
+    Stage( String label )
+    {
+      this.label = label;
+    }
+
+    public String getLabel()
+    {
+      return label;
+    }
+  }
+  
+  private final MetricsRegistry.Counter[] counters = new MetricsRegistry.Counter[Stage.values().length];
+
+  public EventStatistics( MetricsRegistry metrics )
+  {
+    for ( Stage stage : Stage.values() )
+      counters[stage.ordinal()] = metrics.counter( "events_total", "Events by processing stage", "stage", stage.name().toLowerCase() );
+  }
+  
+  public void increment( Stage stage )
+  {
+    counters[stage.ordinal()].increment();
+  }
+  
+  public long get( Stage stage )
+  {
+    return counters[stage.ordinal()].get();
+  }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Decides what kind of thread the background work runs on and limits how
+ * much blocking work goes to each backend at once. On Java 21 or later 
+ * threads can be virtual, which makes it cheap to have hundreds of event
+ * and email threads, and then the limits per backend, not the number of 
+ * threads, decide how hard the database, Xythos and the SMTP server are 
+ * worked. Virtual threads are created by reflection because the plugin is
+ * compiled for Java 11. On older Java platform threads are used and the 
+ * limits still apply.
+ * 
+ * @author jon
+ */
+public class ExecutionMode
+{
+  public enum Backend { XYTHOS, DATABASE, SMTP }
+  
+  public static final ExecutionMode PLATFORM = new ExecutionMode();
+  
+  static final Method OF_VIRTUAL;
+  static final Method BUILDER_NAME;
+  static final Method BUILDER_UNSTARTED;
+  static
+  {
+    Method ofvirtual = null, name = null, unstarted = null;
+    try
+    {
+      Class<?> builder = Class.forName( "java.lang.Thread$Builder" );
+      ofvirtual = Thread.class.getMethod( "ofVirtual" );
+      name      = builder.getMethod( "name", String.class );
+      unstarted = builder.getMethod( "unstarted", Runnable.class );
+      // Fails if virtual threads are a preview feature that isn't enabled.
+      unstarted.invoke( ofvirtual.invoke( null ), (Runnable)() -> {} );
+    }
+    catch ( Throwable th )
+    {
+      ofvirtual = null;
+    }
+    OF_VIRTUAL        = ofvirtual;
+    BUILDER_NAME      = name;
+    BUILDER_UNSTARTED = unstarted;
+  }
+  
+  /**
+   * @return True if this Java can create virtual threads.
+   */
+  public static boolean isVirtualAvailable()
+  {
+    return OF_VIRTUAL != null;
+  }
+  
+  volatile boolean virtual = false;
+  final Permits[] permits = new Permits[Backend.values().length];
+  volatile int[] limits = new int[Backend.values().length];
+
+  public ExecutionMode()
+  {
+    for ( int i=0; i<permits.length; i++ )
+      permits[i] = new Permits();
+    configure( false, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE );
+  }
+  
+  /**
+   * Changing the kind of thread only affects threads created afterwards.
+   * The limits are changed in place. If a limit is lowered below the work
+   * in progress new work waits until enough of it has finished.
+   * 
+   * @param virtual Use virtual threads if this Java has them.
+   * @param xythos Most Xythos lookups at once.
+   * @param database Most database lookups at once.
+   * @param smtp Most emails being sent at once.
+   */
+  public synchronized void configure( boolean virtual, int xythos, int database, int smtp )
+  {
+    int[] l = new int[Backend.values().length];
+    l[Backend.XYTHOS.ordinal()]   = Math.max( 1, xythos   );
+    l[Backend.DATABASE.ordinal()] = Math.max( 1, database );
+    l[Backend.SMTP.ordinal()]     = Math.max( 1, smtp     );
+    for ( int i=0; i<l.length; i++ )
+      permits[i].resize( l[i] - limits[i] );
+    this.virtual = virtual && isVirtualAvailable();
+    this.limits = l;
+  }
+  
+  /**
+   * @return True if new threads will be virtual.
+   */
+  public boolean isVirtual()
+  {
+    return virtual;
+  }
+  
+  /**
+   * Create a thread of the current kind. Platform threads are daemons.
+   * 
+   * @param name The thread's name.
+   * @param runnable What it runs.
+   * @return The thread, not started.
+   */
+  public Thread newThread( String name, Runnable runnable )
+  {
+    if ( virtual )
+    {
+      try
+      {
+        Object builder = OF_VIRTUAL.invoke( null );
+        BUILDER_NAME.invoke( builder, name );
+        return (Thread)BUILDER_UNSTARTED.invoke( builder, runnable );
+      }
+      catch ( ReflectiveOperationException ex )
+      {
+        virtual = false;
+      }
+    }
+    Thread t = new Thread( runnable, name );
+    t.setDaemon( true );
+    return t;
+  }
+  
+  /**
+   * Do some blocking work once the backend has capacity. Reconfiguring 
+   * while work is in progress is safe because the limits are changed in
+   * place and the work in progress counts against the new limit.
+   * 
+   * @param backend The backend the work uses.
+   * @param work The work.
+   * @return What the work returned.
+   * @throws Exception Whatever the work throws.
+   */
+  public <T> T call( Backend backend, Callable<T> work ) throws Exception
+  {
+    Permits s = permits[backend.ordinal()];
+    s.acquire();
+    try
+    {
+      return work.call();
+    }
+    finally
+    {
+      s.release();
+    }
+  }
+  
+  public int getLimit( Backend backend )
+  {
+    return limits[backend.ordinal()];
+  }
+  
+  /**
+   * @return How much work is using the backend now.
+   */
+  public int getInUse( Backend backend )
+  {
+    return limits[backend.ordinal()] - permits[backend.ordinal()].availablePermits();
+  }
+  
+  /**
+   * @return How many threads are waiting for the backend.
+   */
+  public int getWaiting( Backend backend )
+  {
+    return permits[backend.ordinal()].getQueueLength();
+  }
+  
+  /**
+   * A semaphore whose number of permits can be lowered as well as raised
+   * while some are taken.
+   */
+  static class Permits extends Semaphore
+  {
+    Permits()
+    {
+      super( 0, false );
+    }
+    
+    void resize( int delta )
+    {
+      if ( delta > 0 )
+        release( delta );
+      else if ( delta < 0 )
+        reducePermits( -delta );
+    }
+  }
+}
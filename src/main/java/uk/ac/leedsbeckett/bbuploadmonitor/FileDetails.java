@@ -0,0 +1,82 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+/**
+ * What the rules need to know about a file, copied out of the file store
+ * so that nothing here depends on Xythos.
+ * 
+ * @author jon
+ */
+public class FileDetails
+{
+  final long entryid;
+  final String name;
+  final long size;
+  final String contenttype;
+  final String createdby;
+  final String virtualserver;
+
+  /**
+   * @param entryid The entry ID.
+   * @param name Full path of the file.
+   * @param size Size in bytes.
+   * @param contenttype MIME type.
+   * @param createdby Principal ID of the user who created it.
+   * @param virtualserver Name of the virtual server it is on.
+   */
+  public FileDetails( long entryid, String name, long size, String contenttype, String createdby, String virtualserver )
+  {
+    this.entryid       = entryid;
+    this.name          = name;
+    this.size          = size;
+    this.contenttype   = contenttype;
+    this.createdby     = createdby;
+    this.virtualserver = virtualserver;
+  }
+
+  public long getEntryId()
+  {
+    return entryid;
+  }
+
+  public String getName()
+  {
+    return name;
+  }
+
+  public long getSize()
+  {
+    return size;
+  }
+
+  public String getContentType()
+  {
+    return contenttype;
+  }
+
+  public String getCreatedBy()
+  {
+    return createdby;
+  }
+
+  public String getVirtualServer()
+  {
+    return virtualserver;
+  }
+}
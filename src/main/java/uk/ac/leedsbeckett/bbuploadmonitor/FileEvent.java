@@ -0,0 +1,89 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+/**
+ * The parts of a Xythos file system event that are needed to process it
+ * later on another thread. Nothing here depends on Xythos.
+ * 
+ * @author jon
+ */
+public class FileEvent
+{
+  public static final byte CREATED = 1;
+  public static final byte MOVED   = 2;
+  
+  final long entryid;
+  final byte kind;
+  final String name;
+  final long size;
+  final long received;
+
+  /**
+   * @param entryid The Xythos entry ID.
+   * @param kind CREATED or MOVED.
+   * @param name The name of the entry given in the event.
+   * @param size The size given in the event or -1 if the event doesn't have one.
+   * @param received When the event was received.
+   */
+  public FileEvent( long entryid, byte kind, String name, long size, long received )
+  {
+    this.entryid  = entryid;
+    this.kind     = kind;
+    this.name     = name;
+    this.size     = size;
+    this.received = received;
+  }
+
+  /**
+   * Combine this event with a later one for the same entry. The result 
+   * has the later name, the size from whichever event had one and the 
+   * kind and time of this event.
+   * 
+   * @param later The later event.
+   * @return The combined event.
+   */
+  public FileEvent merge( FileEvent later )
+  {
+    return new FileEvent( entryid, kind, later.name, later.size >= 0 ? later.size : size, received );
+  }
+  
+  public long getEntryId()
+  {
+    return entryid;
+  }
+
+  public byte getKind()
+  {
+    return kind;
+  }
+
+  public String getName()
+  {
+    return name;
+  }
+
+  public long getSize()
+  {
+    return size;
+  }
+
+  public long getReceived()
+  {
+    return received;
+  }
+}
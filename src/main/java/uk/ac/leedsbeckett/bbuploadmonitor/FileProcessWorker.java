@@ -13,90 +13,141 @@ import com.xythos.security.api.Context;
 import com.xythos.storageServer.admin.api.AdminUtil;
 import com.xythos.storageServer.api.FileSystem;
 import com.xythos.storageServer.api.FileSystemEntry;
-import com.xythos.storageServer.api.StorageServerException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class overwrites Xythos files with another Xythos file and does
- * that in a background thread.
+ * that in a pool of background threads. The OverwriteScheduler decides
+ * which batch of instructions each thread works on next.
  * 
  * @author jon
  */
-public class FileProcessWorker implements Runnable
+public class FileProcessWorker implements Runnable, OverwriteQueue
 {
-  public static final int MINIMUM_AGE_MILLIS = 1000*60;
-  Thread worker;
+  public static final int RETRY_DELAY_MILLIS = 1000*30;
+  final ArrayList<Thread> workers = new ArrayList<>();
   WebAppCore webappcore;
+  int threadcount = 2;
+  volatile int batchsize = 10;
+  final AtomicLong rollbacks = new AtomicLong();
+  final AtomicLong bytesreclaimed = new AtomicLong();
 
-  final ArrayList<Entry> pending = new ArrayList<Entry>();
+  final OverwriteScheduler scheduler = new OverwriteScheduler();
+  final OverwriteBacklog backlog;
+  
+  /**
+   * Instructions refer to virtual servers by name. This finds the object.
+   */
+  final ConcurrentHashMap<String,VirtualServer> virtualservers = new ConcurrentHashMap<>();
   
   public FileProcessWorker( WebAppCore webappcore )
   {
     this.webappcore = webappcore;
+    this.backlog = new OverwriteBacklog( scheduler, webappcore.logger );
   }
 
   /**
-   * Called from other thread to push an instruction to overwrite a file
-   * into a to do list.
+   * Set the size of the pool and the limit per virtual server. The pool
+   * size only takes effect when the threads are started.
    * 
+   * @param threadcount Number of worker threads.
+   * @param perserverlimit Most batches at once on one virtual server.
+   * @param batchsize Most overwrites done in one Xythos context.
+   */
+  public void configure( int threadcount, int perserverlimit, int batchsize )
+  {
+    this.threadcount = Math.max( 1, threadcount );
+    this.batchsize = Math.max( 1, batchsize );
+    scheduler.setPerServerLimit( perserverlimit );
+  }
+  
+  /**
+   * Called from other thread to push an instruction to overwrite a file
+   * into a to do list. See OverwriteBacklog.
+   */
+  @Override
+  public void add( String entryid, String targetpath, String sourcepath, String vsname, String owner, long size )
+  {
+    backlog.add( entryid, targetpath, sourcepath, vsname, owner, size );
+  }
+  
+  /**
+   * Open the journal and schedule the tasks that were not done before the
+   * last shutdown. Must be called before anything can add tasks.
+   */
+  void openJournal()
+  {
+    if ( webappcore.journalbase == null )
+      return;
+    backlog.openJournal( webappcore.journalbase.resolve( "overwrite_" + webappcore.serverid + ".journal" ) );
+  }
+  
+  public OverwriteJournal getJournal()
+  {
+    return backlog.getJournal();
+  }
+  
+  /**
+   * @return Number of times a batch's context was rolled back because an
+   * overwrite failed.
+   */
+  public long getRollbacks()
+  {
+    return rollbacks.get();
+  }
+  
+  /**
+   * Set how ready tasks are ordered.
    * 
-   * @param targetpath The Xythos file to overwrite.
-   * @param sourcepath The Xythos file to overwrite with.
-   * @param vs The Xythos server ID where both files are located.
+   * @param largestfirst True to do the task that frees most storage first.
+   * @param agingmbperminute Priority in MB a task gains for each minute it waits.
    */
-  public void add( String targetpath, String sourcepath, VirtualServer vs )
+  public void setOrder( boolean largestfirst, int agingmbperminute )
   {
-    synchronized( pending )
-    {
-      Entry entry = new Entry();
-      entry.sourcepath = sourcepath;
-      entry.targetpath = targetpath;
-      entry.vs = vs;
-      entry.timestamp = System.currentTimeMillis();
-      pending.add( entry );
-    }
+    scheduler.setOrder( largestfirst, agingmbperminute );
   }
   
   /**
-   * Called from inside the worker thread to get the next instruction to
-   * work on. Requires that a path to be a minimum age before popping.
-   * @return 
+   * @return Bytes of storage freed by overwriting since startup.
    */
-  Entry pop()
+  public long getBytesReclaimed()
   {
-    synchronized( pending )
-    {
-      long now = System.currentTimeMillis();
-      for ( int i=0; i<pending.size(); i++ )
-      {
-        Entry e = pending.get( i );
-        long age = now - e.timestamp;
-        if ( age > MINIMUM_AGE_MILLIS )
-        {
-          pending.remove( i );
-          return e;
-        }
-      }
-      return null;
-    }    
+    return bytesreclaimed.get();
   }
-
+  
+  public OverwriteScheduler getScheduler()
+  {
+    return scheduler;
+  }
+  
   /**
-   * Called once to start the thread that does the work.
+   * Called once to start the threads that do the work. The journal is 
+   * opened separately, earlier, so that no tasks go unjournaled.
    */
-  public void start()
+  public synchronized void start()
   {
-    if ( worker != null )
+    if ( !workers.isEmpty() )
       throw new IllegalArgumentException( "Thread already started." );
-    webappcore.logger.info( "FileProcessWorker is starting its thread." );
-    worker = new Thread( this );
-    worker.start();
+    webappcore.logger.info( "FileProcessWorker is starting " + threadcount + " threads." );
+    for ( int i=0; i<threadcount; i++ )
+    {
+      Thread worker = new Thread( this, "FileProcessWorker-" + i );
+      workers.add( worker );
+      worker.start();
+    }
   }
   
-  public void interrupt()
+  public synchronized void interrupt()
   {
-    if ( worker != null )
+    for ( Thread worker : workers )
       worker.interrupt();
+    workers.clear();
+    backlog.closeJournal();
   }
   
   /**
@@ -107,18 +158,14 @@ public class FileProcessWorker implements Runnable
   {
     try
     {
-      webappcore.logger.info( "FileProcessWorker has started." );
+      webappcore.logger.info( Thread.currentThread().getName() + " has started." );
       process();
     }
     catch ( Throwable t )
     {
       webappcore.logger.info( "Exception stopped the FileProcessWorker.", t );     
     }
-    finally
-    {
-      worker = null;    
-    }
-    webappcore.logger.info( "FileProcessWorker has stopped." );
+    webappcore.logger.info( Thread.currentThread().getName() + " has stopped." );
   }
   
   /**
@@ -126,113 +173,225 @@ public class FileProcessWorker implements Runnable
    */
   public void process()
   {
-    try { Thread.sleep( 5000 ); } catch (InterruptedException ex) {}
-    while ( !worker.isInterrupted() )
-    {    
-      // Clear the queue
-      Entry entry=null;
-      while ( (entry = pop()) != null )
-      {
-        webappcore.logger.debug( "Processing {" + entry.targetpath + "}" );
-        if ( entry.sourcepath != null && entry.sourcepath.length() > 0 )
+    try
+    {
+      Thread.sleep( 5000 );
+      while ( !Thread.currentThread().isInterrupted() )
+      {    
+        List<OverwriteTask> batch = scheduler.nextBatch( batchsize );
+        try
         {
-          try
-          {
-            overwriteOneHugeFile(entry.targetpath, entry.sourcepath, entry.vs );
-          }
-          catch ( Exception ex )
-          {
-            webappcore.logger.error( "Exception while attempting to overwrite file.", ex );
-          }
+          overwriteBatch( batch );
+        }
+        finally
+        {
+          scheduler.endBatch( batch );
         }
-      }
-      
-      // Be kind to the CPU
-      if ( entry == null )
-      {
-        try { Thread.sleep( 60000 ); } catch (InterruptedException ex) {}
-        webappcore.logger.debug( "FileProcessWorker woke up." );
       }
     }
-    webappcore.logger.info( "FileProcessWorker thread ending due to thread interruption." );
+    catch ( InterruptedException ex )
+    {
+      // Normal way to stop.
+    }
+    webappcore.logger.info( Thread.currentThread().getName() + " ending due to thread interruption." );
   }
   
-  void overwriteOneHugeFile( String targetpath, String sourcepath, VirtualServer vs ) throws StorageServerException, XythosException, TaskException
+  VirtualServer getVirtualServer( String name )
   {
-    webappcore.logger.info( "Overwriting " + targetpath );
-    Context context=null;
+    VirtualServer vs = name == null ? null : virtualservers.computeIfAbsent( name, VirtualServer::find );
+    return vs != null ? vs : VirtualServer.getDefaultVirtualServer();
+  }
+  
+  /**
+   * Carry out a batch of tasks, which are all on the same virtual server,
+   * in one Xythos admin context that is committed at the end. Xythos 
+   * contexts have no savepoints so if a task throws an exception the 
+   * context is rolled back, the tasks that had already worked are done 
+   * again in a new context and the batch carries on without the failed 
+   * task. The journal only records tasks as done after the commit. If no
+   * context can be had or the commit fails the tasks that were not 
+   * carried out are handed back to the scheduler to be retried once 
+   * Xythos has had time to recover.
+   */
+  void overwriteBatch( List<OverwriteTask> batch )
+  {
+    VirtualServer vs = getVirtualServer( batch.get( 0 ).vsname );
+    ArrayDeque<OverwriteTask> todo = new ArrayDeque<>( batch );
+    ArrayList<OverwriteTask> overwritten = new ArrayList<>();
+    HashMap<String,SourceFile> sources = new HashMap<>();
+    Context context = null;
     
     try
     {
-      
-      context = AdminUtil.getContextForAdmin( "FileProcessWorker" );
-      if ( context == null )
+      while ( !todo.isEmpty() )
       {
-        webappcore.logger.error( "Unable to obtain Xythos context for admin.\n" );
-        throw new TaskException( "Unable to obtain Xythos context for admin.\n" );
+        if ( context == null )
+        {
+          context = AdminUtil.getContextForAdmin( "FileProcessWorker" );
+          if ( context == null )
+          {
+            webappcore.logger.error( "Unable to obtain Xythos context for admin.\n" );
+            throw new TaskException( "Unable to obtain Xythos context for admin.\n" );
+          }
+          // Entries found in an old context mustn't be used in a new one.
+          sources.clear();
+        }
+        
+        OverwriteTask task = todo.poll();
+        webappcore.logger.debug( "Processing {" + task.targetpath + "}" );
+        long start = System.nanoTime();
+        try
+        {
+          if ( overwriteOneHugeFile( task, vs, context, sources ) )
+            overwritten.add( task );
+          else
+            finish( task, false );
+        }
+        catch ( XythosException | RuntimeException ex )
+        {
+          // Only this task fails. The context may have been partly 
+          // changed so the tasks before it are redone in a new one.
+          webappcore.logger.error( "Error overwriting " + task.targetpath + ". Redoing " + overwritten.size() + " overwrites in a new context.", ex );
+          rollbacks.incrementAndGet();
+          abandon( context );
+          context = null;
+          finish( task, false );
+          for ( int i=overwritten.size()-1; i>=0; i-- )
+            todo.addFirst( overwritten.get( i ) );
+          overwritten.clear();
+        }
+        finally
+        {
+          webappcore.overwritetime.recordNanos( System.nanoTime() - start );
+        }
       }
       
-      String path = targetpath;
-      int n = path.lastIndexOf( "/" );
-      String destinationdir = path.substring( 0, n );
-      String destinationname = path.substring( n+1 );
-      
-      
-      FileSystemEntry sourcefile = FileSystem.findEntry( vs, sourcepath, false, context );
-      if ( sourcefile == null )
-      {
-        webappcore.logger.error( "File not found: " + sourcepath + " on Xythos virtual server " + vs.getName() );
-        return;
-      }
-      webappcore.logger.info( "Copying " + sourcefile.getName() + " over " + targetpath );
-      DirectoryEntry de = (DirectoryEntry)sourcefile;
-      File f = (File)sourcefile;
-      int version = f.getFileVersion();
-
-      DirectoryEntry newentry = de.copyNode( 
-              version,                       // version number of source to copy
-              vs,                            // virtual server
-              destinationdir,                // destination dir
-              destinationname,               // (new) name
-              de.getCreatedByPrincipalID(),  // same owner as source
-              2,                             // webdav depth; 2 means infinite which is default depth
-              true,                          // overwrite 
-              DirectoryEntry.TRASH_OP.NONE,  // no trash operation
-              false                          // not move, copy
-      );
-
-      // Renaming is done with 'move' using same parent directory
-      // This should preserve the file ID and should not break links to
-      // the original. It is done so that users understand that this is 
-      // a different file.
-      newentry.move( destinationdir, "video_removed_" + System.currentTimeMillis() + "_" + destinationname, false );
-    }
-    catch ( XythosException th )
-    {
-      webappcore.logger.error( "Error occured looking for files in course directory.", th);
       if ( context != null )
       {
-        try { context.rollbackContext(); }
-        catch ( XythosException ex ) { webappcore.logger.error( "Failed to roll back Xythos context.", ex ); }
+        context.commitContext();
+        context = null;
       }
+      for ( OverwriteTask task : overwritten )
+        finish( task, true );
     }
-    finally
+    catch ( Exception ex )
     {
+      // No context or the commit failed so nothing in the context was 
+      // kept. Neither the overwritten tasks nor those not yet tried have
+      // been done.
+      webappcore.logger.error( "Exception while attempting to overwrite files. " + 
+              (overwritten.size() + todo.size()) + " will be tried again.", ex );
       if ( context != null )
-      {
-       try { context.commitContext(); }
-        catch ( XythosException ex ) { webappcore.logger.error( "Failed to commit Xythos context.", ex ); }
-      }
+        abandon( context );
+      long retryat = System.currentTimeMillis() + RETRY_DELAY_MILLIS;
+      for ( OverwriteTask task : overwritten )
+        backlog.requeue( task, retryat );
+      for ( OverwriteTask task : todo )
+        backlog.requeue( task, retryat );
     }
   }
-
   
+  /**
+   * Failed tasks are not retried so they are done with too. The bytes 
+   * counted as reclaimed are the same estimate the scheduler counted as
+   * pending.
+   */
+  private void finish( OverwriteTask task, boolean success )
+  {
+    if ( success )
+      bytesreclaimed.addAndGet( task.reclaimable );
+    backlog.finish( task, success );
+  }
   
-  class Entry
+  /**
+   * Roll back a context. It is committed afterwards to release it.
+   */
+  private void abandon( Context context )
   {
-    String sourcepath;
-    String targetpath;
-    VirtualServer vs;
-    long timestamp;
+    try { context.rollbackContext(); }
+    catch ( XythosException ex ) { webappcore.logger.error( "Failed to roll back Xythos context.", ex ); }
+    try { context.commitContext(); }
+    catch ( XythosException ex ) { webappcore.logger.error( "Failed to commit Xythos context.", ex ); }
+  }
+  
+  /**
+   * Copy one file over another and rename the result. Nothing is done if
+   * the file at the target path is not the entry that was uploaded, for 
+   * example because this task was already carried out before a restart.
+   * 
+   * @param task The task.
+   * @param vs The virtual server both files are on.
+   * @param context An admin context which the caller commits.
+   * @param sources Source files already found in this context.
+   * @return True if the file was overwritten.
+   */
+  boolean overwriteOneHugeFile( OverwriteTask task, VirtualServer vs, Context context, HashMap<String,SourceFile> sources ) throws XythosException
+  {
+    String targetpath = task.targetpath;
+    String sourcepath = task.sourcepath;
+    if ( sourcepath == null || sourcepath.length() == 0 )
+      return false;
+    
+    webappcore.logger.info( "Overwriting " + targetpath );
+    String path = targetpath;
+    int n = path.lastIndexOf( "/" );
+    String destinationdir = path.substring( 0, n );
+    String destinationname = path.substring( n+1 );
+
+    FileSystemEntry targetfile = FileSystem.findEntry( vs, targetpath, false, context );
+    if ( targetfile == null || (task.entryid != null && !task.entryid.equals( String.valueOf( targetfile.getEntryID() ) )) )
+    {
+      webappcore.logger.info( "Not overwriting " + targetpath + " because entry " + task.entryid + " is no longer there." );
+      return false;
+    }
+
+    SourceFile source = sources.get( sourcepath );
+    if ( source == null )
+    {
+      source = new SourceFile( FileSystem.findEntry( vs, sourcepath, false, context ) );
+      sources.put( sourcepath, source );
+      if ( source.entry != null )
+        backlog.setPlaceholderSize( sourcepath, source.entry.getEntrySize() );
+    }
+    if ( source.entry == null )
+    {
+      webappcore.logger.error( "File not found: " + sourcepath + " on Xythos virtual server " + vs.getName() );
+      return false;
+    }
+    webappcore.logger.info( "Copying " + source.entry.getName() + " over " + targetpath );
+
+    DirectoryEntry newentry = source.entry.copyNode( 
+            source.version,                       // version number of source to copy
+            vs,                                   // virtual server
+            destinationdir,                       // destination dir
+            destinationname,                      // (new) name
+            source.entry.getCreatedByPrincipalID(),  // same owner as source
+            2,                                    // webdav depth; 2 means infinite which is default depth
+            true,                                 // overwrite 
+            DirectoryEntry.TRASH_OP.NONE,         // no trash operation
+            false                                 // not move, copy
+    );
+
+    // Renaming is done with 'move' using same parent directory
+    // This should preserve the file ID and should not break links to
+    // the original. It is done so that users understand that this is 
+    // a different file.
+    newentry.move( destinationdir, "video_removed_" + System.currentTimeMillis() + "_" + destinationname, false );
+    return true;
+  }
+  
+  /**
+   * A source file and its current version, looked up once per batch.
+   */
+  static class SourceFile
+  {
+    final DirectoryEntry entry;
+    final int version;
+
+    SourceFile( FileSystemEntry found )
+    {
+      entry = (DirectoryEntry)found;
+      version = found == null ? 0 : ((File)found).getFileVersion();
+    }
   }
 }
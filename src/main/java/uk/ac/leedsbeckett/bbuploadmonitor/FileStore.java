@@ -0,0 +1,53 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+/**
+ * Somewhere files can be looked up by entry ID. Events are processed in 
+ * batches and each batch uses one session.
+ * 
+ * @author jon
+ */
+public interface FileStore
+{
+  /**
+   * Lookups for one batch of events.
+   */
+  interface Session extends AutoCloseable
+  {
+    /**
+     * @param entryid The entry ID from an event.
+     * @return The file or null if there is no entry with that ID.
+     * @throws Exception If the lookup failed.
+     */
+    FileDetails find( long entryid ) throws Exception;
+
+    /**
+     * Finish with the session.
+     * @throws Exception 
+     */
+    @Override
+    void close() throws Exception;
+  }
+  
+  /**
+   * @return A new session.
+   * @throws Exception If the file store can't be used.
+   */
+  Session open() throws Exception;
+}
@@ -0,0 +1,418 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+import org.apache.log4j.Logger;
+
+/**
+ * An append only file of records which lets work that is waiting to be 
+ * done survive a restart. Subclasses decide what the records mean. 
+ * <p>
+ * Each record is written as a length, a type byte, the payload and a CRC
+ * so a record that was only partly written when the server stopped is
+ * detected and discarded on replay. Records are buffered in memory and a
+ * background thread writes and syncs them to disk at a fixed interval so
+ * many records share the cost of one fsync and adding a record never 
+ * waits for the disk. When most of the records describe work that has 
+ * been finished the same thread compacts the file by writing out just 
+ * the live records to a new file and renaming it over the old one.
+ * 
+ * @author jon
+ */
+public abstract class Journal
+{
+  public static final int MAXIMUM_RECORD_LENGTH = 16*1024*1024;
+  public static final int COMPACT_MINIMUM_RECORDS = 1000;
+  
+  final Path file;
+  final Logger logger;
+  final long syncintervalmillis;
+  
+  // Records are added to the buffer while holding this object's monitor,
+  // which is quick. The file is only written while holding iolock so 
+  // adding records never waits for the disk. Where both are needed iolock 
+  // is always taken first.
+  final Object iolock = new Object();
+  final ByteArrayOutputStream buffer = new ByteArrayOutputStream( 64*1024 );
+  final DataOutputStream out = new DataOutputStream( buffer );
+  FileOutputStream fout;
+  boolean open = false;
+  volatile boolean compactwanted = false;
+  Thread syncer;
+  long recordcount = 0L;
+  long lastreplaymillis = 0L;
+
+  /**
+   * @param file Where the journal is kept.
+   * @param syncintervalmillis Longest time a record can wait before it is synced to disk.
+   * @param logger For problems.
+   */
+  public Journal( Path file, long syncintervalmillis, Logger logger )
+  {
+    this.file = file;
+    this.syncintervalmillis = syncintervalmillis;
+    this.logger = logger;
+  }
+  
+  /**
+   * Called for each intact record found when the journal is opened.
+   * @param type The record type.
+   * @param in For reading the payload.
+   * @throws IOException 
+   */
+  protected abstract void replayRecord( byte type, DataInputStream in ) throws IOException;
+
+  /**
+   * Called during compaction. Should call append for each record that is 
+   * still needed.
+   * @throws IOException 
+   */
+  protected abstract void writeLiveRecords() throws IOException;
+
+  /**
+   * @return How many records would be written by writeLiveRecords.
+   */
+  protected abstract int getLiveCount();
+  
+  /**
+   * Replay the existing records, if any, then get ready to append new ones.
+   * @throws IOException 
+   */
+  public void open() throws IOException
+  {
+    synchronized ( iolock )
+    {
+      synchronized ( this )
+      {
+        if ( open )
+          throw new IllegalStateException( "Journal already open." );
+        Files.createDirectories( file.getParent() );
+        if ( Files.exists( file ) )
+          replay();
+        fout = new FileOutputStream( file.toFile(), true );
+        open = true;
+        syncer = new Thread( this::runSyncer, "Journal-" + file.getFileName() );
+        syncer.setDaemon( true );
+        syncer.start();
+      }
+    }
+  }
+  
+  /**
+   * Sync and close the file.
+   */
+  public void close()
+  {
+    Thread t;
+    synchronized ( this )
+    {
+      t = syncer;
+      syncer = null;
+    }
+    if ( t != null )
+      t.interrupt();
+    synchronized ( iolock )
+    {
+      synchronized ( this )
+      {
+        if ( !open )
+          return;
+        // No more records can be added.
+        open = false;
+      }
+      try
+      {
+        sync();
+        fout.close();
+      }
+      catch ( IOException ex )
+      {
+        logger.error( "Problem closing journal " + file, ex );
+      }
+      fout = null;
+    }
+  }
+
+  private void replay() throws IOException
+  {
+    long start = System.currentTimeMillis();
+    long goodlength = 0L;
+    recordcount = 0L;
+    CRC32 crc = new CRC32();
+    byte[] readbuffer = new byte[1024];
+    try ( InputStream fin = Files.newInputStream( file );
+          DataInputStream in = new DataInputStream( new BufferedInputStream( fin, 64*1024 ) ) )
+    {
+      while ( true )
+      {
+        int length;
+        try { length = in.readInt(); } catch ( EOFException eof ) { break; }
+        if ( length < 1 || length > MAXIMUM_RECORD_LENGTH )
+        {
+          logger.warn( "Journal " + file + " has a bad record length at " + goodlength );
+          break;
+        }
+        if ( readbuffer.length < length )
+          readbuffer = new byte[Math.max( length, readbuffer.length*2 )];
+        int storedcrc;
+        try
+        {
+          in.readFully( readbuffer, 0, length );
+          storedcrc = in.readInt();
+        }
+        catch ( EOFException eof )
+        {
+          logger.warn( "Journal " + file + " ends with an incomplete record." );
+          break;
+        }
+        crc.reset();
+        crc.update( readbuffer, 0, length );
+        if ( (int)crc.getValue() != storedcrc )
+        {
+          logger.warn( "Journal " + file + " has a corrupt record at " + goodlength );
+          break;
+        }
+        try ( DataInputStream recin = new DataInputStream( new ByteArrayInputStream( readbuffer, 1, length-1 ) ) )
+        {
+          replayRecord( readbuffer[0], recin );
+        }
+        goodlength += 4 + length + 4;
+        recordcount++;
+      }
+    }
+    
+    // Chop off anything after the last good record so new records 
+    // are not appended after rubbish.
+    if ( goodlength < Files.size( file ) )
+    {
+      try ( RandomAccessFile raf = new RandomAccessFile( file.toFile(), "rw" ) )
+      {
+        raf.setLength( goodlength );
+      }
+    }
+    lastreplaymillis = System.currentTimeMillis() - start;
+    logger.info( "Replayed " + recordcount + " records from journal " + file + " in " + lastreplaymillis + "ms." );
+  }
+  
+  /**
+   * Add a record. It is buffered and will be synced to disk within the 
+   * sync interval.
+   * @param type The record type.
+   * @param payload The record content.
+   * @throws IOException 
+   */
+  protected synchronized void append( byte type, byte[] payload ) throws IOException
+  {
+    if ( !open )
+      throw new IOException( "Journal is not open." );
+    CRC32 crc = new CRC32();
+    crc.update( type );
+    crc.update( payload );
+    out.writeInt( payload.length + 1 );
+    out.writeByte( type );
+    out.write( payload );
+    out.writeInt( (int)crc.getValue() );
+    recordcount++;
+  }
+  
+  /**
+   * Force buffered records onto the disk. Only takes the buffered records
+   * while holding the monitor so records can still be added while the
+   * disk is busy.
+   * @throws IOException 
+   */
+  public void sync() throws IOException
+  {
+    synchronized ( iolock )
+    {
+      byte[] bytes;
+      synchronized ( this )
+      {
+        if ( fout == null || buffer.size() == 0 )
+          return;
+        bytes = buffer.toByteArray();
+        buffer.reset();
+      }
+      fout.write( bytes );
+      fout.getChannel().force( false );
+    }
+  }
+  
+  /**
+   * Ask the sync thread to rewrite the journal if most of its records are
+   * no longer needed.
+   */
+  protected synchronized void compactIfWorthwhile()
+  {
+    if ( recordcount < COMPACT_MINIMUM_RECORDS || recordcount < 4L * getLiveCount() )
+      return;
+    compactwanted = true;
+  }
+  
+  /**
+   * Write the live records to a new file and replace the old one with it.
+   * The live records are only copied to memory while holding the monitor,
+   * the new file is written and renamed while holding the I/O lock alone. 
+   * Records added meanwhile stay in the buffer and go to the new file.
+   * @throws IOException 
+   */
+  void compact() throws IOException
+  {
+    synchronized ( iolock )
+    {
+      long before;
+      long snapshotcount;
+      byte[] older;
+      byte[] snapshot;
+      synchronized ( this )
+      {
+        compactwanted = false;
+        if ( !open )
+          return;
+        before = recordcount;
+        // The buffered records are already reflected in the live records
+        // but the old file will still need them if the new one fails.
+        older = buffer.toByteArray();
+        buffer.reset();
+        recordcount = 0L;
+        writeLiveRecords();
+        snapshot = buffer.toByteArray();
+        buffer.reset();
+        snapshotcount = recordcount;
+      }
+      
+      Path temp = file.resolveSibling( file.getFileName().toString() + ".tmp" );
+      try
+      {
+        try ( FileOutputStream tempout = new FileOutputStream( temp.toFile(), false ) )
+        {
+          tempout.write( snapshot );
+          tempout.getChannel().force( false );
+        }
+        Files.move( temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+      }
+      catch ( IOException ex )
+      {
+        // Carry on with the old file.
+        fout.write( older );
+        synchronized ( this )
+        {
+          recordcount += before - snapshotcount;
+        }
+        throw ex;
+      }
+      fout.close();
+      fout = new FileOutputStream( file.toFile(), true );
+      logger.info( "Compacted journal " + file + " from " + before + " to " + snapshotcount + " records." );
+    }
+  }
+
+  private void runSyncer()
+  {
+    while ( !Thread.currentThread().isInterrupted() )
+    {
+      try
+      {
+        Thread.sleep( syncintervalmillis );
+      }
+      catch ( InterruptedException ex )
+      {
+        break;
+      }
+      try
+      {
+        sync();
+        if ( compactwanted )
+          compact();
+      }
+      catch ( IOException ex )
+      {
+        logger.error( "Unable to sync journal " + file, ex );
+      }
+    }
+  }
+  
+  public synchronized long getRecordCount()
+  {
+    return recordcount;
+  }
+
+  /**
+   * @return How long the last replay took in milliseconds.
+   */
+  public long getLastReplayMillis()
+  {
+    return lastreplaymillis;
+  }
+  
+  /**
+   * Strings are written with an int length because writeUTF is limited 
+   * to 64K which an email body could exceed.
+   */
+  protected static void writeString( DataOutputStream out, String s ) throws IOException
+  {
+    if ( s == null )
+    {
+      out.writeInt( -1 );
+      return;
+    }
+    byte[] b = s.getBytes( StandardCharsets.UTF_8 );
+    out.writeInt( b.length );
+    out.write( b );
+  }
+  
+  protected static String readString( DataInputStream in ) throws IOException
+  {
+    int length = in.readInt();
+    if ( length < 0 )
+      return null;
+    byte[] b = new byte[length];
+    in.readFully( b );
+    return new String( b, StandardCharsets.UTF_8 );
+  }
+
+  /**
+   * A convenient way for subclasses to build a payload.
+   */
+  protected static class PayloadBuilder extends DataOutputStream
+  {
+    public PayloadBuilder()
+    {
+      super( new ByteArrayOutputStream( 256 ) );
+    }
+    
+    public byte[] toByteArray()
+    {
+      return ((ByteArrayOutputStream)out).toByteArray();
+    }
+  }
+}
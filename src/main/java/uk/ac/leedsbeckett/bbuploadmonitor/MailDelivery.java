@@ -0,0 +1,283 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.util.ArrayDeque;
+import java.util.Properties;
+import java.util.concurrent.atomic.LongAdder;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+import org.apache.log4j.Logger;
+
+/**
+ * Sends email through a small pool of SMTP connections which are kept open
+ * between messages. The mail Session is built once each time the 
+ * configuration is loaded instead of once per message. A connection that
+ * has been idle for a while is checked before use and any connection that
+ * fails is closed and replaced with a new one.
+ * 
+ * @author jon
+ */
+public class MailDelivery
+{
+  /**
+   * A connection idle for longer than this is checked with a NOOP before 
+   * it is used.
+   */
+  public static final long CHECK_IDLE_MILLIS = 30L*1000L;
+  
+  /**
+   * A connection idle for longer than this is closed rather than used.
+   * Many SMTP servers drop idle clients after a few minutes.
+   */
+  public static final long MAXIMUM_IDLE_MILLIS = 4L*60L*1000L;
+  
+  /**
+   * Connections are closed after this many messages so no one connection
+   * is kept forever.
+   */
+  public static final int MAXIMUM_MESSAGES_PER_CONNECTION = 500;
+  
+  final Logger logger;
+  final ArrayDeque<PooledTransport> idle = new ArrayDeque<>();
+  Session session;
+  String smtphost;
+  int poolsize = 2;
+  int generation = 0;
+  int open = 0;
+  
+  final LongAdder connections = new LongAdder();
+  final LongAdder reconnects  = new LongAdder();
+  final LongAdder messages    = new LongAdder();
+
+  public MailDelivery( Logger logger )
+  {
+    this.logger = logger;
+  }
+
+  /**
+   * Build a new mail session. Connections made with the previous session 
+   * are closed when they are next returned to the pool.
+   * 
+   * @param smtphost The SMTP server.
+   * @param timeoutmillis Connect, read and write timeout.
+   * @param poolsize Maximum number of connections to keep open.
+   */
+  public synchronized void configure( String smtphost, long timeoutmillis, int poolsize )
+  {
+    String timeout = Long.toString( timeoutmillis );
+    Properties mailprops = new Properties();
+    mailprops.setProperty( "mail.smtp.host", smtphost );
+    mailprops.setProperty( "mail.smtp.connectiontimeout", timeout );
+    mailprops.setProperty( "mail.smtp.timeout", timeout );
+    mailprops.setProperty( "mail.smtp.writetimeout", timeout );
+    // Not the default instance because that keeps the first properties 
+    // it is given forever.
+    session = Session.getInstance( mailprops );
+    this.smtphost = smtphost;
+    this.poolsize = Math.max( 1, poolsize );
+    generation++;
+    while ( !idle.isEmpty() )
+      discard( idle.poll() );
+    logger.info( "Mail delivery using " + smtphost );
+  }
+  
+  /**
+   * @return A new empty message for the current session.
+   */
+  public synchronized MimeMessage createMessage()
+  {
+    if ( session == null )
+      throw new IllegalStateException( "Mail delivery has not been configured." );
+    return new MimeMessage( session );
+  }
+  
+  /**
+   * Send a message using a pooled connection. If the connection fails it
+   * is replaced and the message is tried once more.
+   * 
+   * @param message The message.
+   * @throws MessagingException If the message could not be sent.
+   */
+  public void send( MimeMessage message ) throws MessagingException
+  {
+    message.saveChanges();
+    PooledTransport pt = borrow();
+    try
+    {
+      pt.transport.sendMessage( message, message.getAllRecipients() );
+    }
+    catch ( SendFailedException sfex )
+    {
+      // The connection is fine but the server refused the addresses.
+      giveBack( pt );
+      throw sfex;
+    }
+    catch ( MessagingException mex )
+    {
+      logger.debug( "SMTP connection failed, reconnecting.", mex );
+      discard( pt );
+      reconnects.increment();
+      pt = borrow();
+      try
+      {
+        pt.transport.sendMessage( message, message.getAllRecipients() );
+      }
+      catch ( MessagingException mex2 )
+      {
+        discard( pt );
+        throw mex2;
+      }
+    }
+    pt.messages++;
+    messages.increment();
+    giveBack( pt );
+  }
+  
+  /**
+   * Get a connected transport from the pool or make a new one.
+   */
+  private PooledTransport borrow() throws MessagingException
+  {
+    PooledTransport pt;
+    Session s;
+    int g;
+    synchronized ( this )
+    {
+      pt = idle.poll();
+      s = session;
+      g = generation;
+      if ( pt == null )
+        open++;
+    }
+    if ( s == null )
+      throw new MessagingException( "Mail delivery has not been configured." );
+    
+    if ( pt != null )
+    {
+      long idlemillis = System.currentTimeMillis() - pt.lastused;
+      if ( idlemillis < CHECK_IDLE_MILLIS )
+        return pt;
+      // isConnected sends NOOP to the server.
+      if ( idlemillis < MAXIMUM_IDLE_MILLIS && pt.transport.isConnected() )
+        return pt;
+      close( pt );
+    }
+    
+    try
+    {
+      Transport t = s.getTransport( "smtp" );
+      t.connect();
+      connections.increment();
+      return new PooledTransport( t, g );
+    }
+    catch ( MessagingException mex )
+    {
+      synchronized ( this ) { open--; }
+      throw mex;
+    }
+  }
+  
+  private void giveBack( PooledTransport pt )
+  {
+    pt.lastused = System.currentTimeMillis();
+    synchronized ( this )
+    {
+      if ( pt.generation == generation && 
+           pt.messages < MAXIMUM_MESSAGES_PER_CONNECTION && 
+           idle.size() < poolsize )
+      {
+        idle.push( pt );
+        return;
+      }
+    }
+    discard( pt );
+  }
+  
+  private void discard( PooledTransport pt )
+  {
+    synchronized ( this ) { open--; }
+    close( pt );
+  }
+  
+  private void close( PooledTransport pt )
+  {
+    try
+    {
+      pt.transport.close();
+    }
+    catch ( MessagingException ex )
+    {
+      logger.debug( "Exception closing SMTP connection.", ex );
+    }
+  }
+  
+  /**
+   * Close all idle connections.
+   */
+  public void close()
+  {
+    synchronized ( this )
+    {
+      generation++;
+      while ( !idle.isEmpty() )
+        discard( idle.poll() );
+    }
+  }
+
+  public synchronized String getSmtpHost()
+  {
+    return smtphost;
+  }
+
+  public synchronized int getOpenConnections()
+  {
+    return open;
+  }
+
+  public long getConnections()
+  {
+    return connections.sum();
+  }
+
+  public long getReconnects()
+  {
+    return reconnects.sum();
+  }
+
+  public long getMessages()
+  {
+    return messages.sum();
+  }
+  
+  static class PooledTransport
+  {
+    final Transport transport;
+    final int generation;
+    long lastused = System.currentTimeMillis();
+    int messages = 0;
+
+    PooledTransport( Transport transport, int generation )
+    {
+      this.transport = transport;
+      this.generation = generation;
+    }
+  }
+}
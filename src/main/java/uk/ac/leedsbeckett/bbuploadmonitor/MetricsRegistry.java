@@ -0,0 +1,353 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Counters, latency histograms and gauges for the whole plugin. Counters
+ * and histograms are made of LongAdders so threads updating them don't
+ * contend, and updating them allocates nothing. Metrics are created once,
+ * by name and optional label, and the code that updates them keeps a 
+ * reference so the hot path never looks anything up. Counters and 
+ * histograms can be reset while events are being processed. Gauges read 
+ * a current value, like a queue length, when asked.
+ * 
+ * @author jon
+ */
+public class MetricsRegistry
+{
+  /**
+   * Something with a name, help text and an optional label.
+   */
+  public static abstract class Metric
+  {
+    final String name;
+    final String help;
+    final String labelname;
+    final String labelvalue;
+
+    Metric( String name, String help, String labelname, String labelvalue )
+    {
+      this.name       = name;
+      this.help       = help;
+      this.labelname  = labelname;
+      this.labelvalue = labelvalue;
+    }
+
+    public String getName()
+    {
+      return name;
+    }
+
+    public String getHelp()
+    {
+      return help;
+    }
+
+    /**
+     * @return The label's name or null if there is no label.
+     */
+    public String getLabelName()
+    {
+      return labelname;
+    }
+
+    public String getLabelValue()
+    {
+      return labelvalue;
+    }
+  }
+  
+  public static class Counter extends Metric
+  {
+    final LongAdder adder = new LongAdder();
+
+    Counter( String name, String help, String labelname, String labelvalue )
+    {
+      super( name, help, labelname, labelvalue );
+    }
+    
+    public void increment()
+    {
+      adder.increment();
+    }
+    
+    public void add( long n )
+    {
+      adder.add( n );
+    }
+    
+    public long get()
+    {
+      return adder.sum();
+    }
+    
+    void reset()
+    {
+      adder.reset();
+    }
+  }
+  
+  /**
+   * Counts durations in fixed buckets. Percentiles are estimated as the 
+   * upper bound of the bucket they fall in.
+   */
+  public static class Histogram extends Metric
+  {
+    /**
+     * Upper bounds of the buckets in microseconds. There is one more 
+     * bucket for anything longer.
+     */
+    public static final long[] BOUNDS_MICROS = 
+    {
+      100L, 250L, 500L, 
+      1000L, 2500L, 5000L, 
+      10000L, 25000L, 50000L, 
+      100000L, 250000L, 500000L, 
+      1000000L, 2500000L, 5000000L, 
+      10000000L, 30000000L, 60000000L, 300000000L
+    };
+    
+    final LongAdder[] buckets = new LongAdder[BOUNDS_MICROS.length+1];
+    final LongAdder summicros = new LongAdder();
+
+    Histogram( String name, String help, String labelname, String labelvalue )
+    {
+      super( name, help, labelname, labelvalue );
+      for ( int i=0; i<buckets.length; i++ )
+        buckets[i] = new LongAdder();
+    }
+    
+    public void recordNanos( long nanos )
+    {
+      recordMicros( nanos / 1000L );
+    }
+    
+    public void recordMillis( long millis )
+    {
+      recordMicros( millis * 1000L );
+    }
+    
+    public void recordMicros( long micros )
+    {
+      if ( micros < 0L )
+        micros = 0L;
+      int i=0;
+      while ( i < BOUNDS_MICROS.length && micros > BOUNDS_MICROS[i] )
+        i++;
+      buckets[i].increment();
+      summicros.add( micros );
+    }
+    
+    /**
+     * @param i Bucket number.
+     * @return Number of durations in the bucket, not cumulative.
+     */
+    public long getBucketCount( int i )
+    {
+      return buckets[i].sum();
+    }
+    
+    public long getCount()
+    {
+      long n = 0L;
+      for ( LongAdder bucket : buckets )
+        n += bucket.sum();
+      return n;
+    }
+    
+    public long getSumMicros()
+    {
+      return summicros.sum();
+    }
+    
+    /**
+     * @param p Fraction between 0 and 1.
+     * @return Upper bound of the bucket containing that fraction of 
+     * durations in microseconds, 0 if there are none or -1 if it is in the
+     * last, unbounded, bucket.
+     */
+    public long getPercentileMicros( double p )
+    {
+      long[] counts = new long[buckets.length];
+      long total = 0L;
+      for ( int i=0; i<buckets.length; i++ )
+        total += (counts[i] = buckets[i].sum());
+      if ( total == 0L )
+        return 0L;
+      long rank = (long)Math.ceil( p * total );
+      long seen = 0L;
+      for ( int i=0; i<BOUNDS_MICROS.length; i++ )
+      {
+        seen += counts[i];
+        if ( seen >= rank )
+          return BOUNDS_MICROS[i];
+      }
+      return -1L;
+    }
+    
+    void reset()
+    {
+      for ( LongAdder bucket : buckets )
+        bucket.reset();
+      summicros.reset();
+    }
+  }
+  
+  public static class Gauge extends Metric
+  {
+    final DoubleSupplier supplier;
+    final boolean total;
+
+    Gauge( String name, String help, DoubleSupplier supplier, boolean total )
+    {
+      super( name, help, null, null );
+      this.supplier = supplier;
+      this.total    = total;
+    }
+    
+    public double get()
+    {
+      return supplier.getAsDouble();
+    }
+
+    /**
+     * @return True if the value is a running total that only goes up, 
+     * which Prometheus should treat as a counter.
+     */
+    public boolean isTotal()
+    {
+      return total;
+    }
+  }
+  
+  final ConcurrentHashMap<String,Metric> bykey = new ConcurrentHashMap<>();
+  final CopyOnWriteArrayList<Counter>   counters   = new CopyOnWriteArrayList<>();
+  final CopyOnWriteArrayList<Histogram> histograms = new CopyOnWriteArrayList<>();
+  final CopyOnWriteArrayList<Gauge>     gauges     = new CopyOnWriteArrayList<>();
+  volatile long resettime = System.currentTimeMillis();
+  
+  private static String key( String name, String labelname, String labelvalue )
+  {
+    return labelname == null ? name : name + "{" + labelname + "=" + labelvalue + "}";
+  }
+  
+  public Counter counter( String name, String help )
+  {
+    return counter( name, help, null, null );
+  }
+  
+  /**
+   * Find or create a counter. 
+   * 
+   * @param name Name of the metric.
+   * @param help What it counts.
+   * @param labelname Name of the label or null.
+   * @param labelvalue Value of the label.
+   * @return The counter.
+   */
+  public Counter counter( String name, String help, String labelname, String labelvalue )
+  {
+    return (Counter)bykey.computeIfAbsent( key( name, labelname, labelvalue ), k -> 
+    {
+      Counter c = new Counter( name, help, labelname, labelvalue );
+      counters.add( c );
+      return c;
+    } );
+  }
+  
+  public Histogram histogram( String name, String help )
+  {
+    return (Histogram)bykey.computeIfAbsent( key( name, null, null ), k -> 
+    {
+      Histogram h = new Histogram( name, help, null, null );
+      histograms.add( h );
+      return h;
+    } );
+  }
+  
+  /**
+   * Register a gauge, replacing any with the same name.
+   */
+  public Gauge gauge( String name, String help, DoubleSupplier supplier )
+  {
+    return register( new Gauge( name, help, supplier, false ) );
+  }
+  
+  /**
+   * Register a running total kept by another object, like the number of
+   * emails sent, replacing any gauge with the same name. It is read when
+   * asked like a gauge but is a counter to Prometheus. It isn't reset
+   * with the counters.
+   */
+  public Gauge total( String name, String help, DoubleSupplier supplier )
+  {
+    return register( new Gauge( name, help, supplier, true ) );
+  }
+  
+  private Gauge register( Gauge g )
+  {
+    String name = g.getName();
+    Metric old = bykey.put( name, g );
+    if ( old != null )
+      gauges.remove( old );
+    gauges.add( g );
+    return g;
+  }
+  
+  public List<Counter> getCounters()
+  {
+    return new ArrayList<>( counters );
+  }
+  
+  public List<Histogram> getHistograms()
+  {
+    return new ArrayList<>( histograms );
+  }
+  
+  public List<Gauge> getGauges()
+  {
+    return new ArrayList<>( gauges );
+  }
+  
+  /**
+   * Set all counters and histograms to zero. Updates that happen at the 
+   * same time may or may not be kept.
+   */
+  public void reset()
+  {
+    for ( Counter c : counters )
+      c.reset();
+    for ( Histogram h : histograms )
+      h.reset();
+    resettime = System.currentTimeMillis();
+  }
+  
+  /**
+   * @return When the counters were last reset, or created.
+   */
+  public long getResetTime()
+  {
+    return resettime;
+  }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Writes the contents of a MetricsRegistry as JSON or in the Prometheus 
+ * text format. Output goes straight to the writer a metric at a time so 
+ * the response is never built up in memory. Reading the metrics only
+ * sums LongAdders and reads volatile fields so a scrape does not hold up
+ * event processing.
+ * 
+ * @author jon
+ */
+public class MetricsWriter
+{
+  public static final String PREFIX = "bbuploadmonitor_";
+  public static final String CONTENT_TYPE_JSON       = "application/json";
+  public static final String CONTENT_TYPE_PROMETHEUS = "text/plain; version=0.0.4";
+  
+  final MetricsRegistry metrics;
+  final String node;
+
+  /**
+   * @param metrics The metrics to write.
+   * @param node Name of this server, included in the JSON.
+   */
+  public MetricsWriter( MetricsRegistry metrics, String node )
+  {
+    this.metrics = metrics;
+    this.node    = node;
+  }
+  
+  /**
+   * Write in the Prometheus text exposition format. Histograms are given
+   * in seconds with cumulative buckets as Prometheus expects.
+   * 
+   * @param out Where to write.
+   * @throws IOException 
+   */
+  public void writePrometheus( Writer out ) throws IOException
+  {
+    String lastname = null;
+    List<MetricsRegistry.Counter> counters = metrics.getCounters();
+    counters.sort( Comparator.comparing( MetricsRegistry.Counter::getName ) );
+    for ( MetricsRegistry.Counter c : counters )
+    {
+      // Counters with the same name but different labels share one header.
+      if ( !c.getName().equals( lastname ) )
+      {
+        writeHeader( out, c.getName(), c.getHelp(), "counter" );
+        lastname = c.getName();
+      }
+      out.write( PREFIX );
+      out.write( c.getName() );
+      if ( c.getLabelName() != null )
+      {
+        out.write( '{' );
+        out.write( c.getLabelName() );
+        out.write( "=\"" );
+        out.write( escapeLabel( c.getLabelValue() ) );
+        out.write( "\"}" );
+      }
+      out.write( ' ' );
+      out.write( Long.toString( c.get() ) );
+      out.write( '\n' );
+    }
+    
+    for ( MetricsRegistry.Histogram h : metrics.getHistograms() )
+    {
+      String name = h.getName() + "_seconds";
+      writeHeader( out, name, h.getHelp(), "histogram" );
+      long cumulative = 0L;
+      for ( int i=0; i<MetricsRegistry.Histogram.BOUNDS_MICROS.length; i++ )
+      {
+        cumulative += h.getBucketCount( i );
+        writeBucket( out, name, Double.toString( MetricsRegistry.Histogram.BOUNDS_MICROS[i] / 1000000.0 ), cumulative );
+      }
+      cumulative += h.getBucketCount( MetricsRegistry.Histogram.BOUNDS_MICROS.length );
+      writeBucket( out, name, "+Inf", cumulative );
+      out.write( PREFIX + name + "_sum " + ( h.getSumMicros() / 1000000.0 ) + "\n" );
+      out.write( PREFIX + name + "_count " + cumulative + "\n" );
+    }
+    
+    for ( MetricsRegistry.Gauge g : metrics.getGauges() )
+    {
+      String name = g.isTotal() ? g.getName() + "_total" : g.getName();
+      writeHeader( out, name, g.getHelp(), g.isTotal() ? "counter" : "gauge" );
+      out.write( PREFIX + name + " " + formatNumber( g.get() ) + "\n" );
+    }
+  }
+  
+  void writeHeader( Writer out, String name, String help, String type ) throws IOException
+  {
+    out.write( "# HELP " + PREFIX + name + " " + help.replace( "\\", "\\\\" ).replace( "\n", "\\n" ) + "\n" );
+    out.write( "# TYPE " + PREFIX + name + " " + type + "\n" );
+  }
+
+  void writeBucket( Writer out, String name, String le, long count ) throws IOException
+  {
+    out.write( PREFIX + name + "_bucket{le=\"" + le + "\"} " + count + "\n" );
+  }
+  
+  /**
+   * Write as one JSON object. Counters are given with their rate per
+   * second since the metrics were last reset and histograms as count, 
+   * mean and percentiles in milliseconds. A percentile of -1 means it was
+   * longer than the largest bucket.
+   * 
+   * @param out Where to write.
+   * @throws IOException 
+   */
+  public void writeJson( Writer out ) throws IOException
+  {
+    long now = System.currentTimeMillis();
+    long since = metrics.getResetTime();
+    double seconds = Math.max( 1L, now - since ) / 1000.0;
+    
+    out.write( "{\"node\":" + quote( node ) + ",\"time\":" + now + ",\"since\":" + since + ",\n" );
+
+    out.write( "\"counters\":[" );
+    List<MetricsRegistry.Counter> counters = metrics.getCounters();
+    for ( int i=0; i<counters.size(); i++ )
+    {
+      MetricsRegistry.Counter c = counters.get( i );
+      long value = c.get();
+      out.write( i == 0 ? "\n" : ",\n" );
+      out.write( "{\"name\":" + quote( c.getName() ) );
+      if ( c.getLabelName() != null )
+        out.write( ",\"" + c.getLabelName() + "\":" + quote( c.getLabelValue() ) );
+      out.write( ",\"value\":" + value + ",\"persecond\":" + formatNumber( value / seconds ) + "}" );
+    }
+    out.write( "],\n" );
+    
+    out.write( "\"histograms\":[" );
+    List<MetricsRegistry.Histogram> histograms = metrics.getHistograms();
+    for ( int i=0; i<histograms.size(); i++ )
+    {
+      MetricsRegistry.Histogram h = histograms.get( i );
+      long count = h.getCount();
+      out.write( i == 0 ? "\n" : ",\n" );
+      out.write( "{\"name\":" + quote( h.getName() ) + ",\"count\":" + count + 
+                 ",\"meanms\":" + formatNumber( count == 0L ? 0.0 : h.getSumMicros() / 1000.0 / count ) + 
+                 ",\"p50ms\":"  + formatPercentile( h.getPercentileMicros( 0.5  ) ) + 
+                 ",\"p99ms\":"  + formatPercentile( h.getPercentileMicros( 0.99 ) ) + "}" );
+    }
+    out.write( "],\n" );
+    
+    out.write( "\"gauges\":{" );
+    List<MetricsRegistry.Gauge> gauges = metrics.getGauges();
+    for ( int i=0; i<gauges.size(); i++ )
+    {
+      MetricsRegistry.Gauge g = gauges.get( i );
+      out.write( i == 0 ? "\n" : ",\n" );
+      out.write( quote( g.getName() ) + ":" + formatNumber( g.get() ) );
+    }
+    out.write( "}}\n" );
+  }
+
+  static String formatPercentile( long micros )
+  {
+    return micros < 0L ? "-1" : formatNumber( micros / 1000.0 );
+  }
+  
+  /**
+   * Whole numbers without a decimal point, others to four places.
+   */
+  static String formatNumber( double d )
+  {
+    if ( Double.isNaN( d ) || Double.isInfinite( d ) )
+      return "0";
+    if ( d == Math.rint( d ) && Math.abs( d ) < 1e15 )
+      return Long.toString( (long)d );
+    return String.format( Locale.ROOT, "%.4f", d );
+  }
+  
+  static String escapeLabel( String s )
+  {
+    return s.replace( "\\", "\\\\" ).replace( "\"", "\\\"" ).replace( "\n", "\\n" );
+  }
+  
+  static String quote( String s )
+  {
+    if ( s == null )
+      return "null";
+    StringBuilder sb = new StringBuilder( s.length() + 2 );
+    sb.append( '"' );
+    for ( int i=0; i<s.length(); i++ )
+    {
+      char c = s.charAt( i );
+      if ( c == '"' || c == '\\' )
+        sb.append( '\\' ).append( c );
+      else if ( c < 0x20 )
+        sb.append( String.format( Locale.ROOT, "\\u%04x", (int)c ) );
+      else
+        sb.append( c );
+    }
+    sb.append( '"' );
+    return sb.toString();
+  }
+}
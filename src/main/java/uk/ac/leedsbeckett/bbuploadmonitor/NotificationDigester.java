@@ -0,0 +1,285 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.log4j.Logger;
+
+/**
+ * Gathers up the files that one user uploads in quick succession so they
+ * can be told about all of them in one email instead of one email per file.
+ * The first file to match a rule opens a window for that user and rule. 
+ * Files matching other rules go in their own digests because each rule 
+ * has its own wording. The window closes when no more files have matched
+ * for the configured time, or at four times that time since it opened, and
+ * then one digest is sent. There is also a limit on the number of emails 
+ * each user can be sent per day about each rule.
+ * 
+ * @author jon
+ */
+public class NotificationDigester
+{
+  /**
+   * What the digester calls when a window closes.
+   */
+  public interface Sender
+  {
+    /**
+     * @param user The user to email.
+     * @param rule The rule that matched the files, which supplies the
+     * subject and body of the email.
+     * @param rows Placeholder values for each file, in the order they matched.
+     */
+    void sendDigest( UserProfile user, CompiledRule rule, List<Map<String,String>> rows );
+  }
+  
+  final Sender sender;
+  final Logger logger;
+  final HashMap<String,Digest> pending = new HashMap<>();
+  final HashMap<String,Integer> senttoday = new HashMap<>();
+  LocalDate today = LocalDate.now();
+  ScheduledExecutorService scheduler;
+  long nextcheck = Long.MAX_VALUE;
+  
+  long windowmillis = 0L;
+  int  dailycap = 0;
+  
+  final LongAdder matches    = new LongAdder();
+  final LongAdder digests    = new LongAdder();
+  final LongAdder suppressed = new LongAdder();
+
+  public NotificationDigester( Sender sender, Logger logger )
+  {
+    this.sender = sender;
+    this.logger = logger;
+  }
+
+  /**
+   * @param windowmillis How long to wait for more files. Zero means send 
+   * an email for every file straight away.
+   * @param dailycap Maximum emails per user per rule per day. Zero means no limit.
+   */
+  public synchronized void configure( long windowmillis, int dailycap )
+  {
+    this.windowmillis = Math.max( 0L, windowmillis );
+    this.dailycap = Math.max( 0, dailycap );
+  }
+  
+  public synchronized void start()
+  {
+    if ( scheduler != null )
+      return;
+    scheduler = Executors.newSingleThreadScheduledExecutor( r -> 
+    {
+      Thread t = new Thread( r, "NotificationDigester" );
+      t.setDaemon( true );
+      return t;
+    });
+  }
+  
+  /**
+   * Stop and send whatever digests are waiting.
+   */
+  public void stop()
+  {
+    ScheduledExecutorService s;
+    ArrayList<Digest> list;
+    synchronized ( this )
+    {
+      s = scheduler;
+      scheduler = null;
+      list = new ArrayList<>( pending.values() );
+      pending.clear();
+    }
+    if ( s != null )
+      s.shutdownNow();
+    for ( Digest d : list )
+      send( d );
+  }
+  
+  /**
+   * Record that a file uploaded by a user matched a rule with an email 
+   * action.
+   * 
+   * @param user The user who uploaded the file.
+   * @param rule The rule that matched.
+   * @param row Placeholder values describing the file.
+   */
+  public void add( UserProfile user, CompiledRule rule, Map<String,String> row )
+  {
+    matches.increment();
+    Digest d;
+    synchronized ( this )
+    {
+      long now = System.currentTimeMillis();
+      if ( windowmillis == 0L || scheduler == null )
+      {
+        d = new Digest( user, rule, now );
+        d.rows.add( row );
+      }
+      else
+      {
+        d = pending.get( key( user, rule ) );
+        if ( d != null )
+        {
+          d.rows.add( row );
+          d.lastmatch = now;
+          return;
+        }
+        d = new Digest( user, rule, now );
+        d.rows.add( row );
+        pending.put( key( user, rule ), d );
+        scheduleCheck( now, now + windowmillis );
+        return;
+      }
+    }
+    send( d );
+  }
+  
+  /**
+   * Runs on the scheduler thread and sends the digests whose windows 
+   * have closed.
+   */
+  void checkWindows()
+  {
+    ArrayList<Digest> ready = new ArrayList<>();
+    synchronized ( this )
+    {
+      long now = System.currentTimeMillis();
+      long next = Long.MAX_VALUE;
+      nextcheck = Long.MAX_VALUE;
+      for ( Digest d : new ArrayList<>( pending.values() ) )
+      {
+        long closes = Math.min( d.lastmatch + windowmillis, d.opened + 4L*windowmillis );
+        if ( closes <= now )
+        {
+          pending.remove( key( d.user, d.rule ) );
+          ready.add( d );
+        }
+        else
+          next = Math.min( next, closes );
+      }
+      if ( next != Long.MAX_VALUE )
+        scheduleCheck( now, next );
+    }
+    for ( Digest d : ready )
+      send( d );
+  }
+  
+  /**
+   * Make sure there will be a check of the windows no later than a given 
+   * time without piling up lots of scheduled checks.
+   */
+  private void scheduleCheck( long now, long at )
+  {
+    if ( scheduler == null || at >= nextcheck )
+      return;
+    nextcheck = at;
+    scheduler.schedule( this::checkWindows, at - now, TimeUnit.MILLISECONDS );
+  }
+  
+  /**
+   * Digests and daily counts are per user and rule.
+   */
+  static String key( UserProfile user, CompiledRule rule )
+  {
+    return user.getPrincipalId() + "\n" + rule.getName();
+  }
+  
+  /**
+   * Pass a digest on unless the user has reached the daily limit.
+   */
+  void send( Digest d )
+  {
+    synchronized ( this )
+    {
+      LocalDate now = LocalDate.now();
+      if ( !now.equals( today ) )
+      {
+        today = now;
+        senttoday.clear();
+      }
+      String key = key( d.user, d.rule );
+      int count = senttoday.getOrDefault( key, 0 );
+      if ( dailycap > 0 && count >= dailycap )
+      {
+        suppressed.increment();
+        logger.info( "Not emailing " + d.user.getUserName() + " about " + d.rows.size() + 
+                     " file(s) because the daily limit has been reached." );
+        return;
+      }
+      senttoday.put( key, count+1 );
+    }
+    digests.increment();
+    try
+    {
+      sender.sendDigest( d.user, d.rule, d.rows );
+    }
+    catch ( Exception ex )
+    {
+      logger.error( "Exception while sending digest email.", ex );
+    }
+  }
+
+  /**
+   * @return Number of digests waiting for their window to close.
+   */
+  public synchronized int getPendingDigests()
+  {
+    return pending.size();
+  }
+
+  public long getMatches()
+  {
+    return matches.sum();
+  }
+
+  public long getDigests()
+  {
+    return digests.sum();
+  }
+
+  public long getSuppressed()
+  {
+    return suppressed.sum();
+  }
+  
+  static class Digest
+  {
+    final UserProfile user;
+    final CompiledRule rule;
+    final long opened;
+    long lastmatch;
+    final ArrayList<Map<String,String>> rows = new ArrayList<>();
+
+    Digest( UserProfile user, CompiledRule rule, long opened )
+    {
+      this.user = user;
+      this.rule = rule;
+      this.opened = opened;
+      this.lastmatch = opened;
+    }
+  }
+}
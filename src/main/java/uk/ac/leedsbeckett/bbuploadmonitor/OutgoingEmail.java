@@ -0,0 +1,129 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fully rendered email message waiting in the outbox. Addresses are kept
+ * as plain strings so that nothing here depends on the mail API. The
+ * message implements Delayed so that a message which failed can wait in the
+ * outbox until it is time to try again.
+ * 
+ * @author jon
+ */
+public class OutgoingEmail implements Delayed
+{
+  final long   id;
+  final long   created;
+  final String from;
+  final String fromname;
+  final String to;
+  final String toname;
+  final String cc;
+  final String subject;
+  final String body;
+  
+  // Only changed by the sender thread that currently holds the message.
+  int  attempts = 0;
+  long notbefore;
+
+  public OutgoingEmail( long id, long created, 
+          String from, String fromname, String to, String toname, String cc, 
+          String subject, String body )
+  {
+    this.id       = id;
+    this.created  = created;
+    this.from     = from;
+    this.fromname = fromname;
+    this.to       = to;
+    this.toname   = toname;
+    this.cc       = cc;
+    this.subject  = subject;
+    this.body     = body;
+    this.notbefore = created;
+  }
+
+  public long getId()
+  {
+    return id;
+  }
+
+  public long getCreated()
+  {
+    return created;
+  }
+
+  public String getFrom()
+  {
+    return from;
+  }
+
+  public String getFromName()
+  {
+    return fromname;
+  }
+
+  public String getTo()
+  {
+    return to;
+  }
+
+  public String getToName()
+  {
+    return toname;
+  }
+
+  public String getCc()
+  {
+    return cc;
+  }
+
+  public String getSubject()
+  {
+    return subject;
+  }
+
+  public String getBody()
+  {
+    return body;
+  }
+
+  public int getAttempts()
+  {
+    return attempts;
+  }
+
+  @Override
+  public long getDelay( TimeUnit unit )
+  {
+    return unit.convert( notbefore - System.currentTimeMillis(), TimeUnit.MILLISECONDS );
+  }
+
+  @Override
+  public int compareTo( Delayed o )
+  {
+    if ( o instanceof OutgoingEmail )
+    {
+      OutgoingEmail other = (OutgoingEmail)o;
+      int c = Long.compare( notbefore, other.notbefore );
+      return c != 0 ? c : Long.compare( id, other.id );
+    }
+    return Long.compare( getDelay( TimeUnit.MILLISECONDS ), o.getDelay( TimeUnit.MILLISECONDS ) );
+  }
+}
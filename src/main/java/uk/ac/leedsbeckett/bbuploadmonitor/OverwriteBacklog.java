@@ -0,0 +1,194 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.log4j.Logger;
+
+/**
+ * The overwrite tasks that have been asked for and are not finished yet.
+ * Each task is recorded in the journal, if there is one, before it goes in
+ * the scheduler and is recorded as done when it is finished with or
+ * replaced, so tasks survive a restart. Nothing here depends on Xythos.
+ *
+ * @author jon
+ */
+public class OverwriteBacklog implements OverwriteQueue
+{
+  public static final int MINIMUM_AGE_MILLIS = 1000*60;
+  final OverwriteScheduler scheduler;
+  final Logger logger;
+  volatile OverwriteJournal journal;
+
+  /**
+   * Sizes of the files used to overwrite with, learned as they are found.
+   */
+  final ConcurrentHashMap<String,Long> placeholdersizes = new ConcurrentHashMap<>();
+
+  public OverwriteBacklog( OverwriteScheduler scheduler, Logger logger )
+  {
+    this.scheduler = scheduler;
+    this.logger = logger;
+  }
+
+  /**
+   * Open the journal and schedule the tasks that were not done before the
+   * last shutdown. Call before anything can add tasks, otherwise a restored
+   * task could replace a newer one for the same entry. If the journal
+   * can't be opened overwrites still work but are not journaled.
+   *
+   * @param file The journal file.
+   */
+  public synchronized void openJournal( Path file )
+  {
+    if ( journal != null )
+      return;
+    OverwriteJournal j = new OverwriteJournal( file, 1000L, logger );
+    try
+    {
+      j.open();
+    }
+    catch ( IOException ex )
+    {
+      logger.error( "Unable to open overwrite journal. Pending overwrites will be lost on restart.", ex );
+      return;
+    }
+    // Set before replaying so tasks replaced by later ones are journaled
+    // as done and not restored again next time.
+    journal = j;
+    List<OverwriteTask> pending = j.getPending();
+    for ( OverwriteTask task : pending )
+    {
+      task.reclaimable = reclaimable( task );
+      OverwriteTask old = scheduler.add( task );
+      if ( old != null )
+        journalDone( old );
+    }
+    logger.info( "Restored " + pending.size() + " overwrite tasks from journal in " + j.getLastReplayMillis() + "ms." );
+  }
+
+  public synchronized void closeJournal()
+  {
+    if ( journal != null )
+    {
+      journal.close();
+      journal = null;
+    }
+  }
+
+  public OverwriteJournal getJournal()
+  {
+    return journal;
+  }
+
+  /**
+   * Called from other thread to push an instruction to overwrite a file
+   * into a to do list. If there is already an instruction for the same
+   * entry waiting it is replaced by this one.
+   *
+   * @param entryid The Xythos entry ID of the file to overwrite.
+   * @param targetpath The Xythos file to overwrite.
+   * @param sourcepath The Xythos file to overwrite with.
+   * @param vsname Name of the Xythos virtual server where both files are located.
+   * @param owner The principal ID of the user who created the target.
+   * @param size The size of the target in bytes.
+   */
+  @Override
+  public void add( String entryid, String targetpath, String sourcepath, String vsname, String owner, long size )
+  {
+    long now = System.currentTimeMillis();
+    OverwriteTask task = new OverwriteTask( entryid, targetpath, sourcepath, vsname, owner, now, now + MINIMUM_AGE_MILLIS, size );
+    task.reclaimable = reclaimable( task );
+    OverwriteJournal j = journal;
+    if ( j != null )
+    {
+      try
+      {
+        j.recordAdded( task );
+      }
+      catch ( IOException ex )
+      {
+        logger.error( "Unable to journal overwrite of " + targetpath, ex );
+      }
+    }
+    OverwriteTask old = scheduler.add( task );
+    if ( old != null )
+    {
+      logger.debug( "Overwrite of {" + old.targetpath + "} replaced by overwrite of {" + targetpath + "}" );
+      journalDone( old );
+    }
+  }
+
+  /**
+   * A task has been carried out or has failed and won't be tried again.
+   */
+  public void finish( OverwriteTask task, boolean success )
+  {
+    journalDone( task );
+    scheduler.complete( task, success );
+  }
+
+  /**
+   * Hand a task that was not carried out back to the scheduler. It stays
+   * in the journal unless the scheduler drops it for a newer one.
+   *
+   * @param task The task.
+   * @param retryat When it may be tried again.
+   */
+  public void requeue( OverwriteTask task, long retryat )
+  {
+    if ( !scheduler.requeue( task, retryat ) )
+      journalDone( task );
+  }
+
+  private void journalDone( OverwriteTask task )
+  {
+    OverwriteJournal j = journal;
+    if ( j == null )
+      return;
+    try
+    {
+      j.recordDone( task );
+    }
+    catch ( IOException ex )
+    {
+      logger.error( "Unable to journal completion of overwrite of " + task.targetpath, ex );
+    }
+  }
+
+  /**
+   * Remember the size of a file used to overwrite with so later estimates
+   * of the storage freed are better.
+   */
+  public void setPlaceholderSize( String sourcepath, long size )
+  {
+    placeholdersizes.put( sourcepath, size );
+  }
+
+  /**
+   * Estimate the bytes that overwriting will free. The size of the file to
+   * overwrite with is not known until it has been used once.
+   */
+  long reclaimable( OverwriteTask task )
+  {
+    Long placeholder = task.sourcepath == null ? null : placeholdersizes.get( task.sourcepath );
+    return Math.max( 0L, task.size - (placeholder == null ? 0L : placeholder) );
+  }
+}
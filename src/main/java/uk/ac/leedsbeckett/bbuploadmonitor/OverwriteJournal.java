@@ -0,0 +1,120 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import org.apache.log4j.Logger;
+
+/**
+ * Journal of overwrite tasks. A record is written when a task is added
+ * and another when it is finished with, so tasks which had not been done
+ * when the server stopped can be scheduled again when it starts.
+ * 
+ * @author jon
+ */
+public class OverwriteJournal extends Journal
+{
+  static final byte RECORD_ADDED = 1;
+  static final byte RECORD_DONE  = 2;
+  
+  final LinkedHashMap<Long,OverwriteTask> live = new LinkedHashMap<>();
+  long nextid = 1L;
+
+  public OverwriteJournal( Path file, long syncintervalmillis, Logger logger )
+  {
+    super( file, syncintervalmillis, logger );
+  }
+
+  /**
+   * @return The tasks which had not been finished when the journal was 
+   * last closed.
+   */
+  public synchronized List<OverwriteTask> getPending()
+  {
+    return new ArrayList<>( live.values() );
+  }
+  
+  public synchronized void recordAdded( OverwriteTask task ) throws IOException
+  {
+    task.journalid = nextid++;
+    live.put( task.journalid, task );
+    writeAdded( task );
+  }
+  
+  public synchronized void recordDone( OverwriteTask task ) throws IOException
+  {
+    if ( live.remove( task.journalid ) == null )
+      return;
+    PayloadBuilder p = new PayloadBuilder();
+    p.writeLong( task.journalid );
+    append( RECORD_DONE, p.toByteArray() );
+    compactIfWorthwhile();
+  }
+  
+  private void writeAdded( OverwriteTask task ) throws IOException
+  {
+    PayloadBuilder p = new PayloadBuilder();
+    p.writeLong( task.journalid );
+    writeString( p, task.entryid    );
+    writeString( p, task.targetpath );
+    writeString( p, task.sourcepath );
+    writeString( p, task.vsname     );
+    writeString( p, task.owner      );
+    p.writeLong( task.created );
+    p.writeLong( task.readyat );
+    p.writeLong( task.size );
+    append( RECORD_ADDED, p.toByteArray() );
+  }
+
+  @Override
+  protected void replayRecord( byte type, DataInputStream in ) throws IOException
+  {
+    long id = in.readLong();
+    if ( id >= nextid )
+      nextid = id+1;
+    if ( type == RECORD_DONE )
+    {
+      live.remove( id );
+      return;
+    }
+    if ( type != RECORD_ADDED )
+      throw new IOException( "Unknown overwrite journal record type " + type );
+    OverwriteTask task = new OverwriteTask( 
+            readString( in ), readString( in ), readString( in ), readString( in ), readString( in ), 
+            in.readLong(), in.readLong(), in.readLong() );
+    task.journalid = id;
+    live.put( id, task );
+  }
+
+  @Override
+  protected void writeLiveRecords() throws IOException
+  {
+    for ( OverwriteTask task : live.values() )
+      writeAdded( task );
+  }
+
+  @Override
+  protected int getLiveCount()
+  {
+    return live.size();
+  }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+/**
+ * Somewhere to send instructions to overwrite files.
+ * 
+ * @author jon
+ */
+public interface OverwriteQueue
+{
+  /**
+   * Queue an overwrite. If there is already one waiting for the same entry
+   * it is replaced by this one.
+   * 
+   * @param entryid The entry ID of the file to overwrite.
+   * @param targetpath The file to overwrite.
+   * @param sourcepath The file to overwrite with.
+   * @param vsname Name of the virtual server where both files are located.
+   * @param owner The principal ID of the user who created the target.
+   * @param size The size of the target in bytes.
+   */
+  void add( String entryid, String targetpath, String sourcepath, String vsname, String owner, long size );
+}
@@ -0,0 +1,561 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decides which overwrite task each worker thread does next. Tasks wait in
+ * a priority queue ordered by the time they become ready. Ready tasks are
+ * queued per user and users are served in turn so one user with hundreds
+ * of files doesn't hold up everyone else. Tasks are handed out in batches
+ * which are all on the same virtual server so a worker can do them in one
+ * Xythos context. A task is only handed out if no other task for the same
+ * target path is running and a batch is only started if the number of 
+ * batches running on its virtual server is below the limit. Workers waiting
+ * for a task sleep until exactly when the next one becomes ready or until 
+ * a running task completes. 
+ * 
+ * Alternatively ready tasks can be handed out largest first, by bytes 
+ * reclaimable, to free storage as fast as possible. Every minute a task
+ * waits counts as a configurable number of extra bytes so small files are
+ * not starved. Since all tasks age at the same rate the priority can be
+ * fixed when a task becomes ready, as its size minus the aging rate times
+ * the time it became ready. There is at most one task that hasn't started
+ * for each Xythos entry. A new task for the same entry replaces it, so an
+ * upload that is created and then renamed is only overwritten once.
+ * 
+ * @author jon
+ */
+public class OverwriteScheduler
+{
+  final ReentrantLock lock = new ReentrantLock();
+  final Condition changed = lock.newCondition();
+  
+  final PriorityQueue<OverwriteTask> waiting = new PriorityQueue<>( 
+          Comparator.comparingLong( (OverwriteTask t) -> t.readyat ).thenComparingLong( t -> t.sequence ) );
+  final LinkedHashMap<String,ArrayDeque<OverwriteTask>> readybyowner = new LinkedHashMap<>();
+  final TreeSet<OverwriteTask> readybysize = new TreeSet<>( 
+          Comparator.comparingLong( (OverwriteTask t) -> -t.priority ).thenComparingLong( t -> t.sequence ) );
+  final long epoch = System.currentTimeMillis();
+  boolean largestfirst = false;
+  // A double because one megabyte per minute is only 17.5 bytes per millisecond.
+  double agingbytespermilli = 0.0;
+  // Written under the lock, read without it.
+  volatile long pendingbytes = 0L;
+  final HashSet<String> busypaths = new HashSet<>();
+  final HashMap<String,Integer> runningbyserver = new HashMap<>();
+  final HashMap<String,OverwriteTask> pendingbyentry = new HashMap<>();
+  int readycount = 0;
+  long nextsequence = 0L;
+  int perserverlimit = 1;
+  
+  // Statistics, guarded by the lock.
+  final long[] completionsbysecond = new long[60];
+  final long[] secondofbucket = new long[60];
+  long added = 0L;
+  long batches = 0L;
+  long superseded = 0L;
+  long completed = 0L;
+  long failed = 0L;
+  long totallatencymillis = 0L;
+  long totalrunmillis = 0L;
+  long maximumlatencymillis = 0L;
+
+  /**
+   * @param perserverlimit Maximum number of tasks running at once on any 
+   * one Xythos virtual server.
+   */
+  public void setPerServerLimit( int perserverlimit )
+  {
+    lock.lock();
+    try
+    {
+      this.perserverlimit = Math.max( 1, perserverlimit );
+      changed.signalAll();
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+  
+  /**
+   * Choose how ready tasks are ordered. Tasks that are already ready are
+   * moved into the new order.
+   * 
+   * @param largestfirst True for largest first, false to serve users in turn.
+   * @param agingmbperminute Extra megabytes of priority per minute waited.
+   */
+  public void setOrder( boolean largestfirst, int agingmbperminute )
+  {
+    lock.lock();
+    try
+    {
+      this.agingbytespermilli = Math.max( 0, agingmbperminute ) * 1024.0 * 1024.0 / 60000.0;
+      ArrayList<OverwriteTask> ready = new ArrayList<>( readybysize );
+      for ( ArrayDeque<OverwriteTask> queue : readybyowner.values() )
+        ready.addAll( queue );
+      readybysize.clear();
+      readybyowner.clear();
+      readycount = 0;
+      this.largestfirst = largestfirst;
+      for ( OverwriteTask task : ready )
+        makeReady( task );
+      changed.signalAll();
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+  
+  /**
+   * Add a task. If a task for the same entry is waiting to start it is
+   * removed and the new one, with the latest path and ready time, is
+   * queued instead.
+   * 
+   * @param task The task.
+   * @return The task that was replaced or null.
+   */
+  public OverwriteTask add( OverwriteTask task )
+  {
+    lock.lock();
+    try
+    {
+      OverwriteTask old = null;
+      if ( task.entryid != null )
+      {
+        old = pendingbyentry.put( task.entryid, task );
+        if ( old != null )
+        {
+          remove( old );
+          pendingbytes -= old.reclaimable;
+          superseded++;
+        }
+      }
+      task.sequence = nextsequence++;
+      waiting.add( task );
+      pendingbytes += task.reclaimable;
+      added++;
+      changed.signalAll();
+      return old;
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+  
+  /**
+   * Wait for at least one task that can be started now and mark it and up
+   * to max-1 more ready tasks on the same virtual server as running. Each
+   * task must be passed to complete() and the batch to endBatch().
+   * 
+   * @param max Most tasks to return.
+   * @return The tasks.
+   * @throws InterruptedException If the thread is interrupted while waiting.
+   */
+  public List<OverwriteTask> nextBatch( int max ) throws InterruptedException
+  {
+    lock.lockInterruptibly();
+    try
+    {
+      while ( true )
+      {
+        long now = System.currentTimeMillis();
+        promoteReady( now );
+        OverwriteTask task = takeRunnable( null );
+        if ( task != null )
+        {
+          ArrayList<OverwriteTask> batch = new ArrayList<>();
+          runningbyserver.merge( task.vsname, 1, Integer::sum );
+          batches++;
+          do
+          {
+            task.started = now;
+            busypaths.add( task.targetpath );
+            batch.add( task );
+          }
+          while ( batch.size() < max && (task = takeRunnable( batch.get( 0 ).vsname )) != null );
+          return batch;
+        }
+        OverwriteTask head = waiting.peek();
+        if ( head == null )
+          changed.await();
+        else
+          changed.await( Math.max( 1L, head.readyat - now ), TimeUnit.MILLISECONDS );
+      }
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+  
+  /**
+   * Take a task that hasn't started out of whichever queue it is in.
+   */
+  private void remove( OverwriteTask task )
+  {
+    if ( waiting.remove( task ) )
+      return;
+    if ( readybysize.remove( task ) )
+    {
+      readycount--;
+      return;
+    }
+    ArrayDeque<OverwriteTask> queue = readybyowner.get( task.owner );
+    if ( queue != null && queue.remove( task ) )
+    {
+      readycount--;
+      if ( queue.isEmpty() )
+        readybyowner.remove( task.owner );
+    }
+  }
+  
+  /**
+   * Move tasks that have become ready into the per user queues.
+   */
+  private void promoteReady( long now )
+  {
+    OverwriteTask head;
+    while ( (head = waiting.peek()) != null && head.readyat <= now )
+    {
+      waiting.poll();
+      makeReady( head );
+    }
+  }
+  
+  private void makeReady( OverwriteTask task )
+  {
+    if ( largestfirst )
+    {
+      task.priority = task.reclaimable - (long)(agingbytespermilli * (task.readyat - epoch));
+      readybysize.add( task );
+    }
+    else
+      readybyowner.computeIfAbsent( task.owner, k -> new ArrayDeque<>() ).add( task );
+    readycount++;
+  }
+  
+  /**
+   * Find the first user, in turn, with a task that can run and remove
+   * that task. The user goes to the back of the line.
+   * 
+   * @param vsname Null to start a new batch on any server that is below 
+   * its limit, otherwise the server of the batch being added to.
+   */
+  private OverwriteTask takeRunnable( String vsname )
+  {
+    if ( readycount == 0 )
+      return null;
+    if ( largestfirst )
+    {
+      Iterator<OverwriteTask> tasks = readybysize.iterator();
+      while ( tasks.hasNext() )
+      {
+        OverwriteTask task = tasks.next();
+        if ( !isRunnable( task, vsname ) )
+          continue;
+        tasks.remove();
+        readycount--;
+        if ( task.entryid != null )
+          pendingbyentry.remove( task.entryid, task );
+        return task;
+      }
+      return null;
+    }
+    Iterator<ArrayDeque<OverwriteTask>> users = readybyowner.values().iterator();
+    while ( users.hasNext() )
+    {
+      ArrayDeque<OverwriteTask> queue = users.next();
+      Iterator<OverwriteTask> tasks = queue.iterator();
+      while ( tasks.hasNext() )
+      {
+        OverwriteTask task = tasks.next();
+        if ( !isRunnable( task, vsname ) )
+          continue;
+        tasks.remove();
+        readycount--;
+        if ( task.entryid != null )
+          pendingbyentry.remove( task.entryid, task );
+        users.remove();
+        if ( !queue.isEmpty() )
+          readybyowner.put( task.owner, queue );
+        return task;
+      }
+    }
+    return null;
+  }
+  
+  private boolean isRunnable( OverwriteTask task, String vsname )
+  {
+    if ( busypaths.contains( task.targetpath ) )
+      return false;
+    if ( vsname == null )
+      return runningbyserver.getOrDefault( task.vsname, 0 ) < perserverlimit;
+    return vsname.equals( task.vsname );
+  }
+  
+  /**
+   * Called by a worker when it has finished with a task.
+   * 
+   * @param task A task returned earlier by nextBatch().
+   * @param success Whether the overwrite worked.
+   */
+  public void complete( OverwriteTask task, boolean success )
+  {
+    lock.lock();
+    try
+    {
+      long now = System.currentTimeMillis();
+      busypaths.remove( task.targetpath );
+      pendingbytes -= task.reclaimable;
+      if ( success )
+        completed++;
+      else
+        failed++;
+      long latency = now - task.created;
+      totallatencymillis += latency;
+      totalrunmillis += now - task.started;
+      maximumlatencymillis = Math.max( maximumlatencymillis, latency );
+      long second = now / 1000L;
+      int bucket = (int)(second % completionsbysecond.length);
+      if ( secondofbucket[bucket] != second )
+      {
+        secondofbucket[bucket] = second;
+        completionsbysecond[bucket] = 0L;
+      }
+      completionsbysecond[bucket]++;
+      changed.signalAll();
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Called by a worker to hand back a task from its batch that was not 
+   * carried out, for example because no Xythos context could be had. The
+   * task waits until the retry time so that no worker tries it again 
+   * before the problem has had a chance to clear, unless a newer task for
+   * the same entry was added meanwhile, in which case the newer one wins.
+   * 
+   * @param task A task returned earlier by nextBatch().
+   * @param retryat When the task may be tried again.
+   * @return False if the task was dropped in favour of a newer one.
+   */
+  public boolean requeue( OverwriteTask task, long retryat )
+  {
+    lock.lock();
+    try
+    {
+      busypaths.remove( task.targetpath );
+      changed.signalAll();
+      if ( task.entryid != null )
+      {
+        if ( pendingbyentry.containsKey( task.entryid ) )
+        {
+          pendingbytes -= task.reclaimable;
+          superseded++;
+          return false;
+        }
+        pendingbyentry.put( task.entryid, task );
+      }
+      task.readyat = retryat;
+      waiting.add( task );
+      return true;
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+  
+  /**
+   * Called by a worker when it has finished with a batch so another
+   * batch can start on the same virtual server.
+   * 
+   * @param batch The batch returned earlier by nextBatch().
+   */
+  public void endBatch( List<OverwriteTask> batch )
+  {
+    if ( batch.isEmpty() )
+      return;
+    lock.lock();
+    try
+    {
+      runningbyserver.merge( batch.get( 0 ).vsname, -1, Integer::sum );
+      changed.signalAll();
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return Tasks waiting to become ready plus ready tasks waiting for a worker.
+   */
+  public int getQueueLength()
+  {
+    lock.lock();
+    try { return waiting.size() + readycount; }
+    finally { lock.unlock(); }
+  }
+  
+  public int getReadyCount()
+  {
+    lock.lock();
+    try { return readycount; }
+    finally { lock.unlock(); }
+  }
+  
+  public int getRunningCount()
+  {
+    lock.lock();
+    try { return busypaths.size(); }
+    finally { lock.unlock(); }
+  }
+  
+  /**
+   * @return Milliseconds until the next waiting task is ready or -1 if there
+   * are none waiting.
+   */
+  public long getMillisToNext()
+  {
+    lock.lock();
+    try
+    {
+      OverwriteTask head = waiting.peek();
+      return head == null ? -1L : Math.max( 0L, head.readyat - System.currentTimeMillis() );
+    }
+    finally { lock.unlock(); }
+  }
+  
+  public long getAdded()
+  {
+    lock.lock();
+    try { return added; }
+    finally { lock.unlock(); }
+  }
+
+  /**
+   * @return Estimated bytes that will be freed by tasks not yet finished.
+   */
+  public long getPendingBytes()
+  {
+    return pendingbytes;
+  }
+  
+  public boolean isLargestFirst()
+  {
+    lock.lock();
+    try { return largestfirst; }
+    finally { lock.unlock(); }
+  }
+  
+  public long getBatches()
+  {
+    lock.lock();
+    try { return batches; }
+    finally { lock.unlock(); }
+  }
+  
+  /**
+   * @return Number of tasks replaced by a later task for the same entry.
+   */
+  public long getSuperseded()
+  {
+    lock.lock();
+    try { return superseded; }
+    finally { lock.unlock(); }
+  }
+
+  public long getCompleted()
+  {
+    lock.lock();
+    try { return completed; }
+    finally { lock.unlock(); }
+  }
+
+  public long getFailed()
+  {
+    lock.lock();
+    try { return failed; }
+    finally { lock.unlock(); }
+  }
+  
+  /**
+   * @return Mean time from a task being added to it finishing, in milliseconds.
+   */
+  public long getAverageLatencyMillis()
+  {
+    lock.lock();
+    try { long n = completed + failed; return n == 0 ? 0L : totallatencymillis / n; }
+    finally { lock.unlock(); }
+  }
+
+  public long getMaximumLatencyMillis()
+  {
+    lock.lock();
+    try { return maximumlatencymillis; }
+    finally { lock.unlock(); }
+  }
+  
+  /**
+   * @return Mean time spent actually overwriting, in milliseconds.
+   */
+  public long getAverageRunMillis()
+  {
+    lock.lock();
+    try { long n = completed + failed; return n == 0 ? 0L : totalrunmillis / n; }
+    finally { lock.unlock(); }
+  }
+  
+  /**
+   * @return Number of tasks finished in the last minute.
+   */
+  public long getCompletionsLastMinute()
+  {
+    lock.lock();
+    try
+    {
+      long now = System.currentTimeMillis() / 1000L;
+      long total = 0L;
+      for ( int i=0; i<completionsbysecond.length; i++ )
+        if ( now - secondofbucket[i] < completionsbysecond.length )
+          total += completionsbysecond[i];
+      return total;
+    }
+    finally { lock.unlock(); }
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+/**
+ * An instruction to overwrite one Xythos file with another. The virtual
+ * server is identified by name so that nothing here depends on Xythos.
+ * The Xythos entry ID of the target is kept so that the overwrite is only
+ * done if the file at the target path is still the one that was uploaded.
+ * This makes it safe to carry out a task again after a restart.
+ * 
+ * @author jon
+ */
+public class OverwriteTask
+{
+  final String entryid;
+  final String targetpath;
+  final String sourcepath;
+  final String vsname;
+  final String owner;
+  final long   created;
+  final long   size;
+  // Later if the task has to be retried.
+  long readyat;
+  
+  // Set by the worker, an estimate of bytes freed by overwriting.
+  long reclaimable;
+  
+  // Set by the journal
+  long journalid;
+  
+  // Set by the scheduler
+  long sequence;
+  long started;
+  long priority;
+
+  /**
+   * @param entryid The Xythos entry ID of the file to overwrite.
+   * @param targetpath The file to overwrite.
+   * @param sourcepath The file to overwrite it with.
+   * @param vsname Name of the Xythos virtual server both files are on.
+   * @param owner Principal ID of the user who uploaded the target.
+   * @param created When the instruction was created.
+   * @param readyat When the instruction may be carried out.
+   * @param size Size of the target file in bytes.
+   */
+  public OverwriteTask( String entryid, String targetpath, String sourcepath, String vsname, String owner, long created, long readyat, long size )
+  {
+    this.entryid    = entryid;
+    this.targetpath = targetpath;
+    this.sourcepath = sourcepath;
+    this.vsname     = vsname;
+    this.owner      = owner == null ? "" : owner;
+    this.created    = created;
+    this.readyat    = readyat;
+    this.size       = size;
+    this.reclaimable = size;
+  }
+
+  public String getEntryId()
+  {
+    return entryid;
+  }
+
+  public long getSize()
+  {
+    return size;
+  }
+
+  public long getReclaimable()
+  {
+    return reclaimable;
+  }
+
+  public String getTargetPath()
+  {
+    return targetpath;
+  }
+
+  public String getSourcePath()
+  {
+    return sourcepath;
+  }
+
+  public String getVirtualServerName()
+  {
+    return vsname;
+  }
+
+  public String getOwner()
+  {
+    return owner;
+  }
+
+  public long getCreated()
+  {
+    return created;
+  }
+
+  public long getReadyAt()
+  {
+    return readyat;
+  }
+}
@@ -27,6 +27,7 @@ public class RuleConfig
   String  overwritePath   = "";
   
   boolean continueRules   = false;
+  boolean shadow          = false;  // Only count what the rule would do
   
 
   public int getN() {
@@ -140,6 +141,14 @@ public class RuleConfig
   public void setContinueRules(boolean continueRules) {
     this.continueRules = continueRules;
   }
+
+  public boolean isShadow() {
+    return shadow;
+  }
+
+  public void setShadow(boolean shadow) {
+    this.shadow = shadow;
+  }
   
   
 }
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Finds the rules that could match a file without trying every rule's
+ * regular expressions. Rules are bucketed by size threshold and by the
+ * literal text at the start of their MIME type and path expressions, e.g.
+ * "video/" for "video/.*". A file can only match a rule if it is big 
+ * enough and its type and path start with those prefixes. The candidates
+ * come back as a set of positions in the rule list so they are still 
+ * tried in the configured order and continuation works as before.
+ * 
+ * @author jon
+ */
+public class RuleIndex
+{
+  // Characters that end the literal start of a regular expression.
+  static final String METACHARACTERS = "\\[](){}.*+?^$|";
+  // With this few rules trying them all is quicker than the prefix lookups.
+  static final int MINIMUM_PREFIX_RULES = 8;
+  
+  final boolean useprefixes;
+  final long[] thresholds;
+  final BitSet[] bythreshold;
+  final Node typeroot = new Node();
+  final Node pathroot = new Node();
+
+  /**
+   * A node in a tree of prefixes, one level per character. 
+   */
+  static class Node
+  {
+    char[] keys = new char[0];
+    Node[] children = new Node[0];
+    // The rules whose prefix ends here, or null if none do.
+    BitSet rules;
+    
+    void add( String prefix, int rule )
+    {
+      Node node = this;
+      for ( int i=0; i<prefix.length(); i++ )
+        node = node.child( prefix.charAt( i ) );
+      if ( node.rules == null )
+        node.rules = new BitSet();
+      node.rules.set( rule );
+    }
+    
+    Node child( char c )
+    {
+      int i = Arrays.binarySearch( keys, c );
+      if ( i >= 0 )
+        return children[i];
+      i = -i - 1;
+      char[] newkeys = new char[keys.length+1];
+      Node[] newchildren = new Node[keys.length+1];
+      System.arraycopy( keys, 0, newkeys, 0, i );
+      System.arraycopy( children, 0, newchildren, 0, i );
+      System.arraycopy( keys, i, newkeys, i+1, keys.length-i );
+      System.arraycopy( children, i, newchildren, i+1, keys.length-i );
+      newkeys[i] = c;
+      newchildren[i] = new Node();
+      keys = newkeys;
+      children = newchildren;
+      return newchildren[i];
+    }
+    
+    /**
+     * @param s The text to look up.
+     * @return All the rules with prefixes that s starts with. Must not be
+     * changed by the caller.
+     */
+    BitSet find( String s )
+    {
+      BitSet found = rules;
+      boolean copied = false;
+      Node node = this;
+      int length = s == null ? 0 : s.length();
+      for ( int i=0; i<length && node.keys.length > 0; i++ )
+      {
+        int k = Arrays.binarySearch( node.keys, s.charAt( i ) );
+        if ( k < 0 )
+          break;
+        node = node.children[k];
+        if ( node.rules == null )
+          continue;
+        if ( !copied )
+        {
+          found = (BitSet)found.clone();
+          copied = true;
+        }
+        found.or( node.rules );
+      }
+      return found;
+    }
+  }
+  
+  /**
+   * @param rules The rules in the order they are to be tried.
+   */
+  public RuleIndex( List<CompiledRule> rules )
+  {
+    useprefixes = rules.size() > MINIMUM_PREFIX_RULES;
+    typeroot.rules = new BitSet();
+    pathroot.rules = new BitSet();
+    TreeSet<Long> distinct = new TreeSet<>();
+    for ( CompiledRule rule : rules )
+      distinct.add( rule.getThresholdBytes() );
+    thresholds = new long[distinct.size()];
+    int n = 0;
+    for ( Long t : distinct )
+      thresholds[n++] = t;
+    bythreshold = new BitSet[thresholds.length];
+    for ( int i=0; i<thresholds.length; i++ )
+      bythreshold[i] = new BitSet();
+    
+    for ( int r=0; r<rules.size(); r++ )
+    {
+      CompiledRule rule = rules.get( r );
+      // A rule is a candidate for every size at or above its threshold.
+      for ( int i=Arrays.binarySearch( thresholds, rule.getThresholdBytes() ); i<thresholds.length; i++ )
+        bythreshold[i].set( r );
+      typeroot.add( literalPrefix( rule.typepattern.pattern() ), r );
+      pathroot.add( literalPrefix( rule.pathpattern.pattern() ), r );
+    }
+  }
+  
+  /**
+   * @param size Size of the file in bytes.
+   * @param type MIME type of the file.
+   * @param path Full path of the file.
+   * @return The positions of the rules that could match the file. Each
+   * must still be checked with matchesFile.
+   */
+  public BitSet candidates( long size, String type, String path )
+  {
+    int i = Arrays.binarySearch( thresholds, size );
+    if ( i < 0 )
+      i = -i - 2;
+    if ( i < 0 )
+      return new BitSet();
+    BitSet c = (BitSet)bythreshold[i].clone();
+    if ( !useprefixes )
+      return c;
+    c.and( typeroot.find( type ) );
+    c.and( pathroot.find( path ) );
+    return c;
+  }
+  
+  /**
+   * Work out the text that everything matching a regular expression must
+   * start with. It is fine to give up early and return too little, an 
+   * empty prefix just means the rule is tried for everything.
+   * 
+   * @param regex The regular expression.
+   * @return The literal prefix.
+   */
+  static String literalPrefix( String regex )
+  {
+    // An alternative anywhere could apply to the start.
+    if ( regex == null || regex.indexOf( '|' ) >= 0 )
+      return "";
+    StringBuilder sb = new StringBuilder();
+    int i = regex.startsWith( "^" ) ? 1 : 0;
+    for ( ; i<regex.length(); i++ )
+    {
+      char c = regex.charAt( i );
+      if ( METACHARACTERS.indexOf( c ) >= 0 )
+        break;
+      sb.append( c );
+    }
+    // The last character is optional or repeated zero or more times.
+    if ( i < regex.length() && sb.length() > 0 && "?*{".indexOf( regex.charAt( i ) ) >= 0 )
+      sb.setLength( sb.length() - 1 );
+    return sb.toString();
+  }
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Works out what a set of rules would have done to the files recorded in
+ * the bigfiles logs. Each log file is read a line at a time on its own 
+ * thread so memory use depends on the number of users, not the size of 
+ * the logs. Only files that were logged can be simulated, which means
+ * files that matched a rule with the log action when they were uploaded.
+ * 
+ * A log line is the date, the file path, the size in MB, the user name,
+ * email address and name of the user and the MIME type, separated by 
+ * commas. The path and name may contain commas too so the line is taken 
+ * apart from both ends.
+ * 
+ * @author jon
+ */
+public class RuleSimulator
+{
+  public static final String LOG_GLOB = "bigfiles_*.log*";
+  
+  // log4j's ISO8601 date is always this long, e.g. 2022-10-01 12:34:56,789
+  static final int DATE_LENGTH = 23;
+  
+  /**
+   * Totals for one user.
+   */
+  public static class UserTotal
+  {
+    final String username;
+    long matches;
+    long bytes;
+
+    UserTotal( String username )
+    {
+      this.username = username;
+    }
+
+    public String getUserName()
+    {
+      return username;
+    }
+
+    public long getMatches()
+    {
+      return matches;
+    }
+
+    public long getBytes()
+    {
+      return bytes;
+    }
+  }
+  
+  /**
+   * What the rules would have done. Each thread fills its own and they
+   * are added together at the end.
+   */
+  public static class Result
+  {
+    final List<CompiledRule> rules;
+    final long[] rulematches;
+    final long[] rulebytes;
+    final HashMap<String,UserTotal> users = new HashMap<>();
+    long files;
+    long lines;
+    long badlines;
+    long filesmatched;
+    long emails;
+    long overwrites;
+    long bytesreclaimed;
+    long elapsedmillis;
+
+    Result( List<CompiledRule> rules )
+    {
+      this.rules = rules;
+      this.rulematches = new long[rules.size()];
+      this.rulebytes   = new long[rules.size()];
+    }
+    
+    void add( Result other )
+    {
+      for ( int i=0; i<rulematches.length; i++ )
+      {
+        rulematches[i] += other.rulematches[i];
+        rulebytes[i]   += other.rulebytes[i];
+      }
+      for ( UserTotal u : other.users.values() )
+      {
+        UserTotal mine = users.computeIfAbsent( u.username, UserTotal::new );
+        mine.matches += u.matches;
+        mine.bytes   += u.bytes;
+      }
+      files          += other.files;
+      lines          += other.lines;
+      badlines       += other.badlines;
+      filesmatched   += other.filesmatched;
+      emails         += other.emails;
+      overwrites     += other.overwrites;
+      bytesreclaimed += other.bytesreclaimed;
+    }
+
+    public List<CompiledRule> getRules()
+    {
+      return rules;
+    }
+    
+    /**
+     * @param i Index of a rule in getRules().
+     * @return Number of files the rule would have matched.
+     */
+    public long getRuleMatches( int i )
+    {
+      return rulematches[i];
+    }
+
+    /**
+     * @param i Index of a rule in getRules().
+     * @return Total size of the files the rule would have matched.
+     */
+    public long getRuleBytes( int i )
+    {
+      return rulebytes[i];
+    }
+    
+    /**
+     * @param n How many.
+     * @return The users with the most matching files, most first.
+     */
+    public List<UserTotal> getTopUsers( int n )
+    {
+      ArrayList<UserTotal> list = new ArrayList<>( users.values() );
+      list.sort( (a, b) -> Long.compare( b.matches, a.matches ) );
+      return list.subList( 0, Math.min( n, list.size() ) );
+    }
+    
+    public int getUserCount()
+    {
+      return users.size();
+    }
+
+    public long getFiles()
+    {
+      return files;
+    }
+
+    public long getLines()
+    {
+      return lines;
+    }
+
+    public long getBadLines()
+    {
+      return badlines;
+    }
+
+    public long getFilesMatched()
+    {
+      return filesmatched;
+    }
+
+    public long getEmails()
+    {
+      return emails;
+    }
+
+    public long getOverwrites()
+    {
+      return overwrites;
+    }
+
+    /**
+     * @return Total size of the files at least one rule would have overwritten.
+     */
+    public long getBytesReclaimed()
+    {
+      return bytesreclaimed;
+    }
+
+    public long getElapsedMillis()
+    {
+      return elapsedmillis;
+    }
+  }
+  
+  /**
+   * @param directory Where the logs are.
+   * @return The bigfiles logs, including rotated ones.
+   * @throws IOException 
+   */
+  public static List<Path> findLogs( Path directory ) throws IOException
+  {
+    ArrayList<Path> list = new ArrayList<>();
+    try ( DirectoryStream<Path> stream = Files.newDirectoryStream( directory, LOG_GLOB ) )
+    {
+      for ( Path p : stream )
+        if ( Files.isRegularFile( p ) )
+          list.add( p );
+    }
+    // Biggest first so the work is shared out evenly between threads.
+    list.sort( (a, b) -> Long.compare( b.toFile().length(), a.toFile().length() ) );
+    return list;
+  }
+  
+  /**
+   * Run the simulation.
+   * 
+   * @param ruleset The rules to try.
+   * @param logs The log files.
+   * @param threads How many files to read at once.
+   * @return What the rules would have done.
+   * @throws Exception If a file could not be read.
+   */
+  public static Result simulate( CompiledRuleSet ruleset, List<Path> logs, int threads ) throws Exception
+  {
+    long start = System.currentTimeMillis();
+    Result total = new Result( allRules( ruleset ) );
+    ExecutorService executor = Executors.newFixedThreadPool( Math.max( 1, Math.min( threads, logs.size() ) ) );
+    try
+    {
+      ArrayList<Future<Result>> futures = new ArrayList<>();
+      for ( Path log : logs )
+        futures.add( executor.submit( () -> simulate( ruleset, log ) ) );
+      for ( Future<Result> f : futures )
+        total.add( f.get() );
+    }
+    finally
+    {
+      executor.shutdownNow();
+    }
+    total.elapsedmillis = System.currentTimeMillis() - start;
+    return total;
+  }
+  
+  /**
+   * @return The live rules followed by the shadow rules.
+   */
+  static List<CompiledRule> allRules( CompiledRuleSet ruleset )
+  {
+    ArrayList<CompiledRule> list = new ArrayList<>( ruleset.getRules() );
+    list.addAll( ruleset.getShadowRules() );
+    return list;
+  }
+  
+  static Result simulate( CompiledRuleSet ruleset, Path log ) throws IOException
+  {
+    Result result = new Result( allRules( ruleset ) );
+    result.files = 1;
+    InputStream in = Files.newInputStream( log );
+    if ( log.getFileName().toString().endsWith( ".gz" ) )
+      in = new GZIPInputStream( in, 1 << 16 );
+    try ( BufferedReader reader = new BufferedReader( new InputStreamReader( in, StandardCharsets.UTF_8 ), 1 << 16 ) )
+    {
+      String line;
+      while ( (line = reader.readLine()) != null )
+      {
+        result.lines++;
+        if ( !simulateLine( ruleset, line, result ) )
+          result.badlines++;
+      }
+    }
+    return result;
+  }
+  
+  /**
+   * Apply the rules to one log line as EventProcessor would have applied 
+   * them to the event. Shadow rules are counted against the rule but not
+   * in the totals.
+   * 
+   * @return False if the line couldn't be understood.
+   */
+  static boolean simulateLine( CompiledRuleSet ruleset, String line, Result result )
+  {
+    if ( line.length() <= DATE_LENGTH || line.charAt( DATE_LENGTH ) != ',' )
+      return false;
+    int pathstart = DATE_LENGTH + 1;
+    
+    // The MIME type is the last field.
+    int typecomma = line.lastIndexOf( ',' );
+    if ( typecomma <= pathstart )
+      return false;
+    String type = line.substring( typecomma+1 );
+    
+    // The path ends at the first comma followed by a whole number and 
+    // then at least three more fields.
+    int sizecomma = line.indexOf( ',', pathstart );
+    long mb = -1L;
+    int sizeend = -1;
+    while ( sizecomma >= 0 && sizecomma < typecomma )
+    {
+      sizeend = line.indexOf( ',', sizecomma+1 );
+      mb = parseDigits( line, sizecomma+1, sizeend );
+      if ( mb >= 0L && countCommas( line, sizeend, typecomma ) >= 2 )
+        break;
+      mb = -1L;
+      sizecomma = line.indexOf( ',', sizecomma+1 );
+    }
+    if ( mb < 0L )
+      return false;
+    String path = line.substring( pathstart, sizecomma );
+    int usercomma = line.indexOf( ',', sizeend+1 );
+    String username = line.substring( sizeend+1, usercomma );
+    long size = mb * CompiledRule.BYTES_PER_MB;
+    
+    List<CompiledRule> shadowrules = ruleset.getShadowRules();
+    int offset = ruleset.getRules().size();
+    BitSet candidates = ruleset.getShadowCandidates( size, type, path );
+    for ( int i = candidates.nextSetBit( 0 ); i >= 0; i = candidates.nextSetBit( i+1 ) )
+    {
+      CompiledRule rule = shadowrules.get( i );
+      if ( rule.matchesFile( size, type, path ) && rule.matchesUser( username ) )
+      {
+        result.rulematches[offset+i]++;
+        result.rulebytes[offset+i] += size;
+      }
+    }
+    
+    if ( size < ruleset.getMinimumThreshold() )
+      return true;
+    boolean matched = false;
+    boolean overwritten = false;
+    List<CompiledRule> rules = ruleset.getRules();
+    candidates = ruleset.getCandidates( size, type, path );
+    for ( int i = candidates.nextSetBit( 0 ); i >= 0; i = candidates.nextSetBit( i+1 ) )
+    {
+      CompiledRule rule = rules.get( i );
+      if ( !rule.matchesFile( size, type, path ) || !rule.matchesUser( username ) )
+        continue;
+      matched = true;
+      result.rulematches[i]++;
+      result.rulebytes[i] += size;
+      if ( rule.getRule().isActionEmail() )
+        result.emails++;
+      if ( rule.getRule().isActionOverwrite() )
+      {
+        result.overwrites++;
+        overwritten = true;
+      }
+      if ( !rule.getRule().isContinueRules() )
+        break;
+    }
+    if ( matched )
+    {
+      result.filesmatched++;
+      if ( overwritten )
+        result.bytesreclaimed += size;
+      UserTotal u = result.users.computeIfAbsent( username, UserTotal::new );
+      u.matches++;
+      u.bytes += size;
+    }
+    return true;
+  }
+  
+  /**
+   * @return The number or -1 if the text isn't all digits.
+   */
+  static long parseDigits( String s, int start, int end )
+  {
+    if ( end <= start || end - start > 15 )
+      return -1L;
+    long n = 0L;
+    for ( int i=start; i<end; i++ )
+    {
+      char c = s.charAt( i );
+      if ( c < '0' || c > '9' )
+        return -1L;
+      n = n*10L + (c - '0');
+    }
+    return n;
+  }
+  
+  static int countCommas( String s, int start, int end )
+  {
+    int n = 0;
+    for ( int i=start; i<end; i++ )
+      if ( s.charAt( i ) == ',' )
+        n++;
+    return n;
+  }
+}
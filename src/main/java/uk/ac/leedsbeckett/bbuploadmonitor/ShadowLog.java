@@ -0,0 +1,138 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The most recent files matched by shadow rules, kept so they can be
+ * looked at on the status page. A fixed size ring that overwrites the 
+ * oldest entry so adding never blocks or allocates more than the entry.
+ * 
+ * @author jon
+ */
+public class ShadowLog
+{
+  public static final int CAPACITY = 256;
+  
+  final AtomicReferenceArray<Entry> entries = new AtomicReferenceArray<>( CAPACITY );
+  final AtomicLong next = new AtomicLong();
+  
+  /**
+   * One file matched by one shadow rule.
+   */
+  public static class Entry
+  {
+    final long time;
+    final String rule;
+    final String path;
+    final long size;
+    final String userid;
+    final String type;
+    final boolean email;
+    final boolean overwrite;
+
+    public Entry( long time, CompiledRule rule, String path, long size, String userid, String type )
+    {
+      this.time      = time;
+      this.rule      = rule.getName();
+      this.path      = path;
+      this.size      = size;
+      this.userid    = userid;
+      this.type      = type;
+      this.email     = rule.getRule().isActionEmail();
+      this.overwrite = rule.getRule().isActionOverwrite();
+    }
+
+    public long getTime()
+    {
+      return time;
+    }
+
+    public String getRule()
+    {
+      return rule;
+    }
+
+    public String getPath()
+    {
+      return path;
+    }
+
+    public long getSize()
+    {
+      return size;
+    }
+
+    public String getUserId()
+    {
+      return userid;
+    }
+
+    public String getType()
+    {
+      return type;
+    }
+
+    /**
+     * @return True if the rule would have emailed the user.
+     */
+    public boolean isEmail()
+    {
+      return email;
+    }
+
+    /**
+     * @return True if the rule would have overwritten the file.
+     */
+    public boolean isOverwrite()
+    {
+      return overwrite;
+    }
+  }
+  
+  public void add( Entry entry )
+  {
+    entries.set( (int)(next.getAndIncrement() % CAPACITY), entry );
+  }
+  
+  /**
+   * @return The entries, newest first.
+   */
+  public List<Entry> getRecent()
+  {
+    long end = next.get();
+    ArrayList<Entry> list = new ArrayList<>();
+    for ( long i=end-1; i>=0 && i>=end-CAPACITY; i-- )
+    {
+      Entry e = entries.get( (int)(i % CAPACITY) );
+      if ( e != null )
+        list.add( e );
+    }
+    return list;
+  }
+  
+  public void clear()
+  {
+    for ( int i=0; i<CAPACITY; i++ )
+      entries.set( i, null );
+  }
+}
@@ -18,8 +18,13 @@ package uk.ac.leedsbeckett.bbuploadmonitor;
 
 import blackboard.platform.plugin.PlugInUtil;
 import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.annotation.WebServlet;
@@ -27,6 +32,7 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.text.StringEscapeUtils;
 import org.apache.log4j.Level;
 
 /**
@@ -39,6 +45,8 @@ import org.apache.log4j.Level;
 public class StatusServlet extends HttpServlet
 {  
   WebAppCore webappcore;
+  // Only one simulation at a time because it reads every bigfiles log.
+  final AtomicBoolean simulating = new AtomicBoolean( false );
   
   DateFormat df = new SimpleDateFormat( "yyyy-MM-dd HH:mm:ss z" );
 
@@ -94,6 +102,15 @@ public class StatusServlet extends HttpServlet
    */
   protected void doProcessing(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException
   {
+    // Monitoring systems can fetch metrics with a token instead of
+    // logging in.
+    String format = req.getParameter("format");
+    if ( format != null && format.length() > 0 && hasMetricsToken( req ) )
+    {
+      sendMetrics( resp, format );
+      return;
+    }
+    
     // Make sure that the user is authenticated and is a system admin.
     // Bail out if not.
     try
@@ -106,9 +123,18 @@ public class StatusServlet extends HttpServlet
       throw new ServletException( e );
     }
 
+    if ( format != null && format.length() > 0 )
+    {
+      sendMetrics( resp, format );
+      return;
+    }
+    
     // Which page is wanted?
     String setup = req.getParameter("setup");
     String setupsave = req.getParameter("setupsave");
+    String resetmetrics = req.getParameter("resetmetrics");
+    String cluster = req.getParameter("cluster");
+    String simulate = req.getParameter("simulate");
     Config config = webappcore.getConfig();
     
     resp.setContentType("text/html");
@@ -132,8 +158,20 @@ public class StatusServlet extends HttpServlet
           sendSetup( out, config );
         else if ( setupsave != null && setupsave.length() > 0)
           sendSetupSave( req, out, config );
+        else if ( cluster != null && cluster.length() > 0)
+          sendCluster( out );
+        else if ( simulate != null && simulate.length() > 0)
+          sendSimulate( req, out, config );
         else
+        {
+          if ( resetmetrics != null && resetmetrics.length() > 0 && "POST".equals( req.getMethod() ) )
+          {
+            webappcore.getMetrics().reset();
+            webappcore.getEventProcessor().getShadowLog().clear();
+          }
+          sendStatistics( out );
           sendBootstrap( out );
+        }
       }
       catch ( Exception e )
       {
@@ -146,6 +184,369 @@ public class StatusServlet extends HttpServlet
   }
   
   
+  /**
+   * Is there a metrics token in the configuration and does the request
+   * carry it as a bearer token? It isn't accepted as a parameter so it 
+   * doesn't end up in access logs.
+   * 
+   * @param req The request.
+   * @return True if the request may fetch metrics without logging in.
+   */
+  boolean hasMetricsToken( HttpServletRequest req )
+  {
+    String token = webappcore.getConfig().getMetricsToken();
+    if ( token == null || token.length() == 0 )
+      return false;
+    String authorization = req.getHeader( "Authorization" );
+    if ( authorization == null || !authorization.startsWith( "Bearer " ) )
+      return false;
+    String given = authorization.substring( 7 ).trim();
+    return MessageDigest.isEqual( token.getBytes( StandardCharsets.UTF_8 ), given.getBytes( StandardCharsets.UTF_8 ) );
+  }
+  
+  /**
+   * Stream the metrics as JSON or Prometheus text.
+   * 
+   * @param resp The response.
+   * @param format json or prometheus.
+   * @throws IOException 
+   */
+  void sendMetrics( HttpServletResponse resp, String format ) throws IOException
+  {
+    MetricsWriter writer = new MetricsWriter( webappcore.getMetrics(), webappcore.serverid );
+    boolean json = "json".equalsIgnoreCase( format );
+    if ( !json && !"prometheus".equalsIgnoreCase( format ) )
+    {
+      resp.sendError( HttpServletResponse.SC_BAD_REQUEST, "format must be json or prometheus" );
+      return;
+    }
+    resp.setCharacterEncoding( "UTF-8" );
+    resp.setContentType( json ? MetricsWriter.CONTENT_TYPE_JSON : MetricsWriter.CONTENT_TYPE_PROMETHEUS );
+    resp.setHeader( "Cache-Control", "no-store" );
+    try ( Writer out = resp.getWriter() )
+    {
+      if ( json )
+        writer.writeJson( out );
+      else
+        writer.writePrometheus( out );
+    }
+  }
+  
+  /**
+   * Output the latest metrics from every server side by side with totals.
+   * @param out
+   * @throws IOException 
+   */
+  void sendCluster( ServletOutputStream out ) throws IOException
+  {
+    ClusterMetrics clustermetrics = webappcore.getClusterMetrics();
+    List<ClusterMetrics.Snapshot> snapshots = clustermetrics.getSnapshots();
+    List<String> keys = ClusterMetrics.getKeys( snapshots );
+    long now = System.currentTimeMillis();
+    
+    out.println( "<h2>Cluster Metrics</h2>" );
+    out.println( "<p>Each server sends its metrics to the others every " + (clustermetrics.getIntervalMillis() / 1000L) + 
+                 " seconds. Servers that have missed two or more are marked stale and are removed after an hour. Counts are since each server " +
+                 "started or its counts were reset. Totals add up counts, average ratios and show the slowest " +
+                 "server's timings.</p>" );
+    if ( snapshots.isEmpty() )
+    {
+      out.println( "<p>No metrics have been received yet.</p>" );
+      return;
+    }
+    out.println( "<table>" );
+    out.print( "<tr><td></td>" );
+    for ( ClusterMetrics.Snapshot s : snapshots )
+      out.print( "<td><strong>" + s.getNode() + "</strong></td>" );
+    out.println( "<td><strong>Total</strong></td></tr>" );
+    out.print( "<tr><td>Age (seconds)</td>" );
+    for ( ClusterMetrics.Snapshot s : snapshots )
+      out.print( "<td>" + ((now - s.getReceived()) / 1000L) + (clustermetrics.isStale( s, now ) ? " <strong>stale</strong>" : "") + "</td>" );
+    out.println( "<td></td></tr>" );
+    for ( String key : keys )
+    {
+      out.print( "<tr><td>" + key.substring( 1 ) + "</td>" );
+      for ( ClusterMetrics.Snapshot s : snapshots )
+        out.print( "<td>" + formatClusterValue( s.get( key ) ) + "</td>" );
+      out.println( "<td>" + formatClusterValue( ClusterMetrics.total( snapshots, key ) ) + "</td></tr>" );
+    }
+    out.println( "</table>" );
+  }
+  
+  /**
+   * Offer to run the current rules over the bigfiles logs and, if asked,
+   * show what they would have done.
+   * @param req
+   * @param out
+   * @param config
+   * @throws Exception 
+   */
+  void sendSimulate( HttpServletRequest req, ServletOutputStream out, Config config ) throws Exception
+  {
+    boolean includedisabled = "true".equals( req.getParameter( "includedisabled" ) );
+    out.println( "<h2>Simulate Rules</h2>" );
+    out.println( "<p>This runs the saved rules over the bigfiles logs on this server, including the rotated " +
+                 "logs, to show what the rules would have done to those files. Only files that were logged " +
+                 "can be simulated so a rule can only be tried on files that a logging rule matched when " +
+                 "they were uploaded. Sizes are logged in whole megabytes so byte totals are slightly low.</p>" );
+    out.println( "<form action=\"status\" method=\"POST\"><input type=\"hidden\" name=\"simulate\" value=\"true\"/>" );
+    out.println( "<input type=\"hidden\" name=\"run\" value=\"true\"/>" );
+    out.println( "<p><input type=\"checkbox\" name=\"includedisabled\" value=\"true\"" + (includedisabled ? " checked" : "") + "/> Include disabled rules</p>" );
+    out.println( "<input type=\"submit\" value=\"Run Simulation\"/></form>" );
+    
+    if ( !"true".equals( req.getParameter( "run" ) ) || !"POST".equals( req.getMethod() ) )
+      return;
+    if ( !simulating.compareAndSet( false, true ) )
+    {
+      out.println( "<p><strong>A simulation is already running. Try again later.</strong></p>" );
+      return;
+    }
+    RuleSimulator.Result result;
+    try
+    {
+      // Throw away metrics so the simulation doesn't add to the real rule counts.
+      CompiledRuleSet ruleset = CompiledRuleSet.compile( config, webappcore.logger, new MetricsRegistry(), includedisabled );
+      List<java.nio.file.Path> logs = RuleSimulator.findLogs( webappcore.logbase );
+      result = RuleSimulator.simulate( ruleset, logs, Runtime.getRuntime().availableProcessors() );
+    }
+    finally
+    {
+      simulating.set( false );
+    }
+    
+    out.println( "<h3>Summary</h3>" );
+    out.println( "<table>" );
+    out.println( "<tr><td>Log files</td><td>"            + result.getFiles()        + "</td></tr>" );
+    out.println( "<tr><td>Lines</td><td>"                + result.getLines()        + "</td></tr>" );
+    out.println( "<tr><td>Lines not understood</td><td>" + result.getBadLines()     + "</td></tr>" );
+    out.println( "<tr><td>Files matched</td><td>"        + result.getFilesMatched() + "</td></tr>" );
+    out.println( "<tr><td>Emails</td><td>"               + result.getEmails()       + "</td></tr>" );
+    out.println( "<tr><td>Overwrites</td><td>"           + result.getOverwrites()   + "</td></tr>" );
+    out.println( "<tr><td>MB reclaimed</td><td>"         + (result.getBytesReclaimed() / CompiledRule.BYTES_PER_MB) + "</td></tr>" );
+    out.println( "<tr><td>Users</td><td>"                + result.getUserCount()    + "</td></tr>" );
+    out.println( "<tr><td>Time (ms)</td><td>"            + result.getElapsedMillis() + "</td></tr>" );
+    out.println( "</table>" );
+    
+    out.println( "<h3>Matches by Rule</h3>" );
+    out.println( "<p>Shadow rules are each checked against every file and are not in the totals above.</p>" );
+    out.println( "<table>" );
+    out.println( "<tr><td><strong>Rule</strong></td><td><strong>Mode</strong></td><td><strong>Enabled</strong></td><td><strong>Files</strong></td><td><strong>MB</strong></td></tr>" );
+    List<CompiledRule> rules = result.getRules();
+    for ( int i=0; i<rules.size(); i++ )
+      out.println( "<tr><td>" + StringEscapeUtils.escapeHtml4( rules.get( i ).getName() ) + "</td><td>" + (rules.get( i ).isShadow() ? "Shadow" : "Live") + 
+                   "</td><td>" + rules.get( i ).getRule().isEnabled() + "</td><td>" + result.getRuleMatches( i ) + 
+                   "</td><td>" + (result.getRuleBytes( i ) / CompiledRule.BYTES_PER_MB) + "</td></tr>" );
+    out.println( "</table>" );
+    
+    out.println( "<h3>Top Users</h3>" );
+    out.println( "<table>" );
+    out.println( "<tr><td><strong>User</strong></td><td><strong>Files</strong></td><td><strong>MB</strong></td></tr>" );
+    for ( RuleSimulator.UserTotal u : result.getTopUsers( 20 ) )
+      out.println( "<tr><td>" + StringEscapeUtils.escapeHtml4( u.getUserName() ) + "</td><td>" + u.getMatches() + 
+                   "</td><td>" + (u.getBytes() / CompiledRule.BYTES_PER_MB) + "</td></tr>" );
+    out.println( "</table>" );
+  }
+  
+  void sendRuleMatches( ServletOutputStream out, CompiledRule rule, long events ) throws IOException
+  {
+    long matches = rule.getMatches().get();
+    out.println( "<tr><td>" + StringEscapeUtils.escapeHtml4( rule.getName() ) + "</td><td>" + (rule.isShadow() ? "Shadow" : "Live") + 
+                 "</td><td>" + matches + "</td><td>" + String.format( "%.2f", events <= 0L ? 0.0 : 1000.0 * matches / events ) + 
+                 "</td><td>" + formatActions( rule.getRule().isActionEmail(), rule.getRule().isActionOverwrite() ) + "</td></tr>" );
+  }
+  
+  static String formatActions( boolean email, boolean overwrite )
+  {
+    if ( email && overwrite )
+      return "Email, overwrite";
+    if ( email )
+      return "Email";
+    if ( overwrite )
+      return "Overwrite";
+    return "";
+  }
+  
+  static String formatClusterValue( Double d )
+  {
+    if ( d == null )
+      return "";
+    if ( d.isInfinite() )
+      return "&gt; " + (MetricsRegistry.Histogram.BOUNDS_MICROS[MetricsRegistry.Histogram.BOUNDS_MICROS.length-1] / 1000L);
+    if ( d == Math.rint( d ) )
+      return Long.toString( d.longValue() );
+    return String.format( "%.2f", d );
+  }
+  
+  /**
+   * Output counts of events showing where in the processing they were
+   * accepted or rejected.
+   * @param out
+   * @throws IOException 
+   */
+  void sendStatistics( ServletOutputStream out ) throws IOException
+  {
+    EventStatistics stats = webappcore.getEventStatistics();
+    out.println( "<h2>Event Statistics</h2>" );
+    MetricsRegistry metrics = webappcore.getMetrics();
+    out.println( "<p>These counts come from whichever server instance you are " +
+                 "connected to. Event counts, rule matches and timings cover the time since " + 
+                 WebAppCore.dateformat.format( new java.util.Date( metrics.getResetTime() ) ) + ". " +
+                 "The intake, user cache, email and overwrite totals count from when the server started " +
+                 "and are not reset.</p>" );
+    out.println( "<form action=\"status\" method=\"POST\"><input type=\"hidden\" name=\"resetmetrics\" value=\"true\"/>" );
+    out.println( "<input type=\"submit\" value=\"Reset Event Counts and Timings\"/></form>" );
+    out.println( "<table>" );
+    for ( EventStatistics.Stage stage : EventStatistics.Stage.values() )
+      out.println( "<tr><td>" + stage.getLabel() + "</td><td>" + stats.get( stage ) + "</td></tr>" );
+    out.println( "</table>" );
+    
+    // Live and shadow rules see the same events so compare them per 
+    // thousand events that reached the rules.
+    long events = stats.get( EventStatistics.Stage.RECEIVED ) - 
+                  stats.get( EventStatistics.Stage.IGNORED_EVENT_TYPE ) - 
+                  stats.get( EventStatistics.Stage.ENTRY_NOT_FOUND );
+    CompiledRuleSet ruleset = webappcore.getEventProcessor().getRules();
+    out.println( "<h3>Matches by Rule</h3>" );
+    out.println( "<p>Shadow rules take no action. Their actions column shows what they would have done.</p>" );
+    out.println( "<table>" );
+    out.println( "<tr><td>Rule</td><td>Mode</td><td>Matches</td><td>Per 1000 files</td><td>Actions</td></tr>" );
+    for ( CompiledRule rule : ruleset.getRules() )
+      sendRuleMatches( out, rule, events );
+    for ( CompiledRule rule : ruleset.getShadowRules() )
+      sendRuleMatches( out, rule, events );
+    out.println( "</table>" );
+    
+    List<ShadowLog.Entry> recent = webappcore.getEventProcessor().getShadowLog().getRecent();
+    if ( !recent.isEmpty() )
+    {
+      out.println( "<h3>Recent Shadow Matches</h3>" );
+      out.println( "<table>" );
+      out.println( "<tr><td>Time</td><td>Rule</td><td>File</td><td>MB</td><td>Type</td><td>User id</td><td>Would</td></tr>" );
+      for ( ShadowLog.Entry e : recent )
+        out.println( "<tr><td>" + WebAppCore.dateformat.format( new java.util.Date( e.getTime() ) ) + "</td><td>" + 
+                     StringEscapeUtils.escapeHtml4( e.getRule() ) + "</td><td>" + StringEscapeUtils.escapeHtml4( e.getPath() ) + "</td><td>" + 
+                     (e.getSize() / CompiledRule.BYTES_PER_MB) + "</td><td>" + StringEscapeUtils.escapeHtml4( e.getType() ) + "</td><td>" + 
+                     e.getUserId() + "</td><td>" + formatActions( e.isEmail(), e.isOverwrite() ) + "</td></tr>" );
+      out.println( "</table>" );
+    }
+    
+    out.println( "<h3>Timings</h3>" );
+    out.println( "<p>Percentiles are the upper limit of the range they fall in.</p>" );
+    out.println( "<table>" );
+    out.println( "<tr><td></td><td>Count</td><td>Mean (ms)</td><td>50% (ms)</td><td>99% (ms)</td></tr>" );
+    for ( MetricsRegistry.Histogram h : metrics.getHistograms() )
+    {
+      long count = h.getCount();
+      out.println( "<tr><td>" + h.getHelp() + "</td><td>" + count + "</td><td>" + 
+                   String.format( "%.1f", count == 0 ? 0.0 : h.getSumMicros() / 1000.0 / count ) + "</td><td>" + 
+                   formatPercentile( h.getPercentileMicros( 0.5 ) ) + "</td><td>" + 
+                   formatPercentile( h.getPercentileMicros( 0.99 ) ) + "</td></tr>" );
+    }
+    out.println( "</table>" );
+    
+    ExecutionMode mode = webappcore.getExecutionMode();
+    out.println( "<h3>Threads and Backend Limits</h3>" );
+    out.println( "<table>" );
+    out.println( "<tr><td>Thread type</td><td>" + (mode.isVirtual() ? "Virtual" : "Platform") + 
+                 (ExecutionMode.isVirtualAvailable() ? "" : " (virtual threads need Java 21)") + "</td></tr>" );
+    for ( ExecutionMode.Backend backend : ExecutionMode.Backend.values() )
+      out.println( "<tr><td>" + backend + " in use / limit / waiting</td><td>" + 
+                   mode.getInUse( backend ) + " / " + mode.getLimit( backend ) + " / " + mode.getWaiting( backend ) + "</td></tr>" );
+    out.println( "</table>" );
+    
+    EventIntake intake = webappcore.getEventIntake();
+    if ( intake != null )
+    {
+      out.println( "<h3>Event Intake</h3>" );
+      out.println( "<table>" );
+      out.println( "<tr><td>Waiting in memory</td><td>"         + intake.getDepth() + " of " + intake.getCapacity() + "</td></tr>" );
+      out.println( "<tr><td>Waiting in spill file</td><td>"     + intake.getSpillCount() + "</td></tr>" );
+      out.println( "<tr><td>Policy when full</td><td>"          + intake.getPolicy()     + "</td></tr>" );
+      out.println( "<tr><td>Accepted</td><td>"                  + intake.getAccepted()   + "</td></tr>" );
+      out.println( "<tr><td>Accepted after waiting</td><td>"    + intake.getWaited()     + "</td></tr>" );
+      out.println( "<tr><td>Spilled to file</td><td>"           + intake.getSpilled()    + "</td></tr>" );
+      out.println( "<tr><td>Shed</td><td>"                      + intake.getShed()       + "</td></tr>" );
+      out.println( "<tr><td>Merged with an earlier event for the same file</td><td>" + intake.getMerged() + "</td></tr>" );
+      out.println( "</table>" );
+    }
+    
+    UserProfileCache cache = webappcore.getUserProfileCache();
+    out.println( "<h3>User Cache</h3>" );
+    out.println( "<table>" );
+    out.println( "<tr><td>Entries</td><td>"                     + cache.getSize() + " of " + cache.getMaximumSize() + "</td></tr>" );
+    out.println( "<tr><td>Hits</td><td>"                        + cache.getHits()         + "</td></tr>" );
+    out.println( "<tr><td>Hits for unknown principals</td><td>" + cache.getNegativeHits() + "</td></tr>" );
+    out.println( "<tr><td>Misses</td><td>"                      + cache.getMisses()       + "</td></tr>" );
+    out.println( "<tr><td>Hit ratio</td><td>"                   + String.format( "%.1f%%", 100.0 * cache.getHitRatio() ) + "</td></tr>" );
+    out.println( "<tr><td>Evictions</td><td>"                   + cache.getEvictions()    + "</td></tr>" );
+    out.println( "<tr><td>Expirations</td><td>"                 + cache.getExpirations()  + "</td></tr>" );
+    out.println( "</table>" );
+    
+    EmailOutbox outbox = webappcore.getEmailOutbox();
+    if ( outbox != null )
+    {
+      out.println( "<h3>Email Outbox</h3>" );
+      out.println( "<table>" );
+      out.println( "<tr><td>Waiting</td><td>"                   + outbox.getDepth() + " of " + outbox.getCapacity() + "</td></tr>" );
+      out.println( "<tr><td>Age of oldest (seconds)</td><td>"   + (outbox.getOldestAgeMillis()/1000L) + "</td></tr>" );
+      out.println( "<tr><td>Queued</td><td>"                    + outbox.getEnqueued() + "</td></tr>" );
+      out.println( "<tr><td>Sent</td><td>"                      + outbox.getSent()     + "</td></tr>" );
+      out.println( "<tr><td>Retries</td><td>"                   + outbox.getRetried()  + "</td></tr>" );
+      out.println( "<tr><td>Given up</td><td>"                  + outbox.getFailed()   + "</td></tr>" );
+      out.println( "<tr><td>Discarded - outbox full</td><td>"   + outbox.getRejected() + "</td></tr>" );
+      EmailJournal journal = webappcore.getEmailJournal();
+      out.println( "<tr><td>Journal records</td><td>"           + (journal == null ? "No journal" : Long.toString( journal.getRecordCount() )) + "</td></tr>" );
+      MailDelivery delivery = webappcore.getMailDelivery();
+      out.println( "<tr><td>SMTP server</td><td>"               + delivery.getSmtpHost()        + "</td></tr>" );
+      out.println( "<tr><td>SMTP connections open</td><td>"     + delivery.getOpenConnections() + "</td></tr>" );
+      out.println( "<tr><td>SMTP connections made</td><td>"     + delivery.getConnections()     + "</td></tr>" );
+      out.println( "<tr><td>SMTP reconnects</td><td>"           + delivery.getReconnects()      + "</td></tr>" );
+      out.println( "<tr><td>Messages delivered</td><td>"        + delivery.getMessages()        + "</td></tr>" );
+      out.println( "</table>" );
+    }
+    
+    FileProcessWorker worker = webappcore.getFileProcessWorker();
+    if ( worker != null )
+    {
+      OverwriteScheduler scheduler = worker.getScheduler();
+      out.println( "<h3>File Overwrite Queue</h3>" );
+      out.println( "<table>" );
+      out.println( "<tr><td>Waiting</td><td>"                             + scheduler.getQueueLength()          + "</td></tr>" );
+      out.println( "<tr><td>Ready, waiting for a worker</td><td>"         + scheduler.getReadyCount()           + "</td></tr>" );
+      out.println( "<tr><td>Running</td><td>"                             + scheduler.getRunningCount()         + "</td></tr>" );
+      out.println( "<tr><td>Next due in (seconds)</td><td>"               + (scheduler.getMillisToNext() < 0 ? "-" : Long.toString( scheduler.getMillisToNext()/1000L )) + "</td></tr>" );
+      out.println( "<tr><td>Added</td><td>"                               + scheduler.getAdded()                + "</td></tr>" );
+      out.println( "<tr><td>Completed</td><td>"                           + scheduler.getCompleted()            + "</td></tr>" );
+      out.println( "<tr><td>Failed</td><td>"                              + scheduler.getFailed()               + "</td></tr>" );
+      out.println( "<tr><td>Completed in last minute</td><td>"            + scheduler.getCompletionsLastMinute() + "</td></tr>" );
+      out.println( "<tr><td>Order</td><td>"                               + (scheduler.isLargestFirst() ? "Largest first" : "Users in turn") + "</td></tr>" );
+      out.println( "<tr><td>MB reclaimed / MB pending</td><td>"          + (worker.getBytesReclaimed() / CompiledRule.BYTES_PER_MB) + " / " + (scheduler.getPendingBytes() / CompiledRule.BYTES_PER_MB) + "</td></tr>" );
+      out.println( "<tr><td>Batches</td><td>"                             + scheduler.getBatches()              + "</td></tr>" );
+      out.println( "<tr><td>Batches rolled back and redone</td><td>"      + worker.getRollbacks() + "</td></tr>" );
+      out.println( "<tr><td>Replaced by a later event for the same file</td><td>" + scheduler.getSuperseded() + "</td></tr>" );
+      out.println( "<tr><td>Mean time from added to finished (ms)</td><td>" + scheduler.getAverageLatencyMillis() + "</td></tr>" );
+      out.println( "<tr><td>Longest time from added to finished (ms)</td><td>" + scheduler.getMaximumLatencyMillis() + "</td></tr>" );
+      out.println( "<tr><td>Mean time overwriting (ms)</td><td>"          + scheduler.getAverageRunMillis()     + "</td></tr>" );
+      OverwriteJournal ojournal = worker.getJournal();
+      out.println( "<tr><td>Journal records</td><td>"                     + (ojournal == null ? "No journal" : Long.toString( ojournal.getRecordCount() )) + "</td></tr>" );
+      out.println( "<tr><td>Journal replay time at start (ms)</td><td>"   + (ojournal == null ? "-" : Long.toString( ojournal.getLastReplayMillis() )) + "</td></tr>" );
+      out.println( "</table>" );
+    }
+    
+    NotificationDigester digester = webappcore.getNotificationDigester();
+    if ( digester != null )
+    {
+      out.println( "<h3>Notification Digests</h3>" );
+      out.println( "<table>" );
+      out.println( "<tr><td>Files matched by email rules</td><td>"   + digester.getMatches()      + "</td></tr>" );
+      out.println( "<tr><td>Digests waiting</td><td>"                + digester.getPendingDigests() + "</td></tr>" );
+      out.println( "<tr><td>Emails queued</td><td>"                  + digester.getDigests()      + "</td></tr>" );
+      out.println( "<tr><td>Emails suppressed by daily limit</td><td>" + digester.getSuppressed() + "</td></tr>" );
+      out.println( "</table>" );
+    }
+  }
+  
+  
   /**
    * Output a list of log files that can be viewed or deleted.
    * @param out
@@ -203,26 +604,107 @@ public class StatusServlet extends HttpServlet
 
     out.println( "<h3>User Name</h3>" );
     out.println( "<p>Username that will be used for all Xythos file system operations. Requires restart if changed.</p>" );
-    out.println( "<input name=\"username\" value=\"" + config.getUserName() + "\"/>" );
+    out.println( "<input name=\"username\" value=\"" + StringEscapeUtils.escapeHtml4( config.getUserName() ) + "\"/>" );
     
     out.println( "<h3>Email address in from field</h3>" );
-    out.println( "<input name=\"emailfrom\" value=\"" + config.getEmailFrom() + "\"/>" );
+    out.println( "<input name=\"emailfrom\" value=\"" + StringEscapeUtils.escapeHtml4( config.getEmailFrom() ) + "\"/>" );
     out.println( "<h3>Name for Above Address</h3>" );
-    out.println( "<input name=\"emailfromname\" value=\"" + config.getEmailFromName() + "\"/>" );
+    out.println( "<input name=\"emailfromname\" value=\"" + StringEscapeUtils.escapeHtml4( config.getEmailFromName() ) + "\"/>" );
+
+    out.println( "<h3>User Cache</h3>" );
+    out.println( "<p>How many users' details to keep in memory and for how many seconds.</p>" );
+    out.println( "<p>Size <input name=\"usercachesize\" value=\"" + config.getUserCacheSize() + "\"/>" );
+    out.println( " Time to live <input name=\"usercachettl\" value=\"" + config.getUserCacheTtlSeconds() + "\"/></p>" );
+
+    out.println( "<h3>Event Intake</h3>" );
+    out.println( "<p>Events from Xythos are queued and processed by a pool of threads (requires restart if changed). " );
+    out.println( "When the queue is full BLOCK waits up to the given milliseconds for space, SHED drops events " );
+    out.println( "that could only be logged and SPILL writes events to a file until there is space.</p>" );
+    out.println( "<p>Threads <input name=\"intakethreads\" value=\"" + config.getIntakeThreads() + "\"/>" );
+    out.println( " Queue size <input name=\"intakecapacity\" value=\"" + config.getIntakeCapacity() + "\"/>" );
+    out.println( " Wait <input name=\"intakeblock\" value=\"" + config.getIntakeBlockMillis() + "\"/></p>" );
+    out.println( "<p>Events for the same file that arrive within this many milliseconds of the first are merged " );
+    out.println( "so the rules are only applied once, to the final file name. Zero to turn off.</p>" );
+    out.println( "<p>Coalescing window <input name=\"coalescemillis\" value=\"" + config.getCoalesceMillis() + "\"/></p>" );
+    out.println( "<select name=\"intakepolicy\" size=\"" + EventIntake.Policy.values().length + "\">" );
+    for ( EventIntake.Policy policy : EventIntake.Policy.values() )
+      out.println( "  <option value=\"" + policy.name() + "\"" + (policy == EventIntake.parsePolicy( config.getIntakePolicy() )?" selected=\"true\"":"") + ">" + policy.name() + "</option>" );
+    out.println( "</select>" );
+
+    out.println( "<h3>Threads and Backend Limits</h3>" );
+    out.println( "<p>On Java 21 or later the event intake and email threads can be virtual threads (requires restart if changed). " );
+    out.println( "Then the thread counts above and below can be set much higher, into the hundreds, and the " );
+    out.println( "most Xythos lookups, database lookups and emails being sent at once are limited by these numbers instead.</p>" );
+    out.println( "<p>Virtual threads <input value=\"true\" type=\"checkbox\" name=\"virtualthreads\" " + (config.isVirtualThreads()?"checked=\"true\"":"") + "/>" );
+    out.println( " Xythos <input name=\"xythosconcurrency\" value=\"" + config.getXythosConcurrency() + "\"/>" );
+    out.println( " Database <input name=\"databaseconcurrency\" value=\"" + config.getDatabaseConcurrency() + "\"/>" );
+    out.println( " SMTP <input name=\"smtpconcurrency\" value=\"" + config.getSmtpConcurrency() + "\"/></p>" );
+
+    out.println( "<h3>Email Sending</h3>" );
+    out.println( "<p>Emails are queued and sent in the background. Timeout and retry delay are in seconds. " );
+    out.println( "The retry delay doubles after each failed attempt.</p>" );
+    out.println( "<p>Sender threads <input name=\"emailsenderthreads\" value=\"" + config.getEmailSenderThreads() + "\"/>" );
+    out.println( " Queue capacity <input name=\"emailqueuecapacity\" value=\"" + config.getEmailQueueCapacity() + "\"/></p>" );
+    out.println( "<p>Attempts <input name=\"emailmaxattempts\" value=\"" + config.getEmailMaxAttempts() + "\"/>" );
+    out.println( " Retry delay <input name=\"emailretry\" value=\"" + config.getEmailRetrySeconds() + "\"/>" );
+    out.println( " Timeout <input name=\"emailtimeout\" value=\"" + config.getEmailTimeoutSeconds() + "\"/></p>" );
+    out.println( "<p>Files uploaded by a user within the digest window (seconds) of each other are " );
+    out.println( "described in one email. Zero sends an email per file. The daily limit is the most " );
+    out.println( "emails any one user will be sent per day about each rule, zero means no limit.</p>" );
+    out.println( "<p>Digest window <input name=\"digestwindow\" value=\"" + config.getDigestWindowSeconds() + "\"/>" );
+    out.println( " Daily limit <input name=\"dailyemailcap\" value=\"" + config.getDailyEmailCap() + "\"/></p>" );
+
+    out.println( "<h3>File Overwriting</h3>" );
+    out.println( "<p>Number of overwrite threads (requires restart if changed), the most batches " );
+    out.println( "that may run at once on one Xythos virtual server and the most overwrites in a batch. " );
+    out.println( "Each batch is done in one Xythos context.</p>" );
+    out.println( "<p>Threads <input name=\"overwritethreads\" value=\"" + config.getOverwriteThreads() + "\"/>" );
+    out.println( " Per server limit <input name=\"overwriteperserver\" value=\"" + config.getOverwritePerServerLimit() + "\"/>" );
+    out.println( " Batch size <input name=\"overwritebatch\" value=\"" + config.getOverwriteBatchSize() + "\"/></p>" );
+    out.println( "<p>Ready files are normally overwritten taking each user in turn. Alternatively the files " );
+    out.println( "that will free most storage can go first. Each minute a file waits counts as this many extra megabytes " );
+    out.println( "so small files still get done.</p>" );
+    out.println( "<p>Largest first <input value=\"true\" type=\"checkbox\" name=\"overwritelargestfirst\" " + (config.isOverwriteLargestFirst()?"checked=\"true\"":"") + "/>" );
+    out.println( " Aging MB per minute <input name=\"overwriteaging\" value=\"" + config.getOverwriteAgingMbPerMinute() + "\"/></p>" );
+
+    out.println( "<h3>Metrics</h3>" );
+    out.println( "<p>Metrics are at status?format=json and status?format=prometheus. Monitoring systems " );
+    out.println( "that can't log in can send this token as a bearer token instead. Leave blank to require a login.</p>" );
+    out.println( "<p>Token <input name=\"metricstoken\" value=\"" + StringEscapeUtils.escapeHtml4( config.getMetricsToken() ) + "\"/></p>" );
+    out.println( "<p>How often, in seconds, each server sends its metrics to the others for the cluster page. Zero to stop.</p>" );
+    out.println( "<p>Publish every <input name=\"metricspublish\" value=\"" + config.getMetricsPublishSeconds() + "\"/></p>" );
 
     
-    for ( int i=0; i<config.rules.size(); i++ )
+    // The existing rules and a blank one that is only saved if it is 
+    // given a name.
+    int rulecount = config.rules.size() + 1;
+    out.println( "<h2>Rules</h2>" );
+    out.println( "<p>Rules are tried in order of position. Change the numbers to reorder them. " );
+    out.println( "Give the new rule at the end a name and save to add it. Tick delete to remove a rule.</p>" );
+    out.println( "<input type=\"hidden\" name=\"rulecount\" value=\"" + rulecount + "\"/>" );
+    for ( int i=0; i<rulecount; i++ )
     {
-      RuleConfig rule = config.getRules().get( i );
+      boolean isnew = i == config.rules.size();
+      RuleConfig rule = isnew ? new RuleConfig() : config.getRules().get( i );
       
       out.println( "<hr />" );
-      out.println( "<h2>Rule " + (i+1) + "</h3>" );
+      out.println( isnew ? "<h2>New Rule</h2>" : "<h2>Rule " + (i+1) + "</h2>" );
+      out.println( "<p>Position <input name=\"position_" + i + "\" value=\"" + (i+1) + "\" size=\"4\"/>" );
+      if ( isnew )
+        out.println( "<input type=\"hidden\" name=\"new_" + i + "\" value=\"true\"/>" );
+      else
+        out.println( " Delete <input value=\"true\" type=\"checkbox\" name=\"delete_" + i + "\"/>" );
+      out.println( "</p>" );
       
       out.println( "<h3>Name" );
-      out.println( "<input name=\"name_" + i + "\" value=\"" + rule.getName() + "\"/>" );
+      out.println( "<input name=\"name_" + i + "\" value=\"" + StringEscapeUtils.escapeHtml4( rule.getName() ) + "\"/>" );
 
       out.println( " Enabled" );
-      out.println( "<input value=\"true\" type=\"checkbox\" name=\"enabled_" + i + "\" " + (rule.isEnabled()?"checked=\"true\"":"") + "/></h3>" );
+      out.println( "<input value=\"true\" type=\"checkbox\" name=\"enabled_" + i + "\" " + (rule.isEnabled()?"checked=\"true\"":"") + "/>" );
+      out.println( " Shadow" );
+      out.println( "<input value=\"true\" type=\"checkbox\" name=\"shadow_" + i + "\" " + (rule.isShadow()?"checked=\"true\"":"") + "/></h3>" );
+      out.println( "<p>A shadow rule is checked against every file, whatever the other rules do, but only counts the " );
+      out.println( "files it matches on the status page. It takes no action.</p>" );
       
       out.println( "<h3>Filters</h3>" );
       out.println( "<table border=\"0\"><tr><td>");
@@ -240,11 +722,11 @@ public class StatusServlet extends HttpServlet
 
       out.println( "<h4>MIME Type Filter</h4>" );
       out.println( "<p>(Java regular expression)</p>" );
-      out.println( "<input name=\"typeregex_" + i + "\" value=\"" + rule.getTypeRegex() + "\"/>" );
+      out.println( "<input name=\"typeregex_" + i + "\" value=\"" + StringEscapeUtils.escapeHtml4( rule.getTypeRegex() ) + "\"/>" );
 
       out.println( "<h4>File Path Filter</h4>" );
       out.println( "<p>(Java regular expression)</p>" );
-      out.println( "<input name=\"pathregex_" + i + "\" value=\"" + rule.getPathRegex() + "\"/>" );
+      out.println( "<input name=\"pathregex_" + i + "\" value=\"" + StringEscapeUtils.escapeHtml4( rule.getPathRegex() ) + "\"/>" );
       out.println( "</td></tr></table>");
 
       out.println( "<h3>Actions</h3>" );
@@ -256,13 +738,15 @@ public class StatusServlet extends HttpServlet
       
       out.println( "<h4>EMail</h4>" );
       out.println( "<p>What subject line should the email have?</p>" );
-      out.println( "<input name=\"emailsubject_" + i + "\" value=\"" + rule.getEmailSubject() + "\"/>" );
-      out.println( "<p>What message should be sent to the user?</p>" );
+      out.println( "<input name=\"emailsubject_" + i + "\" value=\"" + StringEscapeUtils.escapeHtml4( rule.getEmailSubject() ) + "\"/>" );
+      out.println( "<p>What message should be sent to the user? Placeholders: {name} {user_name} {user_email} " );
+      out.println( "{filename} {filesize_mb} {filetype} {rule} {filecount} {filelist}. Text between {#files} and {/files} " );
+      out.println( "is repeated for each file in a digest.</p>" );
       out.println( "<textarea name=\"emailbody_" + i + "\" cols=\"40\" rows=\"10\">" + rule.getEmailBody() + "</textarea>" );
       out.println( "</td><td>" );
       out.println( "<h4>Overwrite Source File</h4>" );
       out.println( "<p>Full path relative to webdav base.</p>" );
-      out.println( "<input name=\"overwritepath_" + i + "\" value=\"" + rule.getOverwritePath() + "\"/>" );
+      out.println( "<input name=\"overwritepath_" + i + "\" value=\"" + StringEscapeUtils.escapeHtml4( rule.getOverwritePath() ) + "\"/>" );
       out.println( "</td></tr></table>");
       
       out.println( "<h4>Continue</h4><p>If filter doesn't match, processing always moves to the next rule. If it does match, continuation is optional.</p>" );
@@ -282,18 +766,57 @@ public class StatusServlet extends HttpServlet
     String username             = req.getParameter( "username"         );
     String emailfrom            = req.getParameter( "emailfrom"        );
     String emailfromname        = req.getParameter( "emailfromname"    );
+    String usercachesize        = req.getParameter( "usercachesize"    );
+    String usercachettl         = req.getParameter( "usercachettl"     );
 
     newconfig.setLoglevelName( loglevel );
     newconfig.setUserName( username );
     newconfig.setEmailFrom( emailfrom );
     newconfig.setEmailFromName (emailfromname );
+    newconfig.setUserCacheSize( parseInt( usercachesize, newconfig.getUserCacheSize() ) );
+    newconfig.setUserCacheTtlSeconds( parseInt( usercachettl, newconfig.getUserCacheTtlSeconds() ) );
+    newconfig.setIntakeThreads(       parseInt( req.getParameter( "intakethreads"      ), newconfig.getIntakeThreads()       ) );
+    newconfig.setIntakeCapacity(      parseInt( req.getParameter( "intakecapacity"     ), newconfig.getIntakeCapacity()      ) );
+    newconfig.setIntakeBlockMillis(   parseInt( req.getParameter( "intakeblock"        ), newconfig.getIntakeBlockMillis()   ) );
+    newconfig.setCoalesceMillis(      parseInt( req.getParameter( "coalescemillis"     ), newconfig.getCoalesceMillis()      ) );
+    newconfig.setIntakePolicy( EventIntake.parsePolicy( req.getParameter( "intakepolicy" ) ).name() );
+    newconfig.setVirtualThreads( "true".equals( req.getParameter( "virtualthreads" ) ) );
+    newconfig.setXythosConcurrency(   parseInt( req.getParameter( "xythosconcurrency"  ), newconfig.getXythosConcurrency()   ) );
+    newconfig.setDatabaseConcurrency( parseInt( req.getParameter( "databaseconcurrency" ), newconfig.getDatabaseConcurrency() ) );
+    newconfig.setSmtpConcurrency(     parseInt( req.getParameter( "smtpconcurrency"    ), newconfig.getSmtpConcurrency()     ) );
+    newconfig.setEmailSenderThreads(  parseInt( req.getParameter( "emailsenderthreads" ), newconfig.getEmailSenderThreads()  ) );
+    newconfig.setEmailQueueCapacity(  parseInt( req.getParameter( "emailqueuecapacity" ), newconfig.getEmailQueueCapacity()  ) );
+    newconfig.setEmailMaxAttempts(    parseInt( req.getParameter( "emailmaxattempts"   ), newconfig.getEmailMaxAttempts()    ) );
+    newconfig.setEmailRetrySeconds(   parseInt( req.getParameter( "emailretry"         ), newconfig.getEmailRetrySeconds()   ) );
+    newconfig.setEmailTimeoutSeconds( parseInt( req.getParameter( "emailtimeout"       ), newconfig.getEmailTimeoutSeconds() ) );
+    newconfig.setDigestWindowSeconds( parseInt( req.getParameter( "digestwindow"       ), newconfig.getDigestWindowSeconds() ) );
+    newconfig.setDailyEmailCap(       parseInt( req.getParameter( "dailyemailcap"      ), newconfig.getDailyEmailCap()       ) );
+    newconfig.setOverwriteThreads(    parseInt( req.getParameter( "overwritethreads"   ), newconfig.getOverwriteThreads()    ) );
+    newconfig.setOverwritePerServerLimit( parseInt( req.getParameter( "overwriteperserver" ), newconfig.getOverwritePerServerLimit() ) );
+    newconfig.setOverwriteBatchSize(  parseInt( req.getParameter( "overwritebatch"     ), newconfig.getOverwriteBatchSize()  ) );
+    newconfig.setOverwriteLargestFirst( "true".equals( req.getParameter( "overwritelargestfirst" ) ) );
+    newconfig.setOverwriteAgingMbPerMinute( parseInt( req.getParameter( "overwriteaging" ), newconfig.getOverwriteAgingMbPerMinute() ) );
+    newconfig.setMetricsPublishSeconds( parseInt( req.getParameter( "metricspublish" ), newconfig.getMetricsPublishSeconds() ) );
+    String metricstoken = req.getParameter( "metricstoken" );
+    if ( metricstoken != null )
+      newconfig.setMetricsToken( metricstoken.trim() );
 
-    for ( int i=0; i<newconfig.rules.size(); i++ )
+    int rulecount = parseInt( req.getParameter( "rulecount" ), 0 );
+    int[] positions = new int[rulecount];
+    for ( int i=0; i<rulecount; i++ )
     {
-      RuleConfig rule = newconfig.getRules().get( i );
+      RuleConfig rule = new RuleConfig();
       
-      String name                 = req.getParameter( "name_"            + i );
+      // Only rules marked for deletion are dropped, and the blank new 
+      // rule if it wasn't given a name. An existing rule without a name 
+      // is kept.
+      String name                 = StringUtils.defaultString( req.getParameter( "name_" + i ) );
+      if ( "true".equals( req.getParameter( "delete_" + i ) ) )
+        continue;
+      if ( "true".equals( req.getParameter( "new_" + i ) ) && StringUtils.isBlank( name ) )
+        continue;
       String enabled              = req.getParameter( "enabled_"         + i );
+      String shadow               = req.getParameter( "shadow_"          + i );
       String actionlog            = req.getParameter( "actionlog_"       + i );
       String actionemail          = req.getParameter( "actionemail_"     + i );
       String actionoverwrite      = req.getParameter( "actionoverwrite_" + i );
@@ -310,9 +833,9 @@ public class StatusServlet extends HttpServlet
 
       String continuerules        = req.getParameter( "continuerules_"   + i );
       
-      rule.setN( i );
       rule.setName( name );
       rule.setEnabled(         "true".equals( enabled         ) );
+      rule.setShadow(          "true".equals( shadow          ) );
       rule.setActionLog(       "true".equals( actionlog       ) );
       rule.setActionEmail(     "true".equals( actionemail     ) );
       rule.setActionOverwrite( "true".equals( actionoverwrite ) );
@@ -324,7 +847,16 @@ public class StatusServlet extends HttpServlet
       rule.setEmailBody(       emailbody                        );
       rule.setOverwritePath(   overwritepath                    );
       rule.setContinueRules(   "true".equals( continuerules   ) );
+      positions[i] = parseInt( req.getParameter( "position_" + i ), i+1 );
+      rule.setN( i );
+      newconfig.getRules().add( rule );
     }
+    // Sort by position, ties keep their order on the form.
+    newconfig.getRules().sort( (a, b) -> positions[a.getN()] != positions[b.getN()] ? 
+                                         Integer.compare( positions[a.getN()], positions[b.getN()] ) : 
+                                         Integer.compare( a.getN(), b.getN() ) );
+    for ( int i=0; i<newconfig.getRules().size(); i++ )
+      newconfig.getRules().get( i ).setN( i );
     
     out.println( "<h2>Saving Configuration Settings</h2>" );
 
@@ -341,4 +873,35 @@ public class StatusServlet extends HttpServlet
     out.println( "<p>Saved settings</p>" );
   }  
   
+  /**
+   * Milliseconds for a percentile from a histogram, which is -1 if it is
+   * beyond the last bucket.
+   */
+  static String formatPercentile( long micros )
+  {
+    if ( micros < 0L )
+      return "&gt; " + (MetricsRegistry.Histogram.BOUNDS_MICROS[MetricsRegistry.Histogram.BOUNDS_MICROS.length-1] / 1000L);
+    return String.format( "%.1f", micros / 1000.0 );
+  }
+  
+  /**
+   * Parse a number from a form field.
+   * @param s The text from the form.
+   * @param defaultvalue What to use if the text is empty or not a number.
+   * @return The number.
+   */
+  static int parseInt( String s, int defaultvalue )
+  {
+    if ( StringUtils.isEmpty( s ) )
+      return defaultvalue;
+    try
+    {
+      return Integer.parseInt( s.trim() );
+    }
+    catch ( NumberFormatException nfex )
+    {
+      return defaultvalue;
+    }
+  }
+  
 }
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+/**
+ * The few details of a BB user that are needed when a rule matches. 
+ * Immutable so it can be shared between threads via the cache.
+ * 
+ * @author jon
+ */
+public class UserProfile
+{
+  final String principalid;
+  final String username;
+  final String emailaddress;
+  final String name;
+
+  public UserProfile( String principalid, String username, String emailaddress, String name )
+  {
+    this.principalid  = principalid;
+    this.username     = username;
+    this.emailaddress = emailaddress;
+    this.name         = name;
+  }
+
+  /**
+   * @return The Xythos principal ID, e.g. BB:U:_1234_1
+   */
+  public String getPrincipalId()
+  {
+    return principalid;
+  }
+
+  public String getUserName()
+  {
+    return username;
+  }
+
+  public String getEmailAddress()
+  {
+    return emailaddress;
+  }
+
+  /**
+   * @return The display name formatted for the default locale.
+   */
+  public String getName()
+  {
+    return name;
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A size bounded, least recently used cache of user profiles keyed by
+ * Xythos principal ID. Entries expire after a time to live so that
+ * changes to users, e.g. new email addresses, are eventually picked up.
+ * Principals that are not found are cached too so repeated uploads by 
+ * them don't each cost a database lookup.
+ * 
+ * @author jon
+ */
+public class UserProfileCache
+{
+  public static final int  DEFAULT_MAXIMUM_SIZE = 1000;
+  public static final long DEFAULT_TTL_MILLIS   = 10L*60L*1000L;
+  
+  final UserProfileLoader loader;
+  final LinkedHashMap<String,CacheEntry> map;
+  int  maximumsize = DEFAULT_MAXIMUM_SIZE;
+  // Copy of map.size() so it can be read without taking the lock.
+  volatile int size = 0;
+  long ttlmillis   = DEFAULT_TTL_MILLIS;
+  
+  final LongAdder hits         = new LongAdder();
+  final LongAdder negativehits = new LongAdder();
+  final LongAdder misses       = new LongAdder();
+  final LongAdder evictions    = new LongAdder();
+  final LongAdder expirations  = new LongAdder();
+
+  public UserProfileCache( UserProfileLoader loader )
+  {
+    this.loader = loader;
+    // Access order makes this a least recently used map.
+    this.map = new LinkedHashMap<String,CacheEntry>( 16, 0.75f, true )
+    {
+      @Override
+      protected boolean removeEldestEntry( Map.Entry<String,CacheEntry> eldest )
+      {
+        if ( size() <= maximumsize )
+          return false;
+        evictions.increment();
+        return true;
+      }
+    };
+  }
+  
+  /**
+   * Change the size limit and time to live. Existing entries are kept
+   * unless the new size is smaller.
+   * 
+   * @param maximumsize Maximum number of entries, zero disables caching.
+   * @param ttlmillis How long an entry can be used for.
+   */
+  public void configure( int maximumsize, long ttlmillis )
+  {
+    synchronized ( map )
+    {
+      this.maximumsize = Math.max( 0, maximumsize );
+      this.ttlmillis   = ttlmillis;
+      while ( map.size() > this.maximumsize )
+      {
+        map.remove( map.keySet().iterator().next() );
+        evictions.increment();
+      }
+      size = map.size();
+    }
+  }
+  
+  /**
+   * Get a user profile, from the cache if possible.
+   * 
+   * @param principalid The Xythos principal ID.
+   * @return The profile or null if there is no such user.
+   * @throws Exception If the loader failed. Failures are not cached.
+   */
+  public UserProfile get( String principalid ) throws Exception
+  {
+    long now = System.currentTimeMillis();
+    synchronized ( map )
+    {
+      CacheEntry e = map.get( principalid );
+      if ( e != null )
+      {
+        if ( e.expires > now )
+        {
+          if ( e.profile == null )
+            negativehits.increment();
+          else
+            hits.increment();
+          return e.profile;
+        }
+        map.remove( principalid );
+        expirations.increment();
+        size = map.size();
+      }
+    }
+    
+    // Load outside of the lock so a slow database doesn't hold up
+    // other threads that would get a hit.
+    misses.increment();
+    UserProfile profile = loader.load( principalid );
+    synchronized ( map )
+    {
+      if ( maximumsize > 0 )
+        map.put( principalid, new CacheEntry( profile, now + ttlmillis ) );
+      size = map.size();
+    }
+    return profile;
+  }
+  
+  /**
+   * Discard all entries. Statistics are kept.
+   */
+  public void invalidateAll()
+  {
+    synchronized ( map )
+    {
+      map.clear();
+      size = 0;
+    }
+  }
+  
+  public int getSize()
+  {
+    return size;
+  }
+
+  public int getMaximumSize()
+  {
+    return maximumsize;
+  }
+
+  public long getHits()
+  {
+    return hits.sum();
+  }
+
+  public long getNegativeHits()
+  {
+    return negativehits.sum();
+  }
+
+  public long getMisses()
+  {
+    return misses.sum();
+  }
+
+  public long getEvictions()
+  {
+    return evictions.sum();
+  }
+
+  public long getExpirations()
+  {
+    return expirations.sum();
+  }
+  
+  /**
+   * @return Proportion of lookups, positive or negative, that were answered 
+   * from the cache.
+   */
+  public double getHitRatio()
+  {
+    long h = hits.sum() + negativehits.sum();
+    long total = h + misses.sum();
+    return total == 0 ? 0.0 : (double)h / (double)total;
+  }
+  
+  static class CacheEntry
+  {
+    final UserProfile profile;
+    final long expires;
+
+    CacheEntry( UserProfile profile, long expires )
+    {
+      this.profile = profile;
+      this.expires = expires;
+    }
+  }
+}
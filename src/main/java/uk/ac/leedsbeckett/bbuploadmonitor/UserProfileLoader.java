@@ -0,0 +1,35 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+/**
+ * Something that can look up a user's profile from the user's Xythos 
+ * principal ID.
+ * 
+ * @author jon
+ */
+public interface UserProfileLoader
+{
+  /**
+   * Look up a user.
+   * 
+   * @param principalid The Xythos principal ID.
+   * @return The profile or null if there is no such user.
+   * @throws Exception If the lookup failed for some other reason.
+   */
+  UserProfile load( String principalid ) throws Exception;
+}
@@ -19,6 +19,8 @@ package uk.ac.leedsbeckett.bbuploadmonitor;
 import blackboard.data.registry.SystemRegistryUtil;
 import blackboard.data.user.User;
 import blackboard.persist.Id;
+import blackboard.persist.KeyNotFoundException;
+import blackboard.persist.PersistenceException;
 import blackboard.persist.user.UserDbLoader;
 import blackboard.platform.intl.BbLocale;
 import blackboard.platform.plugin.PlugInUtil;
@@ -49,20 +51,22 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.TextMessage;
 import javax.mail.BodyPart;
 import javax.mail.MessagingException;
-import javax.mail.Session;
-import javax.mail.Transport;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
@@ -134,9 +138,23 @@ public class WebAppCore implements ServletContextListener, StorageServerEventLis
   public Path pluginbase=null;
   public Path logbase=null;
   public Path configbase=null;
+  public Path journalbase=null;
   
   BuildingBlockCoordinator bbcoord;
-  FileProcessWorker fileprocessworker = new FileProcessWorker( this );
+  ClusterMetrics clustermetrics;
+  FileProcessWorker fileprocessworker;
+  final MetricsRegistry metrics = new MetricsRegistry();
+  final EventStatistics eventstatistics = new EventStatistics( metrics );
+  final MetricsRegistry.Histogram emailsendtime  = metrics.histogram( "email_send",      "Time to send one email to the SMTP server" );
+  final MetricsRegistry.Histogram overwritetime  = metrics.histogram( "overwrite",       "Time to overwrite one file" );
+  final UserProfileCache userprofilecache = new UserProfileCache( this::loadUserProfile );
+  EmailOutbox emailoutbox;
+  MailDelivery maildelivery;
+  NotificationDigester notificationdigester;
+  EmailJournal emailjournal;
+  EventIntake eventintake;
+  EventProcessor eventprocessor;
+  final ExecutionMode executionmode = new ExecutionMode();
   
   /**
    * The constructor just checks to see how many times it has been called.
@@ -198,6 +216,14 @@ public class WebAppCore implements ServletContextListener, StorageServerEventLis
       return;  
     if ( !loadSettings() )
       return;
+    
+    initEmailJournal();
+    emailoutbox.start();
+    notificationdigester.start();
+    // Before anything can queue overwrites so that every task is journaled
+    // and tasks from before the restart don't replace newer ones.
+    fileprocessworker.openJournal();
+    initEventIntake();
         
     if ( initXythos() )
       startMonitoringXythos();
@@ -211,11 +237,54 @@ public class WebAppCore implements ServletContextListener, StorageServerEventLis
     // the message broker over the network that could make starting the building block
     // hang for ages.
     bbcoord.start();
+    clustermetrics.start();
 
     fileprocessworker.start();
   }
 
 
+  /**
+   * Open this server's email journal and put any messages that were not
+   * sent before the last shutdown back in the outbox. If the journal can't
+   * be opened emails are still sent but not journaled.
+   */
+  void initEmailJournal()
+  {
+    EmailJournal journal = new EmailJournal( journalbase.resolve( "outbox_" + serverid + ".journal" ), 1000L, logger );
+    try
+    {
+      journal.open();
+      emailoutbox.setJournal( journal );
+      emailjournal = journal;
+    }
+    catch ( IOException ex )
+    {
+      logger.error( "Unable to open email journal. Unsent emails will be lost on restart.", ex );
+    }
+  }
+  
+  /**
+   * Open the spill file for events that don't fit in the intake queue and
+   * start the threads that process events. Events left in the spill file
+   * at the last shutdown will be processed.
+   */
+  void initEventIntake()
+  {
+    EventSpill spill = new EventSpill( journalbase.resolve( "intake_" + serverid + ".spill" ) );
+    try
+    {
+      spill.open();
+      eventintake.setSpill( spill );
+      if ( spill.getCount() > 0 )
+        logger.info( "Event intake has " + spill.getCount() + " events from before the last shutdown." );
+    }
+    catch ( IOException ex )
+    {
+      logger.error( "Unable to open event spill file. Events will be dropped when the intake queue is full.", ex );
+    }
+    eventintake.start( config.getIntakeThreads() );
+  }
+  
   /**
    * Default settings are built into the web application. Here they are loaded
    * and also two key entries which are used to locate folders in the BB system.
@@ -256,6 +325,7 @@ public class WebAppCore implements ServletContextListener, StorageServerEventLis
     {
       configbase = Paths.get( PlugInUtil.getConfigDirectory( buildingblockvid, buildingblockhandle ).getPath() );
       logbase    = configbase.resolve( "log" );
+      journalbase = configbase.resolve( "journal" );
       pluginbase = configbase.getParent();      
       Path p = pluginbase; 
       while ( p.getNameCount() > 2 )
@@ -270,6 +340,7 @@ public class WebAppCore implements ServletContextListener, StorageServerEventLis
       WebAppCore.logToBuffer( "pluginbase        = " + pluginbase.toString() );
       WebAppCore.logToBuffer( "configbase        = " + configbase.toString() );
       WebAppCore.logToBuffer( "logbase           = " + logbase.toString()    );
+      WebAppCore.logToBuffer( "journalbase       = " + journalbase.toString() );
     }
     catch ( Exception e )
     {
@@ -336,6 +407,56 @@ public class WebAppCore implements ServletContextListener, StorageServerEventLis
     datalogger = LogManager.getLoggerRepository().getLogger(WebAppCore.class.getName() + "/datalogger" );
     datalogger.setLevel( Level.INFO );
     datalogger.removeAllAppenders();
+    
+    emailoutbox = new EmailOutbox( this::deliverEmail, logger );
+    maildelivery = new MailDelivery( logger );
+    notificationdigester = new NotificationDigester( this::sendDigest, logger );
+    fileprocessworker = new FileProcessWorker( this );
+    eventprocessor = new EventProcessor( 
+            new XythosFileStore( executionmode ), 
+            userprofilecache, 
+            notificationdigester, 
+            fileprocessworker, 
+            eventstatistics, 
+            metrics, 
+            logger, 
+            datalogger );
+    eventintake = new EventIntake( eventprocessor::processEvents, logger );
+    clustermetrics = new ClusterMetrics( metrics, serverid, this::publishMetrics, logger );
+    emailoutbox.setExecutionMode( executionmode );
+    eventintake.setExecutionMode( executionmode );
+    registerGauges();
+  }
+  
+  /**
+   * Gauges read the current state of the queues and caches when metrics
+   * are exported. Totals read running counts kept by the same objects.
+   */
+  void registerGauges()
+  {
+    OverwriteScheduler scheduler = fileprocessworker.getScheduler();
+    metrics.gauge( "intake_depth",              "Events waiting in memory",                   eventintake::getDepth );
+    metrics.gauge( "intake_spill_depth",        "Events waiting in the spill file",           eventintake::getSpillCount );
+    metrics.total( "intake_shed",               "Events dropped because the intake was full", eventintake::getShed );
+    metrics.total( "intake_merged",             "Events merged with an earlier event",        eventintake::getMerged );
+    metrics.gauge( "email_outbox_depth",        "Emails waiting to be sent",                  emailoutbox::getDepth );
+    metrics.total( "email_sent",                "Emails sent",                                emailoutbox::getSent );
+    metrics.total( "email_failed",              "Emails given up on",                         emailoutbox::getFailed );
+    metrics.gauge( "overwrite_queue_length",    "Overwrites waiting",                         scheduler::getQueueLength );
+    metrics.gauge( "overwrite_running",         "Overwrites running",                         scheduler::getRunningCount );
+    metrics.total( "overwrite_completed",       "Overwrites completed",                       scheduler::getCompleted );
+    metrics.total( "overwrite_failed",          "Overwrites failed",                          scheduler::getFailed );
+    metrics.gauge( "overwrite_bytes_pending",   "Bytes that waiting overwrites will free",    scheduler::getPendingBytes );
+    metrics.total( "overwrite_bytes_reclaimed", "Bytes freed by overwriting",                 fileprocessworker::getBytesReclaimed );
+    metrics.gauge( "user_cache_size",           "Users in the cache",                         userprofilecache::getSize );
+    metrics.total( "user_cache_hits",           "User cache hits",                            () -> userprofilecache.getHits() + userprofilecache.getNegativeHits() );
+    metrics.total( "user_cache_misses",         "User cache misses",                          userprofilecache::getMisses );
+    metrics.gauge( "user_cache_hit_ratio",      "Fraction of user lookups found in the cache", () -> 
+    {
+      double hits = userprofilecache.getHits() + userprofilecache.getNegativeHits();
+      double total = hits + userprofilecache.getMisses();
+      return total == 0.0 ? 0.0 : hits / total;
+    } );
   }
   
   
@@ -422,12 +543,30 @@ public class WebAppCore implements ServletContextListener, StorageServerEventLis
   {
     logger.info("LBU BB upload monitor plugin destroy");    
 
-    try { fileprocessworker.interrupt(); }
-    catch ( Throwable th ) { logger.error( "Exception trying to stop file processing worker thread", th ); }
-    
     try { stopMonitoringXythos(); }
     catch ( Throwable th ) { logger.error( "Exception trying to stop Xythos monitoring", th ); }
     
+    try { if ( eventintake != null ) eventintake.stop(); }
+    catch ( Throwable th ) { logger.error( "Exception trying to stop event intake", th ); }
+    
+    try { if ( fileprocessworker != null ) fileprocessworker.interrupt(); }
+    catch ( Throwable th ) { logger.error( "Exception trying to stop file processing worker thread", th ); }
+    
+    try { if ( notificationdigester != null ) notificationdigester.stop(); }
+    catch ( Throwable th ) { logger.error( "Exception trying to stop notification digester", th ); }
+    
+    try { if ( emailoutbox != null ) emailoutbox.stop(); }
+    catch ( Throwable th ) { logger.error( "Exception trying to stop email outbox threads", th ); }
+    
+    try { if ( emailjournal != null ) emailjournal.close(); }
+    catch ( Throwable th ) { logger.error( "Exception trying to close email journal", th ); }
+    
+    try { if ( maildelivery != null ) maildelivery.close(); }
+    catch ( Throwable th ) { logger.error( "Exception trying to close SMTP connections", th ); }
+    
+    try { if ( clustermetrics != null ) clustermetrics.stop(); }
+    catch ( Throwable th ) { logger.error( "Exception trying to stop cluster metrics", th ); }
+    
     try { bbcoord.destroy(); }
     catch ( JMSException ex ) { logger.error( "Problem destroying bb coordinator", ex ); }    
   }
@@ -448,6 +587,7 @@ public class WebAppCore implements ServletContextListener, StorageServerEventLis
     {
       config = new Config();
       emailfrom = null;
+      applySettings();
       return true;
     }
       
@@ -458,6 +598,7 @@ public class WebAppCore implements ServletContextListener, StorageServerEventLis
       try { emailfrom = new InternetAddress( config.getEmailFrom() ); } catch ( AddressException aex ) { emailfrom = null; }
       emailfrom.setPersonal( config.getEmailFromName() );
       logger.setLevel( config.getLoglevel() );
+      applySettings();
       return true;
     }
     catch (Exception ex)
@@ -465,15 +606,114 @@ public class WebAppCore implements ServletContextListener, StorageServerEventLis
       logger.error( "Unable to load properties from file.", ex );
       config = new Config();
       emailfrom = null;
+      applySettings();
       return false;
     }    
   }
+  
+  /**
+   * Pass the newly loaded configuration on to the components that use it.
+   */
+  void applySettings()
+  {
+    CompiledRuleSet compiledrules = CompiledRuleSet.compile( config, logger, metrics );
+    eventprocessor.setRules( compiledrules );
+    executionmode.configure( 
+            config.isVirtualThreads(), 
+            config.getXythosConcurrency(), 
+            config.getDatabaseConcurrency(), 
+            config.getSmtpConcurrency() );
+    eventintake.configure( config.getIntakeCapacity(), EventIntake.parsePolicy( config.getIntakePolicy() ), config.getIntakeBlockMillis() );
+    eventintake.setShedThreshold( compiledrules.getMinimumActionThreshold() );
+    eventintake.setCoalesceMillis( config.getCoalesceMillis() );
+    userprofilecache.configure( config.getUserCacheSize(), 1000L * config.getUserCacheTtlSeconds() );
+    emailoutbox.configure( 
+            config.getEmailSenderThreads(), 
+            config.getEmailQueueCapacity(), 
+            config.getEmailMaxAttempts(), 
+            1000L * config.getEmailRetrySeconds() );
+    notificationdigester.configure( 1000L * config.getDigestWindowSeconds(), config.getDailyEmailCap() );
+    fileprocessworker.configure( config.getOverwriteThreads(), config.getOverwritePerServerLimit(), config.getOverwriteBatchSize() );
+    fileprocessworker.setOrder( config.isOverwriteLargestFirst(), config.getOverwriteAgingMbPerMinute() );
+    clustermetrics.configure( 1000L * config.getMetricsPublishSeconds() );
+    try
+    {
+      maildelivery.configure( 
+              getSmtpHost(), 
+              1000L * config.getEmailTimeoutSeconds(), 
+              Math.min( config.getEmailSenderThreads(), config.getSmtpConcurrency() ) );
+    }
+    catch ( Exception ex )
+    {
+      logger.error( "Unable to configure mail delivery.", ex );
+    }
+  }
 
   public Config getConfig()
   {
     return config;
   }
 
+  public EventStatistics getEventStatistics()
+  {
+    return eventstatistics;
+  }
+
+  public MetricsRegistry getMetrics()
+  {
+    return metrics;
+  }
+  
+  public ClusterMetrics getClusterMetrics()
+  {
+    return clustermetrics;
+  }
+  
+  public UserProfileCache getUserProfileCache()
+  {
+    return userprofilecache;
+  }
+
+  public EmailOutbox getEmailOutbox()
+  {
+    return emailoutbox;
+  }
+
+  public EmailJournal getEmailJournal()
+  {
+    return emailjournal;
+  }
+
+  public MailDelivery getMailDelivery()
+  {
+    return maildelivery;
+  }
+
+  public ExecutionMode getExecutionMode()
+  {
+    return executionmode;
+  }
+  
+  public EventIntake getEventIntake()
+  {
+    return eventintake;
+  }
+  
+  public EventProcessor getEventProcessor()
+  {
+    return eventprocessor;
+  }
+  
+  public NotificationDigester getNotificationDigester()
+  {
+    return notificationdigester;
+  }
+
+  public FileProcessWorker getFileProcessWorker()
+  {
+    return fileprocessworker;
+  }
+
 
   public void saveConfig( Config newconfig )
   {
@@ -561,10 +801,8 @@ public class WebAppCore implements ServletContextListener, StorageServerEventLis
 
   /**
    * Part of the implementation of StorageServerEventListener interface.Receives notification of events.
-   * Some events are selected for logging.
-   * Before logging the user ID string from Xythos is converted into a BB
-   * User object so information about the user who created the file can be
-   * logged.
+   * This runs on a Xythos thread so it only passes the event to the event
+   * intake which processes it on another thread.
    * 
    * @throws com.xythos.storageServer.api.VetoEventException
    * Throwing this exception vetoes the event being passed on to other listeners.
@@ -573,128 +811,25 @@ public class WebAppCore implements ServletContextListener, StorageServerEventLis
   @Override
   public void processEvent(Context cntxt, FileSystemEvent fse) throws Exception, VetoEventException
   {  
-    try
+    eventstatistics.increment( EventStatistics.Stage.RECEIVED );
+    long now = System.currentTimeMillis();
+    if ( fse instanceof FileSystemEntryCreatedEvent )
     {
-      FileSystemEntry entry;
-      logger.debug( "BlackboardBackend -              event = " + fse.getClass() );
-      if ( fse instanceof FileSystemEntryCreatedEvent )
-      {
-        FileSystemEntryCreatedEvent fsece = (FileSystemEntryCreatedEvent)fse;
-        logger.debug( "BlackboardBackend - create entry event = " + fsece.getFileSystemEntryName() );
-        logger.debug( "BlackboardBackend -           entry id = " + fsece.getEntryID()             );
-        logger.debug( "BlackboardBackend -               size = " + fsece.getSize()                );
-        entry = FileSystem.findEntryFromEntryID( fsece.getEntryID(), false, cntxt );
-      }
-      else if ( fse instanceof FileSystemEntryMovedEvent )
-      {
-        FileSystemEntryMovedEvent fseme = (FileSystemEntryMovedEvent)fse;
-        logger.debug( "BlackboardBackend -   move entry event = " + fseme.getFileSystemEntryName() );
-        logger.debug( "BlackboardBackend -                 to = " + fseme.getToName()              );
-        logger.debug( "BlackboardBackend -           entry id = " + fseme.getEntryID()             );
-        entry = FileSystem.findEntryFromEntryID( fseme.getEntryID(), false, cntxt );
-      }
-      else
-      {
-        // not an interesting class of event
-        entry = null;
-        return;
-      }
-      
-      if ( entry == null )
-      {
-        logger.debug( "File system entry with that id not found." );
-        return;
-      }
-
-      // Get information about the file entry
-      long size = entry.getEntrySize();
-      String filepath = entry.getName();          //fsece.getFileSystemEntryName();
-      String longid = entry.getCreatedByPrincipalID();
-      String shortid = longid.substring( 5 );
-      String type = entry.getFileContentType();
-      UserDbLoader userdbloader = UserDbLoader.Default.getInstance();
-      User user = userdbloader.loadById( Id.toId( User.DATA_TYPE, shortid ) );
-      String name = user.formatName( locale, BbLocale.Name.DEFAULT );
-      String un = user.getUserName();
-      
-      // Skips files not created by real users
-      if ( !longid.startsWith( "BB:U:" ) )
-        return;
-
-
-      for ( RuleConfig rule : config.getRules() )
-      {      
-        if ( !rule.isEnabled() )
-          continue;
-
-        logger.debug( "Checking Rule " + rule.name );
-        
-        // Skip files that are smaller than threshold
-        if ( size < (1024*1024*rule.getFileSize()) )
-          continue;
-
-        if ( rule.adminOnly && !un.endsWith( "admin" ) )
-          continue;
-
-        if ( !type.matches( rule.getTypeRegex() ) )
-          continue;
-
-        if ( !filepath.matches( rule.getPathRegex() ) )
-          continue;
-
-        logger.debug( "Matches Rule " + rule.name );
-
-        // Matches so take configured action...
-        if ( rule.isActionLog() )
-        {
-          logger.debug( "Type = " + type );
-          logger.debug( "Created by " + longid + "  =  " + shortid );
-          logger.debug( "User name of file creator: " + user.getUserName() );
-          logger.debug( "Email of file creator: "     + user.getEmailAddress() );
-          logger.debug( "Name of file creator: "      + name );
-          datalogger.info( 
-                  filepath + "," +
-                  (size/(1024*1024))             + "," + 
-                  user.getUserName()             + "," +
-                  user.getEmailAddress()         + "," +
-                  name                           + "," +
-                  type                                      );
-        }
-
-        if ( rule.isActionOverwrite() )
-          fileprocessworker.add( filepath, rule.getOverwritePath(), entry.getVirtualServer() );
-        
-        if ( rule.isActionEmail() )
-        {
-          // Set up information that will be useful for email.
-          Properties properties = new Properties();
-          properties.setProperty( "filename", filepath );
-          properties.setProperty( "filesize_mb", Long.toString( Math.round( (double)size / (1024.0*1024.0) ) ) );
-          properties.setProperty( "filetype", type );
-          properties.setProperty( "name", name );
-          properties.setProperty( "user_name", un );
-          properties.setProperty( "user_email", user.getEmailAddress() );
-
-          logger.info( "Sending Email." );
-          InternetAddress recipient = new InternetAddress( user.getEmailAddress() );
-          recipient.setPersonal( name );
-          sendEmail( recipient, properties, rule.getEmailSubject(), rule.getEmailBody() );
-        }
-
-        if ( !rule.isContinueRules() )
-        {
-          logger.debug( "Rule " + rule.name + " does not allow continuation." );
-          return;
-        }
-      }
-      logger.debug( "Rule checking complete." );
-      
+      FileSystemEntryCreatedEvent fsece = (FileSystemEntryCreatedEvent)fse;
+      eventintake.offer( new FileEvent( fsece.getEntryID(), FileEvent.CREATED, fsece.getFileSystemEntryName(), fsece.getSize(), now ) );
     }
-    catch ( Exception e )
+    else if ( fse instanceof FileSystemEntryMovedEvent )
+    {
+      FileSystemEntryMovedEvent fseme = (FileSystemEntryMovedEvent)fse;
+      eventintake.offer( new FileEvent( fseme.getEntryID(), FileEvent.MOVED, fseme.getToName(), -1L, now ) );
+    }
+    else
     {
-      logger.error( "Exception while handling file created event.", e );
+      // not an interesting class of event
+      eventstatistics.increment( EventStatistics.Stage.IGNORED_EVENT_TYPE );
     }
   }
+  
 
   /**
    * Part of the implementation of StorageServerEventListener interface.
@@ -707,25 +842,84 @@ public class WebAppCore implements ServletContextListener, StorageServerEventLis
   }
    
 
-  public void sendEmail( InternetAddress mainrecipient, Properties properties, String subject, String formattedbody )
+  /**
+   * Called by the notification digester to email a user about one or more 
+   * files. The placeholders of the first file are also available outside
+   * the repeating section so that bodies written for a single file still
+   * work.
+   * 
+   * @param user The user who uploaded the files.
+   * @param rule The rule which supplies the subject and body.
+   * @param rows The placeholder values for each file.
+   */
+  void sendDigest( UserProfile user, CompiledRule rule, List<Map<String,String>> rows )
   {
-    for ( String p : properties.stringPropertyNames() )
-      formattedbody = formattedbody.replace( "{"+p+"}", properties.getProperty( p ) );
-    InternetAddress[] recipients = { mainrecipient };
-    InternetAddress[] cclist     = { emailfrom     };
-    logger.info( "Sending email to " + mainrecipient );
-    logger.info( "from "    + emailfrom );
-    logger.info( "subject " + subject );
-    logger.debug( "body "    + formattedbody );
-    try    
+    HashMap<String,String> properties = new HashMap<>( rows.get( 0 ) );
+    properties.put( "filecount", Integer.toString( rows.size() ) );
+    try
     {
-      sendHtmlEmail( subject, emailfrom, null, recipients, cclist, formattedbody );
+      logger.info( "Queueing Email about " + rows.size() + " file(s)." );
+      InternetAddress recipient = new InternetAddress( user.getEmailAddress() );
+      recipient.setPersonal( user.getName() );
+      sendEmail( recipient, properties, rows, rule.getSubjectTemplate(), rule.getBodyTemplate( rows.size() > 1 ) );
     }
-    catch (MessagingException ex)
+    catch ( AddressException | UnsupportedEncodingException ex )
     {
-      logger.error( "Exception while attempting to send an email.", ex );
+      logger.error( "Unable to email " + user.getUserName() + " at " + user.getEmailAddress(), ex );
     }
   }
+  
+  /**
+   * Renders an email and puts it in the outbox. The message is sent later
+   * by one of the outbox's sender threads. Values are HTML escaped in the
+   * body but not in the subject.
+   * 
+   * @param mainrecipient
+   * @param properties Values for placeholders.
+   * @param rows Values for placeholders in the repeating section. May be null.
+   * @param subject
+   * @param body
+   */
+  public void sendEmail( InternetAddress mainrecipient, Map<String,String> properties, List<? extends Map<String,String>> rows, EmailTemplate subject, EmailTemplate body )
+  {
+    String renderedsubject = subject.render( properties, rows, false );
+    String renderedbody = body.render( properties, rows, true );
+    InternetAddress from = emailfrom;
+    logger.info( "Queueing email to " + mainrecipient );
+    logger.info( "from "    + from );
+    logger.info( "subject " + renderedsubject );
+    logger.debug( "body "    + renderedbody );
+    emailoutbox.enqueue( 
+            from == null ? null : from.getAddress(), 
+            from == null ? null : from.getPersonal(),
+            mainrecipient.getAddress(), 
+            mainrecipient.getPersonal(),
+            from == null ? null : from.getAddress(),
+            renderedsubject, 
+            renderedbody );
+  }
+
+  /**
+   * Called by an outbox sender thread to actually send a message.
+   * 
+   * @param email The message.
+   * @throws MessagingException
+   * @throws UnsupportedEncodingException 
+   */
+  void deliverEmail( OutgoingEmail email ) throws Exception
+  {
+    InternetAddress from = email.getFrom() == null ? null : new InternetAddress( email.getFrom(), email.getFromName() );
+    InternetAddress[] recipients = { new InternetAddress( email.getTo(), email.getToName() ) };
+    InternetAddress[] cclist     = email.getCc() == null ? null : new InternetAddress[] { new InternetAddress( email.getCc() ) };
+    logger.info( "Sending email to " + email.getTo() + " subject " + email.getSubject() );
+    executionmode.call( ExecutionMode.Backend.SMTP, () -> 
+    {
+      long start = System.nanoTime();
+      sendHtmlEmail( email.getSubject(), from, null, recipients, cclist, email.getBody() );
+      emailsendtime.recordNanos( System.nanoTime() - start );
+      return null;
+    } );
+  }
 
   
   /**
@@ -778,6 +972,17 @@ public class WebAppCore implements ServletContextListener, StorageServerEventLis
     WebAppCore.logToBuffer( "\n" );
   }
 
+  /**
+   * Called by the cluster metrics to send a snapshot to the other servers.
+   * @param message
+   * @throws JMSException 
+   */
+  void publishMetrics( String message ) throws JMSException
+  {
+    if ( bbcoord != null )
+      bbcoord.sendTextMessageToAll( message );
+  }
+
   @Override
   public void consumeMessage( Message msg )
   {
@@ -790,7 +995,10 @@ public class WebAppCore implements ServletContextListener, StorageServerEventLis
       if ( "reconfigure".equals( m ) )
       {
         reloadSettings();
+        userprofilecache.invalidateAll();
       }
+      else if ( m != null && m.startsWith( ClusterMetrics.MESSAGE_PREFIX ) )
+        clustermetrics.accept( m );
     }
     catch (JMSException ex)
     {
@@ -798,7 +1006,47 @@ public class WebAppCore implements ServletContextListener, StorageServerEventLis
     }
   }
 
-  MimeMessage getBbEmail()
+  /**
+   * Loads a user from the BB database. This is what fills the user profile
+   * cache.
+   * @param principalid Xythos principal ID of a BB user, e.g. BB:U:_1234_1
+   * @return The user's profile or null if the user doesn't exist.
+   * @throws PersistenceException 
+   */
+  UserProfile loadUserProfile( String principalid ) throws Exception
+  {
+    if ( principalid == null || !principalid.startsWith( "BB:U:" ) )
+      return null;
+    return executionmode.call( ExecutionMode.Backend.DATABASE, () -> loadUserProfileFromDatabase( principalid ) );
+  }
+  
+  private UserProfile loadUserProfileFromDatabase( String principalid ) throws PersistenceException
+  {
+    User user;
+    try
+    {
+      UserDbLoader userdbloader = UserDbLoader.Default.getInstance();
+      user = userdbloader.loadById( Id.toId( User.DATA_TYPE, principalid.substring( 5 ) ) );
+    }
+    catch ( KeyNotFoundException knfex )
+    {
+      return null;
+    }
+    if ( user == null )
+      return null;
+    return new UserProfile( 
+            principalid, 
+            user.getUserName(), 
+            user.getEmailAddress(), 
+            user.formatName( locale, BbLocale.Name.DEFAULT ) );
+  }
+
+  /**
+   * Work out which SMTP server BB is configured to use. Called once each
+   * time the configuration is loaded.
+   * @return Host name of SMTP server.
+   */
+  String getSmtpHost()
   {
     Properties bbprops = blackboard.platform.config.ConfigurationServiceFactory.getInstance().getBbProperties();
     String smtpHost = bbprops.getProperty("bbconfig.smtpserver.hostname");
@@ -806,12 +1054,12 @@ public class WebAppCore implements ServletContextListener, StorageServerEventLis
     if (!StringUtils.isEmpty( dBsmtpHost ) && !"0.0.0.0".equals( dBsmtpHost ) )
       smtpHost = dBsmtpHost;
     if ( logger != null ) logger.debug( "Using " + smtpHost );
-    
-    Properties mailprops = new Properties();
-    mailprops.setProperty("mail.smtp.host", smtpHost);
-    Session mailSession = Session.getDefaultInstance(mailprops);
-    
-    return new MimeMessage(mailSession);
+    return smtpHost;
+  }
+  
+  MimeMessage getBbEmail()
+  {
+    return maildelivery.createMessage();
   }
 
   public void sendHtmlEmail(
@@ -836,7 +1084,7 @@ public class WebAppCore implements ServletContextListener, StorageServerEventLis
     if ( courtesycopies != null && courtesycopies.length > 0 )
       email.setRecipients( javax.mail.Message.RecipientType.CC, courtesycopies );
     email.setContent(multipart);
-    Transport.send(email);
+    maildelivery.send(email);
   }
   
 }
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import com.xythos.common.api.VirtualServer;
+import com.xythos.security.api.Context;
+import com.xythos.storageServer.admin.api.AdminUtil;
+import com.xythos.storageServer.api.FileSystem;
+import com.xythos.storageServer.api.FileSystemEntry;
+
+/**
+ * Looks up files in Xythos. Each session is one admin context which is
+ * committed when the session is closed.
+ * 
+ * @author jon
+ */
+public class XythosFileStore implements FileStore
+{
+  final ExecutionMode executionmode;
+
+  /**
+   * @param executionmode Limits how many lookups run at once.
+   */
+  public XythosFileStore( ExecutionMode executionmode )
+  {
+    this.executionmode = executionmode;
+  }
+  
+  @Override
+  public Session open() throws Exception
+  {
+    Context cntxt = AdminUtil.getContextForAdmin( "EventIntake" );
+    if ( cntxt == null )
+      throw new Exception( "Unable to obtain Xythos context for admin." );
+    return new Session()
+    {
+      @Override
+      public FileDetails find( long entryid ) throws Exception
+      {
+        FileSystemEntry entry = executionmode.call( ExecutionMode.Backend.XYTHOS, 
+                () -> FileSystem.findEntryFromEntryID( entryid, false, cntxt ) );
+        if ( entry == null )
+          return null;
+        VirtualServer vs = entry.getVirtualServer();
+        return new FileDetails( 
+                entryid, 
+                entry.getName(), 
+                entry.getEntrySize(), 
+                entry.getFileContentType(), 
+                entry.getCreatedByPrincipalID(), 
+                vs == null ? null : vs.getName() );
+      }
+
+      @Override
+      public void close() throws Exception
+      {
+        cntxt.commitContext();
+      }
+    };
+  }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Order of events through the intake and its spill file and accounting of
+ * the number of events in memory.
+ * 
+ * @author jon
+ */
+public class EventIntakeTest
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+  
+  final Logger logger = Logger.getLogger( EventIntakeTest.class );
+  final List<Long> processed = Collections.synchronizedList( new ArrayList<>() );
+  
+  static FileEvent event( long entryid, byte kind, String name, long size )
+  {
+    return new FileEvent( entryid, kind, name, size, System.currentTimeMillis() );
+  }
+  
+  EventSpill openSpill( Path file ) throws Exception
+  {
+    EventSpill spill = new EventSpill( file );
+    spill.open();
+    return spill;
+  }
+  
+  void waitForProcessed( int n ) throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + 10000L;
+    while ( processed.size() < n && System.currentTimeMillis() < deadline )
+      Thread.sleep( 10L );
+    assertEquals( n, processed.size() );
+  }
+  
+  @Test
+  public void spilledEventsAreProcessedInOrder() throws Exception
+  {
+    CountDownLatch gate = new CountDownLatch( 1 );
+    EventIntake intake = new EventIntake( events -> {
+      try { gate.await(); } catch ( InterruptedException ex ) { Thread.currentThread().interrupt(); }
+      for ( FileEvent event : events )
+        processed.add( event.entryid );
+    }, logger );
+    intake.configure( 4, EventIntake.Policy.SPILL, 0L );
+    intake.setSpill( openSpill( folder.getRoot().toPath().resolve( "test.spill" ) ) );
+    intake.start( 1 );
+    for ( long i=0; i<100; i++ )
+      assertTrue( intake.offer( event( i, FileEvent.CREATED, "f" + i, 1L ) ) );
+    assertTrue( intake.getSpilled() > 0 );
+    assertTrue( intake.getDepth() <= 4 );
+    gate.countDown();
+    waitForProcessed( 100 );
+    for ( int i=0; i<100; i++ )
+      assertEquals( i, processed.get( i ).longValue() );
+    assertEquals( 0, intake.getDepth() );
+    assertEquals( 0, intake.getSpillCount() );
+    intake.stop();
+  }
+  
+  @Test
+  public void smallestCapacityStillDrainsSpill() throws Exception
+  {
+    CountDownLatch gate = new CountDownLatch( 1 );
+    EventIntake intake = new EventIntake( events -> {
+      try { gate.await(); } catch ( InterruptedException ex ) { Thread.currentThread().interrupt(); }
+      for ( FileEvent event : events )
+        processed.add( event.entryid );
+    }, logger );
+    intake.configure( 1, EventIntake.Policy.SPILL, 0L );
+    intake.setSpill( openSpill( folder.getRoot().toPath().resolve( "test.spill" ) ) );
+    intake.start( 1 );
+    for ( long i=0; i<20; i++ )
+      assertTrue( intake.offer( event( i, FileEvent.CREATED, "f" + i, 1L ) ) );
+    assertTrue( intake.getSpillCount() > 0 );
+    gate.countDown();
+    waitForProcessed( 20 );
+    for ( int i=0; i<20; i++ )
+      assertEquals( i, processed.get( i ).longValue() );
+    assertEquals( 0, intake.getDepth() );
+    assertEquals( 0, intake.getSpillCount() );
+    intake.stop();
+  }
+  
+  @Test
+  public void eventsForOneEntryAreMergedWithinWindow() throws Exception
+  {
+    List<FileEvent> results = Collections.synchronizedList( new ArrayList<>() );
+    EventIntake intake = new EventIntake( events -> {
+      results.addAll( events );
+      for ( FileEvent event : events )
+        processed.add( event.entryid );
+    }, logger );
+    intake.configure( 100, EventIntake.Policy.BLOCK, 0L );
+    intake.setCoalesceMillis( 300L );
+    intake.start( 2 );
+    intake.offer( event( 1L, FileEvent.CREATED, "upload.tmp", -1L ) );
+    intake.offer( event( 2L, FileEvent.CREATED, "other.mp4", 50L ) );
+    intake.offer( event( 1L, FileEvent.MOVED, "lecture.mp4", 1000L ) );
+    intake.offer( event( 1L, FileEvent.MOVED, "lecture-final.mp4", -1L ) );
+    // Held events count towards the depth until they are merged.
+    assertTrue( intake.getDepth() <= 4 );
+    waitForProcessed( 2 );
+    Thread.sleep( 400L );
+    assertEquals( 2, processed.size() );
+    assertEquals( 2L, intake.getMerged() );
+    assertEquals( 0, intake.getDepth() );
+    FileEvent one = results.get( 0 ).entryid == 1L ? results.get( 0 ) : results.get( 1 );
+    assertEquals( FileEvent.CREATED, one.kind );
+    assertEquals( "lecture-final.mp4", one.name );
+    assertEquals( 1000L, one.size );
+    intake.stop();
+  }
+  
+  @Test
+  public void heldEventsCountTowardsCapacity() throws Exception
+  {
+    EventIntake intake = new EventIntake( events -> {
+      for ( FileEvent event : events )
+        processed.add( event.entryid );
+    }, logger );
+    intake.configure( 5, EventIntake.Policy.BLOCK, 0L );
+    intake.setCoalesceMillis( 500L );
+    intake.start( 1 );
+    int accepted = 0;
+    for ( long i=0; i<10; i++ )
+      if ( intake.offer( event( i, FileEvent.CREATED, "f" + i, 1L ) ) )
+        accepted++;
+    assertEquals( 5, accepted );
+    assertEquals( 5L, intake.getShed() );
+    assertEquals( 5, intake.getDepth() );
+    // Once the window has passed they are processed and give back their places.
+    waitForProcessed( 5 );
+    assertEquals( 0, intake.getDepth() );
+    intake.stop();
+  }
+  
+  @Test
+  public void stopSavesEventsInMemoryBeforeSpilledOnes() throws Exception
+  {
+    Path file = folder.getRoot().toPath().resolve( "test.spill" );
+    EventIntake intake = new EventIntake( events -> processed.add( -1L ), logger );
+    intake.configure( 3, EventIntake.Policy.SPILL, 0L );
+    // Hold everything in memory for longer than the test.
+    intake.setCoalesceMillis( TimeUnit.HOURS.toMillis( 1 ) );
+    intake.setSpill( openSpill( file ) );
+    intake.start( 1 );
+    for ( long i=0; i<8; i++ )
+      intake.offer( event( i, FileEvent.CREATED, "f" + i, 1L ) );
+    assertEquals( 3, intake.getDepth() );
+    assertEquals( 5, intake.getSpillCount() );
+    intake.stop();
+    assertTrue( processed.isEmpty() );
+    
+    EventSpill spill = openSpill( file );
+    List<FileEvent> events = spill.read( 100 );
+    spill.close();
+    assertEquals( 8, events.size() );
+    for ( int i=0; i<8; i++ )
+      assertEquals( i, events.get( i ).entryid );
+  }
+}
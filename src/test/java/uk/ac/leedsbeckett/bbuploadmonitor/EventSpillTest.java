@@ -0,0 +1,183 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Events written to the spill file come back in order, survive a restart,
+ * a torn last event is cut off and the file is emptied or compacted as 
+ * it is read.
+ * 
+ * @author jon
+ */
+public class EventSpillTest
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+  
+  static FileEvent event( int i )
+  {
+    return new FileEvent( i, i % 2 == 0 ? FileEvent.CREATED : FileEvent.MOVED, "file" + i + ".mp4", i * 100L, 5000L + i );
+  }
+  
+  static void assertEvent( int i, FileEvent event )
+  {
+    FileEvent expected = event( i );
+    assertEquals( expected.entryid, event.entryid );
+    assertEquals( expected.kind, event.kind );
+    assertEquals( expected.name, event.name );
+    assertEquals( expected.size, event.size );
+    assertEquals( expected.received, event.received );
+  }
+  
+  EventSpill open() throws Exception
+  {
+    EventSpill spill = new EventSpill( folder.getRoot().toPath().resolve( "test.spill" ) );
+    spill.open();
+    return spill;
+  }
+  
+  @Test
+  public void readsEventsBackInOrder() throws Exception
+  {
+    EventSpill spill = open();
+    for ( int i=0; i<10; i++ )
+      spill.append( event( i ) );
+    assertEquals( 10, spill.getCount() );
+    List<FileEvent> events = spill.read( 4 );
+    assertEquals( 4, events.size() );
+    for ( int i=0; i<4; i++ )
+      assertEvent( i, events.get( i ) );
+    // Appending between reads doesn't disturb the read position.
+    spill.append( event( 10 ) );
+    events = spill.read( 100 );
+    assertEquals( 7, events.size() );
+    for ( int i=0; i<7; i++ )
+      assertEvent( i + 4, events.get( i ) );
+    assertEquals( 0, spill.getCount() );
+    assertTrue( spill.read( 100 ).isEmpty() );
+    spill.close();
+  }
+  
+  @Test
+  public void emptiesFileWhenAllRead() throws Exception
+  {
+    EventSpill spill = open();
+    for ( int i=0; i<10; i++ )
+      spill.append( event( i ) );
+    assertTrue( Files.size( spill.file ) > 0L );
+    spill.read( 100 );
+    assertEquals( 0L, Files.size( spill.file ) );
+    spill.append( event( 20 ) );
+    assertEvent( 20, spill.read( 1 ).get( 0 ) );
+    spill.close();
+  }
+  
+  @Test
+  public void unreadEventsSurviveRestart() throws Exception
+  {
+    EventSpill spill = open();
+    for ( int i=0; i<10; i++ )
+      spill.append( event( i ) );
+    spill.read( 3 );
+    spill.close();
+    
+    // The read position is not kept so the events read are read again.
+    spill = open();
+    assertEquals( 10, spill.getCount() );
+    List<FileEvent> events = spill.read( 100 );
+    for ( int i=0; i<10; i++ )
+      assertEvent( i, events.get( i ) );
+    spill.close();
+  }
+  
+  @Test
+  public void tornLastEventIsCutOff() throws Exception
+  {
+    EventSpill spill = open();
+    for ( int i=0; i<5; i++ )
+      spill.append( event( i ) );
+    spill.close();
+    long length = Files.size( spill.file );
+    try ( RandomAccessFile raf = new RandomAccessFile( spill.file.toFile(), "rw" ) )
+    {
+      raf.setLength( length - 3 );
+    }
+    
+    spill = open();
+    assertEquals( 4, spill.getCount() );
+    spill.append( event( 5 ) );
+    List<FileEvent> events = spill.read( 100 );
+    assertEquals( 5, events.size() );
+    for ( int i=0; i<4; i++ )
+      assertEvent( i, events.get( i ) );
+    assertEvent( 5, events.get( 4 ) );
+    spill.close();
+  }
+  
+  @Test
+  public void compactsOnceEnoughIsRead() throws Exception
+  {
+    EventSpill spill = open();
+    spill.compactbytes = 1000L;
+    for ( int i=0; i<200; i++ )
+      spill.append( event( i ) );
+    long full = Files.size( spill.file );
+    spill.read( 50 );
+    assertEquals( 0L, spill.compactions );
+    spill.read( 60 );
+    assertEquals( 1L, spill.compactions );
+    assertTrue( Files.size( spill.file ) < full / 2 );
+    for ( int i=200; i<210; i++ )
+      spill.append( event( i ) );
+    assertEquals( 100, spill.getCount() );
+    List<FileEvent> events = spill.read( 1000 );
+    assertEquals( 100, events.size() );
+    for ( int i=0; i<100; i++ )
+      assertEvent( i + 110, events.get( i ) );
+    spill.close();
+    assertFalse( Files.exists( spill.tempfile ) );
+  }
+  
+  @Test
+  public void appendDoesNotWaitForRead() throws Exception
+  {
+    EventSpill spill = open();
+    spill.append( event( 0 ) );
+    synchronized ( spill.readlock )
+    {
+      // A reader holding its lock doesn't stop the listener appending.
+      Thread t = new Thread( () -> {
+        try { spill.append( event( 1 ) ); } catch ( Exception ex ) { throw new RuntimeException( ex ); }
+      } );
+      t.start();
+      t.join( 5000L );
+      assertFalse( t.isAlive() );
+    }
+    assertEquals( 2, spill.read( 10 ).size() );
+    spill.close();
+  }
+}
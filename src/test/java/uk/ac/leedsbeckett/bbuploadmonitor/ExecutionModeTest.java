@@ -0,0 +1,73 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Changing a backend limit while work holds permits never lets more work
+ * run than the new limit allows.
+ *
+ * @author jon
+ */
+public class ExecutionModeTest
+{
+  @Test
+  public void loweringLimitCountsWorkInProgress() throws Exception
+  {
+    ExecutionMode mode = new ExecutionMode();
+    mode.configure( false, 2, 1, 1 );
+    CountDownLatch running = new CountDownLatch( 2 );
+    CountDownLatch finish = new CountDownLatch( 1 );
+    Thread[] threads = new Thread[2];
+    for ( int i=0; i<threads.length; i++ )
+    {
+      threads[i] = new Thread( () -> {
+        try
+        {
+          mode.call( ExecutionMode.Backend.XYTHOS, () -> { running.countDown(); finish.await(); return null; } );
+        }
+        catch ( Exception ex )
+        {
+          // Checked by the assertions below.
+        }
+      } );
+      threads[i].start();
+    }
+    assertTrue( running.await( 5, TimeUnit.SECONDS ) );
+
+    // Two are running so after lowering the limit to one nothing more can start.
+    mode.configure( false, 1, 1, 1 );
+    assertEquals( 1, mode.getLimit( ExecutionMode.Backend.XYTHOS ) );
+    assertEquals( 2, mode.getInUse( ExecutionMode.Backend.XYTHOS ) );
+    assertFalse( mode.permits[ExecutionMode.Backend.XYTHOS.ordinal()].tryAcquire() );
+
+    finish.countDown();
+    for ( Thread t : threads )
+      t.join( 5000L );
+    assertEquals( 0, mode.getInUse( ExecutionMode.Backend.XYTHOS ) );
+    assertEquals( "ok", mode.call( ExecutionMode.Backend.XYTHOS, () -> "ok" ) );
+
+    // Raising it again gives back the permits straight away.
+    mode.configure( false, 3, 1, 1 );
+    assertEquals( 0, mode.getInUse( ExecutionMode.Backend.XYTHOS ) );
+    assertTrue( mode.permits[ExecutionMode.Backend.XYTHOS.ordinal()].tryAcquire( 3 ) );
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Replay, recovery from a torn write and compaction of the overwrite
+ * journal, which exercise everything in Journal.
+ * 
+ * @author jon
+ */
+public class JournalTest
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+  
+  final Logger logger = Logger.getLogger( JournalTest.class );
+  
+  OverwriteJournal open( Path file ) throws Exception
+  {
+    // A long interval so only explicit syncs write to the file.
+    OverwriteJournal journal = new OverwriteJournal( file, 60000L, logger );
+    journal.open();
+    return journal;
+  }
+  
+  static OverwriteTask task( int i )
+  {
+    return new OverwriteTask( "entry" + i, "/courses/C" + i + "/file.mp4", "/institution/placeholder.mp4", "vs", "BB:U:_" + i + "_1", 1000L + i, 2000L + i, i * 1024L );
+  }
+  
+  @Test
+  public void replaysUnfinishedTasksInOrder() throws Exception
+  {
+    Path file = folder.getRoot().toPath().resolve( "test.journal" );
+    OverwriteJournal journal = open( file );
+    List<OverwriteTask> tasks = new ArrayList<>();
+    for ( int i=0; i<5; i++ )
+    {
+      tasks.add( task( i ) );
+      journal.recordAdded( tasks.get( i ) );
+    }
+    journal.recordDone( tasks.get( 1 ) );
+    journal.recordDone( tasks.get( 3 ) );
+    journal.close();
+    
+    journal = open( file );
+    List<OverwriteTask> pending = journal.getPending();
+    assertEquals( 3, pending.size() );
+    assertEquals( "entry0", pending.get( 0 ).entryid );
+    assertEquals( "entry2", pending.get( 1 ).entryid );
+    assertEquals( "entry4", pending.get( 2 ).entryid );
+    assertEquals( 4 * 1024L, pending.get( 2 ).size );
+    assertEquals( 2004L, pending.get( 2 ).readyat );
+    journal.close();
+  }
+  
+  @Test
+  public void discardsTornRecordAndCarriesOn() throws Exception
+  {
+    Path file = folder.getRoot().toPath().resolve( "test.journal" );
+    OverwriteJournal journal = open( file );
+    for ( int i=0; i<3; i++ )
+      journal.recordAdded( task( i ) );
+    journal.close();
+    
+    // Lose the end of the last record as if the server stopped part way.
+    long length = Files.size( file );
+    try ( RandomAccessFile raf = new RandomAccessFile( file.toFile(), "rw" ) )
+    {
+      raf.setLength( length - 3 );
+    }
+    
+    journal = open( file );
+    assertEquals( 2, journal.getPending().size() );
+    assertTrue( Files.size( file ) < length - 3 );
+    journal.recordAdded( task( 9 ) );
+    journal.close();
+    
+    journal = open( file );
+    List<OverwriteTask> pending = journal.getPending();
+    assertEquals( 3, pending.size() );
+    assertEquals( "entry9", pending.get( 2 ).entryid );
+    journal.close();
+  }
+  
+  @Test
+  public void compactsToLiveRecords() throws Exception
+  {
+    Path file = folder.getRoot().toPath().resolve( "test.journal" );
+    OverwriteJournal journal = open( file );
+    List<OverwriteTask> tasks = new ArrayList<>();
+    for ( int i=0; i<2000; i++ )
+    {
+      tasks.add( task( i ) );
+      journal.recordAdded( tasks.get( i ) );
+    }
+    for ( int i=0; i<1900; i++ )
+      journal.recordDone( tasks.get( i ) );
+    journal.sync();
+    long before = Files.size( file );
+    assertTrue( journal.compactwanted );
+    
+    journal.compact();
+    assertFalse( journal.compactwanted );
+    assertEquals( 100L, journal.getRecordCount() );
+    assertTrue( Files.size( file ) < before / 10 );
+    
+    // Records added after compaction go to the new file.
+    journal.recordAdded( task( 5000 ) );
+    journal.recordDone( tasks.get( 1950 ) );
+    journal.close();
+    
+    journal = open( file );
+    List<OverwriteTask> pending = journal.getPending();
+    assertEquals( 100, pending.size() );
+    assertEquals( "entry1900", pending.get( 0 ).entryid );
+    assertEquals( "entry5000", pending.get( 99 ).entryid );
+    journal.close();
+  }
+  
+  @Test
+  public void addingDuringCompactionIsKept() throws Exception
+  {
+    Path file = folder.getRoot().toPath().resolve( "test.journal" );
+    // Live records are copied while compacting so a record added then 
+    // must end up in the new file.
+    OverwriteJournal journal = new OverwriteJournal( file, 60000L, logger )
+    {
+      @Override
+      protected void writeLiveRecords() throws java.io.IOException
+      {
+        super.writeLiveRecords();
+        CompletableFuture.runAsync( () -> 
+        {
+          try
+          {
+            recordAdded( task( 7777 ) );
+          }
+          catch ( Exception ex )
+          {
+            throw new RuntimeException( ex );
+          }
+        } );
+      }
+    };
+    journal.open();
+    journal.recordAdded( task( 1 ) );
+    journal.compact();
+    // Wait for the record added during compaction.
+    long end = System.currentTimeMillis() + 5000L;
+    while ( journal.getPending().size() < 2 && System.currentTimeMillis() < end )
+      Thread.sleep( 10L );
+    journal.close();
+    
+    journal = open( file );
+    List<OverwriteTask> pending = journal.getPending();
+    assertEquals( 2, pending.size() );
+    assertEquals( "entry7777", pending.get( 1 ).entryid );
+    journal.close();
+  }
+  
+  @Test
+  public void addingDoesNotWaitForTheDisk() throws Exception
+  {
+    Path file = folder.getRoot().toPath().resolve( "test.journal" );
+    OverwriteJournal journal = open( file );
+    // Hold the file as a slow sync would.
+    synchronized ( journal.iolock )
+    {
+      CompletableFuture<Void> added = CompletableFuture.runAsync( () -> 
+      {
+        try
+        {
+          journal.recordAdded( task( 1 ) );
+        }
+        catch ( Exception ex )
+        {
+          throw new RuntimeException( ex );
+        }
+      } );
+      added.get( 5, TimeUnit.SECONDS );
+    }
+    journal.close();
+    assertEquals( 1, open( file ).getPending().size() );
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Files matching different rules for one user go in separate digests with
+ * their own rule's wording and daily limit.
+ *
+ * @author jon
+ */
+public class NotificationDigesterTest
+{
+  final ArrayList<CompiledRule> sentrules = new ArrayList<>();
+  final ArrayList<List<Map<String,String>>> sentrows = new ArrayList<>();
+  final UserProfile user = new UserProfile( "BB:U:_1234_1", "c123", "c123@example.ac.uk", "Jo Bloggs" );
+  CompiledRule videos;
+  CompiledRule archives;
+  NotificationDigester digester;
+
+  static CompiledRule rule( String name, String body )
+  {
+    RuleConfig config = new RuleConfig();
+    config.setEnabled( true );
+    config.setName( name );
+    config.setEmailSubject( name );
+    config.setEmailBody( body );
+    return new CompiledRule( config, new MetricsRegistry() );
+  }
+
+  static Map<String,String> row( String filename )
+  {
+    return Collections.singletonMap( "filename", filename );
+  }
+
+  @Before
+  public void setUp()
+  {
+    videos = rule( "Huge videos", "<html><body><p>Your videos are large.</p></body></html>" );
+    archives = rule( "Large archives", "Your archives are large." );
+    digester = new NotificationDigester( ( u, r, rows ) ->
+    {
+      synchronized ( sentrules )
+      {
+        sentrules.add( r );
+        sentrows.add( rows );
+      }
+    }, Logger.getLogger( NotificationDigesterTest.class ) );
+  }
+
+  @After
+  public void tearDown()
+  {
+    digester.stop();
+  }
+
+  @Test
+  public void rulesForOneUserHaveSeparateDigests()
+  {
+    digester.configure( 60000L, 0 );
+    digester.start();
+    digester.add( user, videos, row( "lecture.mp4" ) );
+    digester.add( user, archives, row( "data.zip" ) );
+    digester.add( user, videos, row( "seminar.mp4" ) );
+    assertEquals( 2, digester.getPendingDigests() );
+
+    digester.stop();
+    assertEquals( 2, sentrules.size() );
+    int v = sentrules.indexOf( videos );
+    int a = sentrules.indexOf( archives );
+    assertTrue( v >= 0 && a >= 0 );
+    assertEquals( 2, sentrows.get( v ).size() );
+    assertEquals( "lecture.mp4", sentrows.get( v ).get( 0 ).get( "filename" ) );
+    assertEquals( "seminar.mp4", sentrows.get( v ).get( 1 ).get( "filename" ) );
+    assertEquals( 1, sentrows.get( a ).size() );
+    assertEquals( "data.zip", sentrows.get( a ).get( 0 ).get( "filename" ) );
+  }
+
+  @Test
+  public void dailyLimitIsPerRule()
+  {
+    digester.configure( 0L, 1 );
+    digester.add( user, videos, row( "lecture.mp4" ) );
+    digester.add( user, videos, row( "seminar.mp4" ) );
+    digester.add( user, archives, row( "data.zip" ) );
+    assertEquals( 2, sentrules.size() );
+    assertSame( videos, sentrules.get( 0 ) );
+    assertSame( archives, sentrules.get( 1 ) );
+    assertEquals( 1L, digester.getSuppressed() );
+  }
+
+  @Test
+  public void fileListGoesInsideHtmlBody()
+  {
+    String html = videos.getBodyTemplate( true ).render( Collections.emptyMap(),
+            Collections.singletonList( row( "lecture.mp4" ) ), true );
+    assertTrue( html, html.endsWith( "lecture.mp4 ({filesize_mb}MB)</li></ul></body></html>" ) );
+    String text = archives.getBodyTemplate( true ).render( Collections.emptyMap(),
+            Collections.singletonList( row( "data.zip" ) ), true );
+    assertTrue( text, text.startsWith( "Your archives are large.<ul>" ) );
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.nio.file.Path;
+import java.util.List;
+import org.apache.log4j.Logger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Overwrite tasks are journaled from the moment the journal is opened,
+ * before any worker starts, and come back after a restart.
+ *
+ * @author jon
+ */
+public class OverwriteBacklogTest
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  final Logger logger = Logger.getLogger( OverwriteBacklogTest.class );
+
+  @Test
+  public void taskAddedBeforeWorkersStartSurvivesRestart() throws Exception
+  {
+    Path file = folder.getRoot().toPath().resolve( "overwrite.journal" );
+    OverwriteBacklog backlog = new OverwriteBacklog( new OverwriteScheduler(), logger );
+    backlog.openJournal( file );
+    backlog.add( "entry1", "/courses/C1/lecture.mp4", "/institution/placeholder.mp4", "vs", "BB:U:_1_1", 1000L );
+    backlog.closeJournal();
+
+    OverwriteScheduler scheduler = new OverwriteScheduler();
+    backlog = new OverwriteBacklog( scheduler, logger );
+    backlog.openJournal( file );
+    assertEquals( 1, scheduler.getQueueLength() );
+    List<OverwriteTask> pending = backlog.getJournal().getPending();
+    assertEquals( 1, pending.size() );
+    assertEquals( "entry1", pending.get( 0 ).entryid );
+    assertEquals( "/courses/C1/lecture.mp4", pending.get( 0 ).targetpath );
+    backlog.closeJournal();
+  }
+
+  @Test
+  public void newerTaskForSameEntryIsRestored() throws Exception
+  {
+    Path file = folder.getRoot().toPath().resolve( "overwrite.journal" );
+    OverwriteBacklog backlog = new OverwriteBacklog( new OverwriteScheduler(), logger );
+    backlog.openJournal( file );
+    backlog.add( "entry1", "/courses/C1/upload.tmp", "/institution/placeholder.mp4", "vs", "BB:U:_1_1", 1000L );
+    backlog.add( "entry1", "/courses/C1/lecture.mp4", "/institution/placeholder.mp4", "vs", "BB:U:_1_1", 1000L );
+    backlog.closeJournal();
+
+    OverwriteScheduler scheduler = new OverwriteScheduler();
+    backlog = new OverwriteBacklog( scheduler, logger );
+    backlog.openJournal( file );
+    assertEquals( 1, scheduler.getQueueLength() );
+    List<OverwriteTask> pending = backlog.getJournal().getPending();
+    assertEquals( 1, pending.size() );
+    assertEquals( "/courses/C1/lecture.mp4", pending.get( 0 ).targetpath );
+    backlog.closeJournal();
+  }
+
+  @Test
+  public void finishedTaskIsNotRestored() throws Exception
+  {
+    Path file = folder.getRoot().toPath().resolve( "overwrite.journal" );
+    OverwriteScheduler scheduler = new OverwriteScheduler();
+    OverwriteBacklog backlog = new OverwriteBacklog( scheduler, logger );
+    backlog.openJournal( file );
+    backlog.add( "entry1", "/courses/C1/lecture.mp4", "/institution/placeholder.mp4", "vs", "BB:U:_1_1", 1000L );
+    OverwriteTask task = backlog.getJournal().getPending().get( 0 );
+    backlog.finish( task, true );
+    backlog.closeJournal();
+
+    scheduler = new OverwriteScheduler();
+    backlog = new OverwriteBacklog( scheduler, logger );
+    backlog.openJournal( file );
+    assertEquals( 0, scheduler.getQueueLength() );
+    backlog.closeJournal();
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Order in which the scheduler hands out ready tasks, replacement of a 
+ * waiting task for the same entry and the count of pending bytes.
+ * 
+ * @author jon
+ */
+public class OverwriteSchedulerTest
+{
+  static final long MB = 1024L * 1024L;
+
+  /**
+   * A task that became ready the given number of minutes before the
+   * scheduler was created.
+   */
+  static OverwriteTask task( OverwriteScheduler scheduler, String entryid, String owner, long minutesago, long size )
+  {
+    long readyat = scheduler.epoch - minutesago * 60000L;
+    return new OverwriteTask( entryid, "/courses/" + entryid, "/institution/placeholder.mp4", "vs", owner, readyat, readyat, size );
+  }
+  
+  /**
+   * Take tasks one at a time, completing each, and list their entry IDs.
+   */
+  static List<String> drain( OverwriteScheduler scheduler, int count ) throws InterruptedException
+  {
+    List<String> order = new ArrayList<>();
+    for ( int i=0; i<count; i++ )
+    {
+      List<OverwriteTask> batch = scheduler.nextBatch( 1 );
+      assertEquals( 1, batch.size() );
+      order.add( batch.get( 0 ).entryid );
+      scheduler.complete( batch.get( 0 ), true );
+      scheduler.endBatch( batch );
+    }
+    return order;
+  }
+  
+  @Test
+  public void servesUsersInTurn() throws Exception
+  {
+    OverwriteScheduler scheduler = new OverwriteScheduler();
+    scheduler.add( task( scheduler, "a1", "alice", 10, MB ) );
+    scheduler.add( task( scheduler, "a2", "alice", 9, MB ) );
+    scheduler.add( task( scheduler, "a3", "alice", 8, MB ) );
+    scheduler.add( task( scheduler, "b1", "bob", 7, MB ) );
+    scheduler.add( task( scheduler, "c1", "carol", 6, MB ) );
+    assertEquals( "[a1, b1, c1, a2, a3]", drain( scheduler, 5 ).toString() );
+  }
+  
+  @Test
+  public void largestFirstWithoutAging() throws Exception
+  {
+    OverwriteScheduler scheduler = new OverwriteScheduler();
+    scheduler.setOrder( true, 0 );
+    scheduler.add( task( scheduler, "small", "alice", 60, 1 * MB ) );
+    scheduler.add( task( scheduler, "large", "bob", 1, 50 * MB ) );
+    scheduler.add( task( scheduler, "medium", "carol", 30, 10 * MB ) );
+    assertEquals( "[large, medium, small]", drain( scheduler, 3 ).toString() );
+  }
+  
+  @Test
+  public void agingLetsOldSmallTasksOvertake() throws Exception
+  {
+    OverwriteScheduler scheduler = new OverwriteScheduler();
+    // 10MB waiting 20 minutes is worth 30MB, 15MB waiting 1 minute is 16MB.
+    scheduler.setOrder( true, 1 );
+    scheduler.add( task( scheduler, "old", "alice", 20, 10 * MB ) );
+    scheduler.add( task( scheduler, "new", "bob", 1, 15 * MB ) );
+    assertEquals( "[old, new]", drain( scheduler, 2 ).toString() );
+  }
+  
+  @Test
+  public void changingOrderReordersReadyTasks() throws Exception
+  {
+    OverwriteScheduler scheduler = new OverwriteScheduler();
+    scheduler.add( task( scheduler, "first", "alice", 10, MB ) );
+    scheduler.add( task( scheduler, "small", "bob", 5, MB ) );
+    scheduler.add( task( scheduler, "large", "carol", 3, 100 * MB ) );
+    // Taking the first makes the others ready in the per user queues.
+    assertEquals( "[first]", drain( scheduler, 1 ).toString() );
+    scheduler.setOrder( true, 0 );
+    assertEquals( "[large, small]", drain( scheduler, 2 ).toString() );
+  }
+  
+  @Test
+  public void newTaskReplacesWaitingTaskForSameEntry() throws Exception
+  {
+    OverwriteScheduler scheduler = new OverwriteScheduler();
+    OverwriteTask first = task( scheduler, "e1", "alice", 10, 5 * MB );
+    assertNull( scheduler.add( first ) );
+    assertEquals( 5 * MB, scheduler.pendingbytes );
+    OverwriteTask second = task( scheduler, "e1", "alice", 5, 7 * MB );
+    assertSame( first, scheduler.add( second ) );
+    assertEquals( 7 * MB, scheduler.pendingbytes );
+    
+    List<OverwriteTask> batch = scheduler.nextBatch( 10 );
+    assertEquals( 1, batch.size() );
+    assertSame( second, batch.get( 0 ) );
+    scheduler.complete( second, true );
+    scheduler.endBatch( batch );
+    assertEquals( 0L, scheduler.pendingbytes );
+  }
+  
+  @Test
+  public void requeuedTaskIsHandedOutAgain() throws Exception
+  {
+    OverwriteScheduler scheduler = new OverwriteScheduler();
+    OverwriteTask task = task( scheduler, "e1", "alice", 10, MB );
+    scheduler.add( task );
+    List<OverwriteTask> batch = scheduler.nextBatch( 10 );
+    assertTrue( scheduler.requeue( task, System.currentTimeMillis() ) );
+    scheduler.endBatch( batch );
+    assertEquals( MB, scheduler.pendingbytes );
+    assertEquals( "[e1]", drain( scheduler, 1 ).toString() );
+    assertEquals( 0L, scheduler.pendingbytes );
+  }
+  
+  @Test
+  public void requeuedTaskWaitsForRetryTime() throws Exception
+  {
+    OverwriteScheduler scheduler = new OverwriteScheduler();
+    OverwriteTask task = task( scheduler, "e1", "alice", 10, MB );
+    scheduler.add( task );
+    List<OverwriteTask> batch = scheduler.nextBatch( 10 );
+    assertTrue( scheduler.requeue( task, System.currentTimeMillis() + 60000L ) );
+    scheduler.endBatch( batch );
+    assertEquals( 1, scheduler.getQueueLength() );
+    assertEquals( 0, scheduler.getReadyCount() );
+    assertTrue( scheduler.getMillisToNext() > 50000L );
+  }
+  
+  @Test
+  public void requeuedTaskGivesWayToNewerOne() throws Exception
+  {
+    OverwriteScheduler scheduler = new OverwriteScheduler();
+    OverwriteTask task = task( scheduler, "e1", "alice", 10, MB );
+    scheduler.add( task );
+    List<OverwriteTask> batch = scheduler.nextBatch( 10 );
+    scheduler.add( task( scheduler, "e1", "alice", 5, 2 * MB ) );
+    assertFalse( scheduler.requeue( task, System.currentTimeMillis() ) );
+    scheduler.endBatch( batch );
+    assertEquals( 2 * MB, scheduler.pendingbytes );
+  }
+}
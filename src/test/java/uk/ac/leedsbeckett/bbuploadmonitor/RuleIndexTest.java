@@ -0,0 +1,156 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * The rule index must never leave out a rule that would match a file, 
+ * whatever the rules' regular expressions look like. Random rule sets are
+ * checked against trying every rule in turn.
+ * 
+ * @author jon
+ */
+public class RuleIndexTest
+{
+  static final long MB = CompiledRule.BYTES_PER_MB;
+  
+  static final String[] TYPE_REGEXES = 
+  {
+    "video/.*", "video/mp4", "(?i)VIDEO/.*", "application/(zip|pdf)", "image/.*|video/.*", 
+    "", ".*", "audio/mpe?g", "application/vnd\\.ms-.*", "text/plain", "^image/png$", 
+    "vid[e]o/.*", "video/mp4?", "video/x{0,1}mp4", "\\Qtext/plain\\E", "v.*", "(?i)text/.*"
+  };
+  static final String[] TYPES = 
+  {
+    "video/mp4", "VIDEO/MP4", "video/mp", "application/zip", "application/pdf", "image/png", 
+    "", "audio/mpg", "audio/mpeg", "application/vnd.ms-excel", "text/plain", "Video/quicktime",
+    "video/xmp4", "TEXT/HTML"
+  };
+  static final String[] PATH_REGEXES = 
+  {
+    "/courses/.*", "/courses/ABC.*", "(?i)/COURSES/.*", "/institution/.*|/users/.*", "", ".*", 
+    "/users/c\\d+/.*", "/courses/A+B.*", "/internal/courses/.*", "/courses/[A-Z]{3}.*", 
+    "/c.urses/.*", "/courses/ABC123_2223/Week 1/lecture\\.mp4", "^/courses/AB?C.*", 
+    "/courses/(?i)abc.*", "/courses/AB*C.*"
+  };
+  static final String[] PATHS = 
+  {
+    "/courses/ABC123_2223/Week 1/lecture.mp4", "/COURSES/abc/x.mp4", "/courses/AAB/x", 
+    "/courses/B/x", "/institution/a.jpg", "/users/c123/My Content/n.pdf", "", 
+    "/internal/courses/D/r.mov", "/cXurses/x", "/courses/AC/y", "/courses/abc/z", 
+    "/courses/ABBBC/w"
+  };
+  
+  static CompiledRule rule( int n, int mb, String typeregex, String pathregex )
+  {
+    RuleConfig rule = new RuleConfig();
+    rule.setN( n );
+    rule.setEnabled( true );
+    rule.setName( "Rule " + n );
+    rule.setFileSize( mb );
+    rule.setTypeRegex( typeregex );
+    rule.setPathRegex( pathregex );
+    rule.setEmailSubject( "" );
+    rule.setEmailBody( "" );
+    return new CompiledRule( rule, new MetricsRegistry() );
+  }
+  
+  static BitSet linear( List<CompiledRule> rules, long size, String type, String path )
+  {
+    BitSet matched = new BitSet();
+    for ( int r=0; r<rules.size(); r++ )
+      if ( rules.get( r ).matchesFile( size, type, path ) )
+        matched.set( r );
+    return matched;
+  }
+  
+  static BitSet indexed( RuleIndex index, List<CompiledRule> rules, long size, String type, String path )
+  {
+    BitSet matched = new BitSet();
+    BitSet candidates = index.candidates( size, type, path );
+    for ( int r = candidates.nextSetBit( 0 ); r >= 0; r = candidates.nextSetBit( r+1 ) )
+      if ( rules.get( r ).matchesFile( size, type, path ) )
+        matched.set( r );
+    return matched;
+  }
+  
+  @Test
+  public void sameMatchesAsLinearScan()
+  {
+    Random random = new Random( 25L );
+    int[] counts = { 1, 5, 8, 9, 20, 50, 200 };
+    long files = 0L;
+    long matches = 0L;
+    for ( int count : counts )
+    {
+      for ( int set=0; set<20; set++ )
+      {
+        List<CompiledRule> rules = new ArrayList<>();
+        for ( int n=0; n<count; n++ )
+          rules.add( rule( n, 100 * random.nextInt( 6 ), 
+                           TYPE_REGEXES[random.nextInt( TYPE_REGEXES.length )], 
+                           PATH_REGEXES[random.nextInt( PATH_REGEXES.length )] ) );
+        RuleIndex index = new RuleIndex( rules );
+        for ( int f=0; f<500; f++ )
+        {
+          // Sizes either side of the thresholds as well as on them.
+          long size = 100L * random.nextInt( 7 ) * MB + random.nextInt( 3 ) - 1L;
+          String type = TYPES[random.nextInt( TYPES.length )];
+          String path = PATHS[random.nextInt( PATHS.length )];
+          BitSet expected = linear( rules, size, type, path );
+          assertEquals( count + " rules, size " + size + ", " + type + ", " + path, 
+                        expected, indexed( index, rules, size, type, path ) );
+          files++;
+          matches += expected.cardinality();
+        }
+      }
+    }
+    // Make sure the random files really did match rules.
+    assertTrue( matches > files / 10 );
+  }
+  
+  @Test
+  public void noRulesNoCandidates()
+  {
+    RuleIndex index = new RuleIndex( new ArrayList<>() );
+    assertTrue( index.candidates( 1000L * MB, "video/mp4", "/courses/x" ).isEmpty() );
+  }
+  
+  @Test
+  public void literalPrefixes()
+  {
+    assertEquals( "video/",    RuleIndex.literalPrefix( "video/.*" ) );
+    assertEquals( "video/",    RuleIndex.literalPrefix( "^video/.*" ) );
+    assertEquals( "video/mp",  RuleIndex.literalPrefix( "video/mp4?" ) );
+    assertEquals( "video/",    RuleIndex.literalPrefix( "video/x*mp4" ) );
+    assertEquals( "video/",    RuleIndex.literalPrefix( "video/x{0,1}mp4" ) );
+    assertEquals( "video/x",   RuleIndex.literalPrefix( "video/x+" ) );
+    assertEquals( "",          RuleIndex.literalPrefix( "(?i)video/.*" ) );
+    assertEquals( "",          RuleIndex.literalPrefix( "image/.*|video/.*" ) );
+    assertEquals( "",          RuleIndex.literalPrefix( "\\Qtext/plain\\E" ) );
+    assertEquals( "",          RuleIndex.literalPrefix( "" ) );
+    assertEquals( "",          RuleIndex.literalPrefix( null ) );
+    assertEquals( "/courses/", RuleIndex.literalPrefix( "/courses/[A-Z]{3}.*" ) );
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.ac.leedsbeckett.bbuploadmonitor;
+
+import org.apache.log4j.Logger;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Taking apart bigfiles log lines, including paths and names with commas
+ * in them, and what the simulation counts for each line.
+ * 
+ * @author jon
+ */
+public class RuleSimulatorTest
+{
+  static final String DATE = "2022-10-01 12:34:56,789";
+  static final long MB = CompiledRule.BYTES_PER_MB;
+  
+  CompiledRuleSet ruleset;
+  RuleSimulator.Result result;
+  
+  static RuleConfig addRule( Config config, String name, int mb, String typeregex, String pathregex, boolean shadow )
+  {
+    RuleConfig rule = new RuleConfig();
+    rule.setN( config.getRules().size() );
+    config.getRules().add( rule );
+    rule.setEnabled( true );
+    rule.setName( name );
+    rule.setFileSize( mb );
+    rule.setTypeRegex( typeregex );
+    rule.setPathRegex( pathregex );
+    rule.setActionLog( true );
+    rule.setActionEmail( true );
+    rule.setActionOverwrite( true );
+    rule.setOverwritePath( "/institution/placeholder.mp4" );
+    rule.setShadow( shadow );
+    return rule;
+  }
+  
+  @Before
+  public void setUp()
+  {
+    Config config = new Config();
+    addRule( config, "Videos", 500, "video/.*", "/courses/.*", false );
+    addRule( config, "Videos trial", 100, "video/.*", "/courses/.*", true );
+    ruleset = CompiledRuleSet.compile( config, Logger.getLogger( RuleSimulatorTest.class ), new MetricsRegistry() );
+    result = new RuleSimulator.Result( RuleSimulator.allRules( ruleset ) );
+  }
+  
+  static String line( String path, long mb, String username, String name, String type )
+  {
+    return DATE + "," + path + "," + mb + "," + username + "," + username + "@example.ac.uk," + name + "," + type;
+  }
+  
+  @Test
+  public void matchingLineIsCounted()
+  {
+    assertTrue( RuleSimulator.simulateLine( ruleset, line( "/courses/C1/Week 1/lecture.mp4", 800, "c123", "Jo Bloggs", "video/mp4" ), result ) );
+    assertEquals( 1L, result.getFilesMatched() );
+    assertEquals( 1L, result.getEmails() );
+    assertEquals( 1L, result.getOverwrites() );
+    assertEquals( 800L * MB, result.getBytesReclaimed() );
+    assertEquals( 1L, result.getRuleMatches( 0 ) );
+    assertEquals( 1L, result.getRuleMatches( 1 ) );
+    assertEquals( "c123", result.getTopUsers( 1 ).get( 0 ).getUserName() );
+    assertEquals( 800L * MB, result.getTopUsers( 1 ).get( 0 ).getBytes() );
+  }
+  
+  @Test
+  public void commasInPathAndNameAreKept()
+  {
+    // The rule's pattern only matches if the whole path was found.
+    Config config = new Config();
+    addRule( config, "Exact", 500, "video/mp4", "/courses/C1/Intro, part one\\.mp4", false );
+    ruleset = CompiledRuleSet.compile( config, Logger.getLogger( RuleSimulatorTest.class ), new MetricsRegistry() );
+    result = new RuleSimulator.Result( RuleSimulator.allRules( ruleset ) );
+    assertTrue( RuleSimulator.simulateLine( ruleset, line( "/courses/C1/Intro, part one.mp4", 600, "c9", "Bloggs, Jo", "video/mp4" ), result ) );
+    assertEquals( 1L, result.getRuleMatches( 0 ) );
+    assertEquals( 600L * MB, result.getRuleBytes( 0 ) );
+    assertEquals( "c9", result.getTopUsers( 1 ).get( 0 ).getUserName() );
+  }
+  
+  @Test
+  public void shadowMatchesAreNotInTotals()
+  {
+    assertTrue( RuleSimulator.simulateLine( ruleset, line( "/courses/C1/clip.mp4", 200, "c1", "A", "video/mp4" ), result ) );
+    assertEquals( 0L, result.getRuleMatches( 0 ) );
+    assertEquals( 1L, result.getRuleMatches( 1 ) );
+    assertEquals( 0L, result.getFilesMatched() );
+    assertEquals( 0L, result.getEmails() );
+    assertEquals( 0, result.getUserCount() );
+  }
+  
+  @Test
+  public void smallOrOtherFilesMatchNothing()
+  {
+    assertTrue( RuleSimulator.simulateLine( ruleset, line( "/courses/C1/clip.mp4", 50, "c1", "A", "video/mp4" ), result ) );
+    assertTrue( RuleSimulator.simulateLine( ruleset, line( "/courses/C1/notes.pdf", 900, "c1", "A", "application/pdf" ), result ) );
+    assertTrue( RuleSimulator.simulateLine( ruleset, line( "/users/c1/clip.mp4", 900, "c1", "A", "video/mp4" ), result ) );
+    assertEquals( 0L, result.getRuleMatches( 0 ) );
+    assertEquals( 0L, result.getRuleMatches( 1 ) );
+    assertEquals( 0L, result.getFilesMatched() );
+  }
+  
+  @Test
+  public void badLinesAreRejected()
+  {
+    assertFalse( RuleSimulator.simulateLine( ruleset, "", result ) );
+    assertFalse( RuleSimulator.simulateLine( ruleset, DATE, result ) );
+    assertFalse( RuleSimulator.simulateLine( ruleset, "2022-10-01 12:34:56 /courses/C1/a.mp4,800,c1,e,n,video/mp4", result ) );
+    assertFalse( RuleSimulator.simulateLine( ruleset, DATE + ",/courses/C1/a.mp4", result ) );
+    // No whole number for the size.
+    assertFalse( RuleSimulator.simulateLine( ruleset, line( "/courses/C1/a.mp4", 800, "c1", "A", "video/mp4" ).replace( ",800,", ",8x0," ), result ) );
+    // Too few fields after the size.
+    assertFalse( RuleSimulator.simulateLine( ruleset, DATE + ",/courses/C1/a.mp4,800,c1,video/mp4", result ) );
+    assertEquals( 0L, result.getFilesMatched() );
+  }
+  
+  @Test
+  public void parseDigitsOnlyTakesWholeNumbers()
+  {
+    assertEquals( 123L, RuleSimulator.parseDigits( "a,123,b", 2, 5 ) );
+    assertEquals( -1L, RuleSimulator.parseDigits( "a,1x3,b", 2, 5 ) );
+    assertEquals( -1L, RuleSimulator.parseDigits( "a,,b", 2, 2 ) );
+    assertEquals( -1L, RuleSimulator.parseDigits( "1234567890123456", 0, 16 ) );
+  }
+}